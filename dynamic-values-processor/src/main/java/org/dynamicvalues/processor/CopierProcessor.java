@@ -0,0 +1,227 @@
+package org.dynamicvalues.processor;
+
+import static javax.lang.model.element.Modifier.*;
+import static javax.tools.Diagnostic.Kind.*;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+
+/**
+ * Generates a copier for each class marked with <code>org.dynamicvalues.Copyable</code>.
+ * <p>
+ * Copiers read the fields of marked classes directly, inherited ones first, and leave out those marked with
+ * <code>org.dynamicvalues.Exclude</code>. Marked classes with fields that cannot be read directly, such as private
+ * fields, get no copier and are copied by reflection, since getters may not return what the fields hold.
+ * <p>
+ * Copiers are generated in the package of the marked classes, with their binary names followed by
+ * <code>$$Copier</code>, where the runtime finds them.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+@SupportedAnnotationTypes(CopierProcessor.COPYABLE)
+public class CopierProcessor extends AbstractProcessor {
+
+	static final String COPYABLE = "org.dynamicvalues.Copyable";
+	static final String EXCLUDE = "org.dynamicvalues.Exclude";
+	static final String COPIER = "org.dynamicvalues.Copier";
+	static final String SUFFIX = "$$Copier";
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment env) {
+
+		for (TypeElement annotation : annotations)
+			for (Element element : env.getElementsAnnotatedWith(annotation))
+				if (valid(element))
+					try {
+						generate((TypeElement) element);
+					} catch (IOException e) {
+						processingEnv.getMessager().printMessage(ERROR, "cannot generate copier: " + e.getMessage(),
+								element);
+					}
+
+		return true;
+	}
+
+	// helpers
+
+	private boolean valid(Element element) {
+
+		if (element.getKind() != ElementKind.CLASS) {
+			error(element, "only classes can be @Copyable");
+			return false;
+		}
+
+		TypeElement type = (TypeElement) element;
+
+		if (type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS) {
+			error(element, "local classes cannot be @Copyable");
+			return false;
+		}
+
+		for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement())
+			if (e.getModifiers().contains(PRIVATE)) {
+				error(element, "@Copyable classes cannot be private or nested in private classes");
+				return false;
+			}
+
+		return true;
+	}
+
+	private void generate(TypeElement type) throws IOException {
+
+		PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+
+		String binary = processingEnv.getElementUtils().getBinaryName(type).toString();
+		String name = (pkg.isUnnamed() ? binary : binary.substring(pkg.getQualifiedName().length() + 1)) + SUFFIX;
+		String qualified = pkg.isUnnamed() ? name : pkg.getQualifiedName() + "." + name;
+
+		List<String> reads = new ArrayList<String>();
+
+		for (TypeElement t : hierarchyOf(type))
+			for (VariableElement field : ElementFilter.fieldsIn(t.getEnclosedElements())) {
+
+				if (field.getModifiers().contains(STATIC) || annotated(field, EXCLUDE))
+					continue;
+
+				if (!accessible(field, pkg)) {
+					note(field, "no copier for " + type.getQualifiedName() + ": field " + field.getSimpleName()
+							+ " of " + t.getQualifiedName() + " cannot be read directly, so instances are copied by reflection");
+					return;
+				}
+
+				reads.add("\t\tfields.put(\"" + field.getSimpleName() + "\", o." + field.getSimpleName() + ");");
+			}
+
+		String target = referenceOf(type);
+
+		Writer writer = processingEnv.getFiler().createSourceFile(qualified, type).openWriter();
+
+		PrintWriter out = new PrintWriter(writer);
+
+		try {
+
+			if (!pkg.isUnnamed()) {
+				out.println("package " + pkg.getQualifiedName() + ";");
+				out.println();
+			}
+
+			out.println("/**");
+			out.println(" * Copies instances of {@link " + type.getQualifiedName() + "} without reflection.");
+			out.println(" * <p>");
+			out.println(" * Generated by " + getClass().getName() + ", do not edit.");
+			out.println(" */");
+			out.println("public final class " + name + " extends " + COPIER + "<" + target + "> {");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tprotected void fields(" + target + " o, java.util.Map<String, Object> fields) throws Exception {");
+
+			for (String read : reads)
+				out.println(read);
+
+			out.println("\t}");
+			out.println("}");
+
+		} finally {
+			out.close();
+		}
+	}
+
+	// the class and its superclasses, from the topmost
+	private List<TypeElement> hierarchyOf(TypeElement type) {
+
+		List<TypeElement> hierarchy = new ArrayList<TypeElement>();
+
+		for (TypeElement t = type; t != null; t = superclassOf(t))
+			hierarchy.add(t);
+
+		Collections.reverse(hierarchy);
+
+		return hierarchy;
+	}
+
+	private TypeElement superclassOf(TypeElement type) {
+
+		TypeMirror superclass = type.getSuperclass();
+
+		if (superclass.getKind() != TypeKind.DECLARED)
+			return null;
+
+		return (TypeElement) ((DeclaredType) superclass).asElement();
+	}
+
+	// from a class in a given package, through a reference of a subclass in the same package
+	private boolean accessible(Element member, PackageElement pkg) {
+
+		Set<Modifier> modifiers = member.getModifiers();
+
+		if (modifiers.contains(PUBLIC))
+			return true;
+
+		if (modifiers.contains(PRIVATE))
+			return false;
+
+		return processingEnv.getElementUtils().getPackageOf(member).equals(pkg);
+	}
+
+	private boolean annotated(Element element, String annotation) {
+
+		for (AnnotationMirror mirror : element.getAnnotationMirrors())
+			if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation))
+				return true;
+
+		return false;
+	}
+
+	// the source reference to the class, with wildcards for its type parameters
+	private String referenceOf(TypeElement type) {
+
+		StringBuilder reference = new StringBuilder(type.getQualifiedName());
+
+		int parameters = type.getTypeParameters().size();
+
+		if (parameters > 0) {
+			reference.append("<?");
+			for (int i = 1; i < parameters; i++)
+				reference.append(",?");
+			reference.append(">");
+		}
+
+		return reference.toString();
+	}
+
+	private void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(ERROR, message, element);
+	}
+
+	private void note(Element element, String message) {
+		processingEnv.getMessager().printMessage(NOTE, message, element);
+	}
+}
@@ -0,0 +1,140 @@
+package org.acme;
+
+import static org.dynamicvalues.Directives.*;
+import static org.dynamicvalues.Dynamic.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.dynamicvalues.processor.CopierProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("all")
+public class ProcessorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void copiersAreGeneratedAndUsed() throws Exception {
+
+		ClassLoader loader = compile(
+				"sample/Base.java",
+				"package sample; public class Base { protected long id = 1; }",
+				"sample/Person.java",
+				"package sample; import org.dynamicvalues.*; @Copyable public class Person extends Base { "
+						+ "String name = \"joe\"; protected int age = 30; "
+						+ "@Exclude String secret = \"s\"; String nothing; Address home = new Address(); }",
+				"sample/Address.java",
+				"package sample; import org.dynamicvalues.*; @Copyable public class Address { "
+						+ "String city = \"Rome\"; boolean main = true; }");
+
+		assertNotNull(loader.loadClass("sample.Person$$Copier"));
+		assertNotNull(loader.loadClass("sample.Address$$Copier"));
+
+		Object person = loader.loadClass("sample.Person").newInstance();
+
+		Map<String, Object> home = new HashMap<String, Object>();
+		home.put("city", "Rome");
+		home.put("main", true);
+
+		Map<String, Object> expected = new HashMap<String, Object>();
+		expected.put("id", 1L);
+		expected.put("name", "joe");
+		expected.put("age", 30);
+		expected.put("home", home);
+
+		assertEquals(expected, valueOf(person));
+
+		// other directives fall back to reflection
+		expected.remove("name");
+		assertEquals(expected, valueOf(person, by().excluding(name("name"))));
+	}
+
+	@Test
+	public void classesWithPrivateFieldsAreCopiedByReflection() throws Exception {
+
+		// the getter does not return what the field holds
+		ClassLoader loader = compile("sample/Secret.java",
+				"package sample; import org.dynamicvalues.*; @Copyable public class Secret { "
+						+ "String kind = \"pin\"; private String code = \"1234\"; public String getCode() { return \"****\"; } }");
+
+		try {
+			loader.loadClass("sample.Secret$$Copier");
+			fail();
+		} catch (ClassNotFoundException e) {
+		}
+
+		Map<String, Object> expected = new HashMap<String, Object>();
+		expected.put("kind", "pin");
+		expected.put("code", "1234");
+
+		assertEquals(expected, valueOf(loader.loadClass("sample.Secret").newInstance()));
+	}
+
+	// helpers
+
+	private ClassLoader compile(String... sources) throws Exception {
+
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+
+		assertTrue(diagnostics.getDiagnostics().toString(), run(diagnostics, sources));
+
+		return new URLClassLoader(new URL[] { new File(folder.getRoot(), "classes").toURI().toURL() }, getClass()
+				.getClassLoader());
+	}
+
+	private boolean run(DiagnosticCollector<JavaFileObject> diagnostics, String... sources) throws Exception {
+
+		File src = new File(folder.getRoot(), "src");
+		File classes = new File(folder.getRoot(), "classes");
+		classes.mkdirs();
+
+		File[] files = new File[sources.length / 2];
+
+		for (int i = 0; i < sources.length; i += 2) {
+
+			File file = new File(src, sources[i]);
+			file.getParentFile().mkdirs();
+
+			Writer writer = new FileWriter(file);
+			writer.write(sources[i + 1]);
+			writer.close();
+
+			files[i / 2] = file;
+		}
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		StandardJavaFileManager manager = compiler.getStandardFileManager(diagnostics, null, null);
+
+		List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"), "-d",
+				classes.getPath(), "-s", src.getPath());
+
+		JavaCompiler.CompilationTask task = compiler.getTask(null, manager, diagnostics, options, null,
+				manager.getJavaFileObjects(files));
+
+		task.setProcessors(Arrays.asList(new CopierProcessor()));
+
+		try {
+			return task.call();
+		} finally {
+			manager.close();
+		}
+	}
+}
@@ -0,0 +1,520 @@
+package org.dynamicvalues;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * An off-heap region for value copies.
+ * <p>
+ * Value copies produced into an arena ({@link Dynamic#valueOf(Object, Directives, Arena)}) are laid out as tagged
+ * nodes in direct {@link ByteBuffer}s, with offsets in place of references, so that very large copies remain
+ * essentially invisible to the garbage collector. Sharing and cycles are preserved as shared offsets.
+ * <p>
+ * Dynamic lists and maps in an arena are exposed as read-only {@link List}s and {@link Map}s which decode their
+ * elements on access. Lookups in dynamic maps are linear in their size.
+ * <p>
+ * Arenas can be populated by a single thread at the time, but can be read concurrently. The memory of an arena is
+ * released when the arena and all the values that have been produced into it are no longer referenced.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+public class Arena {
+
+	/**
+	 * The default size of the buffers allocated by arenas, in bytes.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+	static final long NULL = -1;
+
+	static final byte STRING = 1, BOOLEAN = 2, CHAR = 3, BYTE = 4, SHORT = 5, INT = 6, LONG = 7, FLOAT = 8,
+			DOUBLE = 9, LIST = 10, MAP = 11;
+
+	// node layouts, all 8-aligned so that no int or long straddles two chunks:
+	// containers: tag(1) pad(3) size(4) table(8), table: size refs (lists) or 2*size refs (maps)
+	// short atomics: tag(1) pad(3) value(4)
+	// long atomics: tag(1) pad(7) value(8)
+	// strings: tag(1) pad(3) length(4) bytes(length) pad
+	private static final int SIZE = 4, TABLE = 8, VALUE = 4, LONG_VALUE = 8, BYTES = 8;
+
+	// table of a container that is still being produced
+	private static final long PENDING = -1;
+
+	private final int chunkSize;
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+	private long top;
+
+	// field names recur across objects, so they are stored once
+	private final Map<String, Long> names = new HashMap<String, Long>();
+
+	/**
+	 * Creates an arena with chunks of {@link #DEFAULT_CHUNK_SIZE}.
+	 */
+	public Arena() {
+		this(DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Creates an arena with chunks of a given size.
+	 *
+	 * @param chunkSize the chunk size, in bytes
+	 */
+	public Arena(int chunkSize) {
+
+		if (chunkSize < 16 || chunkSize % 8 != 0)
+			throw new IllegalArgumentException("chunk size must be a multiple of 8 bytes, and at least 16 bytes");
+
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Returns the number of bytes occupied by the values in this arena.
+	 *
+	 * @return the number of bytes
+	 */
+	public long size() {
+		return top;
+	}
+
+	/**
+	 * Returns the number of bytes allocated by this arena.
+	 *
+	 * @return the number of bytes
+	 */
+	public long capacity() {
+		return (long) chunks.size() * chunkSize;
+	}
+
+	@Override
+	public String toString() {
+		return "Arena [size=" + top + ", capacity=" + capacity() + "]";
+	}
+
+	// writing, used by the engine
+
+	// stores an atomic value and returns its offset
+	long atomic(Object o) {
+
+		if (o == null)
+			return NULL;
+
+		if (o instanceof String) {
+
+			byte[] bytes = String.class.cast(o).getBytes(Encoding.UTF8);
+
+			long node = allocate(BYTES + bytes.length);
+			put(node, STRING);
+			putInt(node + SIZE, bytes.length);
+			put(node + BYTES, bytes);
+			return node;
+		}
+
+		if (o instanceof Long || o instanceof Double) {
+
+			long node = allocate(LONG_VALUE + 8);
+			if (o instanceof Long) {
+				put(node, LONG);
+				putLong(node + LONG_VALUE, (Long) o);
+			} else {
+				put(node, DOUBLE);
+				putLong(node + LONG_VALUE, Double.doubleToRawLongBits((Double) o));
+			}
+			return node;
+		}
+
+		long node = allocate(VALUE + 4);
+
+		if (o instanceof Integer) {
+			put(node, INT);
+			putInt(node + VALUE, (Integer) o);
+		} else if (o instanceof Boolean) {
+			put(node, BOOLEAN);
+			putInt(node + VALUE, ((Boolean) o) ? 1 : 0);
+		} else if (o instanceof Character) {
+			put(node, CHAR);
+			putInt(node + VALUE, (Character) o);
+		} else if (o instanceof Byte) {
+			put(node, BYTE);
+			putInt(node + VALUE, (Byte) o);
+		} else if (o instanceof Short) {
+			put(node, SHORT);
+			putInt(node + VALUE, (Short) o);
+		} else if (o instanceof Float) {
+			put(node, FLOAT);
+			putInt(node + VALUE, Float.floatToRawIntBits((Float) o));
+		} else
+			throw new IllegalArgumentException("cannot store " + o + ": instances of " + o.getClass()
+					+ " are not atomic values");
+
+		return node;
+	}
+
+	// stores a field name, or returns the offset at which it is already stored
+	long name(String name) {
+
+		Long node = names.get(name);
+
+		if (node == null) {
+			node = atomic(name);
+			names.put(name, node);
+		}
+
+		return node;
+	}
+
+	// reserves a container, to be completed with close() after its elements are stored
+	long open(byte tag) {
+
+		long node = allocate(TABLE + 8);
+		put(node, tag);
+		putLong(node + TABLE, PENDING);
+		return node;
+	}
+
+	// completes a container with the offsets of its elements (key-value pairs, for maps)
+	void close(long node, Table elements) {
+
+		long table = allocate(8L * elements.size);
+
+		for (int i = 0; i < elements.size; i++)
+			putLong(table + 8L * i, elements.refs[i]);
+
+		putInt(node + SIZE, get(node) == MAP ? elements.size / 2 : elements.size);
+		putLong(node + TABLE, table);
+	}
+
+	// true if the value at a given offset would be omitted as a field value
+	boolean isEmpty(long ref) {
+
+		if (ref == NULL)
+			return true;
+
+		byte tag = get(ref);
+
+		// containers still in production may not be empty yet
+		return (tag == LIST || tag == MAP) && getLong(ref + TABLE) != PENDING && getInt(ref + SIZE) == 0;
+	}
+
+	// reading
+
+	// returns the value stored at a given offset
+	Object valueAt(long ref) {
+
+		if (ref == NULL)
+			return null;
+
+		byte tag = get(ref);
+
+		switch (tag) {
+		case STRING:
+			byte[] bytes = new byte[getInt(ref + SIZE)];
+			get(ref + BYTES, bytes);
+			return new String(bytes, Encoding.UTF8);
+		case BOOLEAN:
+			return getInt(ref + VALUE) != 0;
+		case CHAR:
+			return (char) getInt(ref + VALUE);
+		case BYTE:
+			return (byte) getInt(ref + VALUE);
+		case SHORT:
+			return (short) getInt(ref + VALUE);
+		case INT:
+			return getInt(ref + VALUE);
+		case FLOAT:
+			return Float.intBitsToFloat(getInt(ref + VALUE));
+		case LONG:
+			return getLong(ref + LONG_VALUE);
+		case DOUBLE:
+			return Double.longBitsToDouble(getLong(ref + LONG_VALUE));
+		case LIST:
+			return new ArenaList(this, ref);
+		case MAP:
+			return new ArenaMap(this, ref);
+		default:
+			throw new IllegalStateException("invalid node at " + ref + ": unknown tag " + tag);
+		}
+	}
+
+	// helpers
+
+	private long allocate(long bytes) {
+
+		long aligned = (bytes + 7) & ~7L;
+
+		long offset = top % chunkSize;
+
+		// nodes that fit in a chunk do not straddle chunks, larger ones do
+		if (aligned <= chunkSize && offset + aligned > chunkSize)
+			top += chunkSize - offset;
+
+		long node = top;
+
+		top += aligned;
+
+		while (capacity() < top)
+			chunks.add(ByteBuffer.allocateDirect(chunkSize));
+
+		return node;
+	}
+
+	private ByteBuffer chunk(long address) {
+		return chunks.get((int) (address / chunkSize));
+	}
+
+	private int offset(long address) {
+		return (int) (address % chunkSize);
+	}
+
+	private void put(long address, byte value) {
+		chunk(address).put(offset(address), value);
+	}
+
+	private void putInt(long address, int value) {
+		chunk(address).putInt(offset(address), value);
+	}
+
+	private void putLong(long address, long value) {
+		chunk(address).putLong(offset(address), value);
+	}
+
+	private void put(long address, byte[] bytes) {
+		for (int i = 0; i < bytes.length;) {
+			ByteBuffer chunk = chunk(address + i).duplicate();
+			chunk.position(offset(address + i));
+			int length = Math.min(chunk.remaining(), bytes.length - i);
+			chunk.put(bytes, i, length);
+			i += length;
+		}
+	}
+
+	byte get(long address) {
+		return chunk(address).get(offset(address));
+	}
+
+	int getInt(long address) {
+		return chunk(address).getInt(offset(address));
+	}
+
+	long getLong(long address) {
+		return chunk(address).getLong(offset(address));
+	}
+
+	private void get(long address, byte[] bytes) {
+		for (int i = 0; i < bytes.length;) {
+			ByteBuffer chunk = chunk(address + i).duplicate();
+			chunk.position(offset(address + i));
+			int length = Math.min(chunk.remaining(), bytes.length - i);
+			chunk.get(bytes, i, length);
+			i += length;
+		}
+	}
+
+	// accumulates the offsets of container elements, whose number may not be known in advance
+	static class Table {
+
+		long[] refs;
+		int size;
+
+		Table(int capacity) {
+			refs = new long[Math.max(capacity, 4)];
+		}
+
+		void add(long ref) {
+
+			if (size == refs.length)
+				refs = Arrays.copyOf(refs, size * 2);
+
+			refs[size++] = ref;
+		}
+	}
+
+	// facades
+
+	// lists and maps in arenas, whose facades are created on access and so have no identity of their own
+	interface Node {
+
+		Arena arena();
+
+		long address();
+	}
+
+	static class ArenaList extends AbstractList<Object> implements RandomAccess, Node {
+
+		private final Arena arena;
+		private final long node;
+		private final int size;
+		private final long table;
+
+		ArenaList(Arena arena, long node) {
+			this.arena = arena;
+			this.node = node;
+			this.size = arena.getInt(node + SIZE);
+			this.table = arena.getLong(node + TABLE);
+		}
+
+		@Override
+		public Object get(int index) {
+
+			if (index < 0 || index >= size)
+				throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+
+			return arena.valueAt(arena.getLong(table + 8L * index));
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Arena arena() {
+			return arena;
+		}
+
+		@Override
+		public long address() {
+			return node;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof ArenaList && ((ArenaList) o).arena == arena && ((ArenaList) o).node == node)
+				return true;
+			return super.equals(o);
+		}
+
+		@Override
+		public int hashCode() {
+			return super.hashCode();
+		}
+	}
+
+	static class ArenaMap extends AbstractMap<Object, Object> implements Node {
+
+		private final Arena arena;
+		private final long node;
+		private final int size;
+		private final long table;
+
+		ArenaMap(Arena arena, long node) {
+			this.arena = arena;
+			this.node = node;
+			this.size = arena.getInt(node + SIZE);
+			this.table = arena.getLong(node + TABLE);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Set<Map.Entry<Object, Object>> entrySet() {
+
+			return new AbstractSet<Map.Entry<Object, Object>>() {
+
+				@Override
+				public int size() {
+					return size;
+				}
+
+				@Override
+				public Iterator<Map.Entry<Object, Object>> iterator() {
+
+					return new Iterator<Map.Entry<Object, Object>>() {
+
+						int next = 0;
+
+						@Override
+						public boolean hasNext() {
+							return next < size;
+						}
+
+						@Override
+						public Map.Entry<Object, Object> next() {
+
+							if (!hasNext())
+								throw new NoSuchElementException();
+
+							long entry = table + 16L * next++;
+
+							return new SimpleImmutableEntry<Object, Object>(arena.valueAt(arena.getLong(entry)),
+									arena.valueAt(arena.getLong(entry + 8)));
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+			};
+		}
+
+		// avoids decoding values of entries with other keys
+		@Override
+		public Object get(Object key) {
+
+			for (int i = 0; i < size; i++) {
+
+				long entry = table + 16L * i;
+
+				Object candidate = arena.valueAt(arena.getLong(entry));
+
+				if (key == null ? candidate == null : key.equals(candidate))
+					return arena.valueAt(arena.getLong(entry + 8));
+			}
+
+			return null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+
+			for (int i = 0; i < size; i++) {
+
+				Object candidate = arena.valueAt(arena.getLong(table + 16L * i));
+
+				if (key == null ? candidate == null : key.equals(candidate))
+					return true;
+			}
+
+			return false;
+		}
+
+		@Override
+		public Arena arena() {
+			return arena;
+		}
+
+		@Override
+		public long address() {
+			return node;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof ArenaMap && ((ArenaMap) o).arena == arena && ((ArenaMap) o).node == node)
+				return true;
+			return super.equals(o);
+		}
+
+		@Override
+		public int hashCode() {
+			return super.hashCode();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package org.dynamicvalues;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits to the cost of value copies.
+ * <p>
+ * A budget bounds the nesting depth of dynamic lists and dynamic maps in a copy, the number of values in a copy, the
+ * number of elements copied from individual collections, arrays, and maps, the length of copied strings, and the time
+ * taken by a copy. By default, a budget imposes no limit:
+ * 
+ * <pre>
+ * import static ....Budget.*;
+ * 
+ * Map&lt;String,Object&gt; value = Dynamic.valueOf(o,by().within(limits().depth(10).nodes(100000).time(50,MILLISECONDS)));
+ * </pre>
+ * 
+ * Copies that exceed their budget fail with a {@link BudgetExceededException}, unless the budget is
+ * {@link #truncating()}. In this case, copies replace what exceeds the budget with a marker value, and stop copying
+ * elements of collections, arrays, and maps, after appending a marker (as a key-value pair for maps).
+ * <p>
+ * Budgets apply to each copy in a batch separately (see {@link Dynamic#valueOfAll(Iterable, Directives)}).
+ * 
+ * @author Fabio Simeoni
+ * 
+ */
+public class Budget {
+
+	/**
+	 * The default marker of truncated copies.
+	 */
+	public static final String TRUNCATED = "...";
+
+	/**
+	 * Creates a budget with no limits.
+	 * 
+	 * @return the budget
+	 */
+	public static Budget limits() {
+		return new Budget();
+	}
+
+	int depth = Integer.MAX_VALUE;
+	long nodes = Long.MAX_VALUE;
+	int elements = Integer.MAX_VALUE;
+	int strings = Integer.MAX_VALUE;
+	long nanos = Long.MAX_VALUE;
+	Object marker;
+
+	private Budget() {
+	}
+
+	/**
+	 * Limits the nesting depth of dynamic lists and dynamic maps.
+	 * 
+	 * @param max the maximum depth
+	 * @return this budget
+	 */
+	public Budget depth(int max) {
+		this.depth = (int) positive(max);
+		return this;
+	}
+
+	/**
+	 * Limits the number of values in a copy, including dynamic lists, dynamic maps, and atomic values.
+	 * 
+	 * @param max the maximum number of values
+	 * @return this budget
+	 */
+	public Budget nodes(long max) {
+		this.nodes = positive(max);
+		return this;
+	}
+
+	/**
+	 * Limits the number of elements copied from each collection, array, or map.
+	 * 
+	 * @param max the maximum number of elements
+	 * @return this budget
+	 */
+	public Budget elements(int max) {
+		this.elements = (int) positive(max);
+		return this;
+	}
+
+	/**
+	 * Limits the length of copied strings.
+	 * 
+	 * @param max the maximum length
+	 * @return this budget
+	 */
+	public Budget strings(int max) {
+		this.strings = (int) positive(max);
+		return this;
+	}
+
+	/**
+	 * Limits the time taken by a copy.
+	 * 
+	 * @param duration the maximum duration
+	 * @param unit the unit of the duration
+	 * @return this budget
+	 */
+	public Budget time(long duration, TimeUnit unit) {
+		this.nanos = unit.toNanos(positive(duration));
+		return this;
+	}
+
+	/**
+	 * Truncates copies that exceed this budget, marking truncations with {@link #TRUNCATED}.
+	 * 
+	 * @return this budget
+	 */
+	public Budget truncating() {
+		return truncating(TRUNCATED);
+	}
+
+	/**
+	 * Truncates copies that exceed this budget, marking truncations with a given atomic value.
+	 * <p>
+	 * Truncated strings are suffixed with the marker if this is also a string.
+	 * 
+	 * @param marker the marker
+	 * @return this budget
+	 */
+	public Budget truncating(Object marker) {
+
+		if (marker == null || Type.of(marker) != Type.atomic)
+			throw new IllegalArgumentException("marker " + marker + " is not an atomic value");
+
+		this.marker = marker;
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "Budget [depth=" + depth + ", nodes=" + nodes + ", elements=" + elements + ", strings=" + strings
+				+ ", nanos=" + nanos + ", marker=" + marker + "]";
+	}
+
+	// helpers
+
+	private static long positive(long limit) {
+
+		if (limit < 0)
+			throw new IllegalArgumentException("limit must be positive");
+
+		return limit;
+	}
+}
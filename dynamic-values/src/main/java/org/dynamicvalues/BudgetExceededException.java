@@ -0,0 +1,21 @@
+package org.dynamicvalues;
+
+/**
+ * Raised when a value copy exceeds the {@link Budget} of its directives.
+ * 
+ * @author Fabio Simeoni
+ * 
+ */
+public class BudgetExceededException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Creates an instance with a given message.
+	 * 
+	 * @param message the message
+	 */
+	public BudgetExceededException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,941 @@
+package org.dynamicvalues;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The columnar copy of a collection of objects of the same class.
+ * <p>
+ * A columnar copy has a column for each field of the class, and a row for each object. Columns store fields values in
+ * the most compact form that fits them:
+ * <p>
+ * <ul>
+ * <li>primitive arrays for numeric and character values ({@link Ints}, {@link Longs}, {@link Doubles});
+ * <li>bitmaps for boolean values ({@link Booleans});
+ * <li>dictionary codes for strings ({@link Strings});
+ * <li>nested columnar copies for objects of the same class ({@link Objects});
+ * <li>dynamic values for all other values ({@link Values}).
+ * </ul>
+ * <p>
+ * Every column has a validity bitmap that marks its <code>null</code>s. Columns are produced by
+ * {@link Dynamic#columnsOf(Iterable, Directives)}, and follow the same directives as value copies, including their
+ * projections, canonical order, and element exclusions. Budgets apply only to the values that are not stored in
+ * dedicated columns.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+public final class Columns {
+
+	private final Class<?> type;
+	private final int size;
+	private final Map<String, Column> columns;
+
+	private Columns(Class<?> type, int size, Map<String, Column> columns) {
+		this.type = type;
+		this.size = size;
+		this.columns = columns;
+	}
+
+	/**
+	 * Returns the class of the objects in the copy.
+	 *
+	 * @return the class, or <code>null</code> if the copy is empty
+	 */
+	public Class<?> type() {
+		return type;
+	}
+
+	/**
+	 * Returns the number of rows in the copy.
+	 *
+	 * @return the number of rows
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the names of the columns in the copy.
+	 *
+	 * @return the names, inherited fields first, or in canonical order if the directives of the copy require it
+	 */
+	public List<String> names() {
+		return new ArrayList<String>(columns.keySet());
+	}
+
+	/**
+	 * Returns a given column of the copy.
+	 *
+	 * @param name the name of the column
+	 * @return the column, or <code>null</code> if the copy has no such column
+	 */
+	public Column column(String name) {
+		return columns.get(name);
+	}
+
+	/**
+	 * Returns a given row of the copy, as the dynamic map that would replace the corresponding object in a value copy.
+	 *
+	 * @param row the index of the row
+	 * @return the row
+	 */
+	public Map<String, Object> row(int row) {
+
+		check(row, size);
+
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+
+		for (Map.Entry<String, Column> column : columns.entrySet())
+			putField(map, column.getKey(), column.getValue().get(row));
+
+		return map;
+	}
+
+	@Override
+	public String toString() {
+		return "Columns [type=" + type + ", size=" + size + ", columns=" + columns + "]";
+	}
+
+	/**
+	 * A column of a columnar copy.
+	 */
+	public static abstract class Column {
+
+		final int size;
+		final BitSet valid;
+
+		private Column(int size, BitSet valid) {
+			this.size = size;
+			this.valid = valid;
+		}
+
+		/**
+		 * Returns the number of values in this column.
+		 *
+		 * @return the number of values
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Returns <code>true</code> if the value in a given row is <code>null</code>.
+		 *
+		 * @param row the index of the row
+		 * @return <code>true</code> if the value in the row is <code>null</code>
+		 */
+		public boolean isNull(int row) {
+			check(row, size);
+			return !valid.get(row);
+		}
+
+		/**
+		 * Returns the validity bitmap of this column, where bits are set for the rows with values.
+		 * <p>
+		 * The bitmap is not a copy, and must not be modified.
+		 *
+		 * @return the bitmap
+		 */
+		public BitSet validity() {
+			return valid;
+		}
+
+		/**
+		 * Returns the value in a given row, as a dynamic value.
+		 *
+		 * @param row the index of the row
+		 * @return the value, or <code>null</code> if there is no value in the row
+		 */
+		public Object get(int row) {
+			return isNull(row) ? null : value(row);
+		}
+
+		abstract Object value(int row);
+
+		@Override
+		public String toString() {
+			return getClass().getSimpleName() + " [size=" + size + "]";
+		}
+	}
+
+	/**
+	 * A column of <code>int</code>, <code>short</code>, <code>byte</code>, or <code>char</code> values, and of
+	 * their wrappers.
+	 */
+	public static final class Ints extends Column {
+
+		private final Class<?> type;
+		private final int[] values;
+
+		private Ints(int size, BitSet valid, Class<?> type, int[] values) {
+			super(size, valid);
+			this.type = type;
+			this.values = values;
+		}
+
+		/**
+		 * Returns the type of the values in this column.
+		 *
+		 * @return the wrapper type of the values
+		 */
+		public Class<?> type() {
+			return type;
+		}
+
+		/**
+		 * Returns the values in this column, with 0 in rows without values.
+		 * <p>
+		 * The array is not a copy, and must not be modified.
+		 *
+		 * @return the values
+		 */
+		public int[] values() {
+			return values;
+		}
+
+		@Override
+		Object value(int row) {
+			return box(type, values[row]);
+		}
+
+		static Object box(Class<?> type, int value) {
+
+			if (type == Short.class)
+				return (short) value;
+			if (type == Byte.class)
+				return (byte) value;
+			if (type == Character.class)
+				return (char) value;
+
+			return value;
+		}
+	}
+
+	/**
+	 * A column of <code>long</code> values, and of their wrappers.
+	 */
+	public static final class Longs extends Column {
+
+		private final long[] values;
+
+		private Longs(int size, BitSet valid, long[] values) {
+			super(size, valid);
+			this.values = values;
+		}
+
+		/**
+		 * Returns the values in this column, with 0 in rows without values.
+		 * <p>
+		 * The array is not a copy, and must not be modified.
+		 *
+		 * @return the values
+		 */
+		public long[] values() {
+			return values;
+		}
+
+		@Override
+		Object value(int row) {
+			return values[row];
+		}
+	}
+
+	/**
+	 * A column of <code>double</code> or <code>float</code> values, and of their wrappers.
+	 */
+	public static final class Doubles extends Column {
+
+		private final Class<?> type;
+		private final double[] values;
+
+		private Doubles(int size, BitSet valid, Class<?> type, double[] values) {
+			super(size, valid);
+			this.type = type;
+			this.values = values;
+		}
+
+		/**
+		 * Returns the type of the values in this column.
+		 *
+		 * @return the wrapper type of the values
+		 */
+		public Class<?> type() {
+			return type;
+		}
+
+		/**
+		 * Returns the values in this column, with 0 in rows without values.
+		 * <p>
+		 * The array is not a copy, and must not be modified.
+		 *
+		 * @return the values
+		 */
+		public double[] values() {
+			return values;
+		}
+
+		@Override
+		Object value(int row) {
+			return box(type, values[row]);
+		}
+
+		static Object box(Class<?> type, double value) {
+			return type == Float.class ? (Object) (float) value : (Object) value;
+		}
+	}
+
+	/**
+	 * A column of <code>boolean</code> values, and of their wrappers.
+	 */
+	public static final class Booleans extends Column {
+
+		private final BitSet values;
+
+		private Booleans(int size, BitSet valid, BitSet values) {
+			super(size, valid);
+			this.values = values;
+		}
+
+		/**
+		 * Returns the values in this column, as a bitmap where bits are set for <code>true</code> values.
+		 * <p>
+		 * The bitmap is not a copy, and must not be modified.
+		 *
+		 * @return the values
+		 */
+		public BitSet values() {
+			return values;
+		}
+
+		@Override
+		Object value(int row) {
+			return values.get(row);
+		}
+	}
+
+	/**
+	 * A column of dictionary-encoded strings.
+	 */
+	public static final class Strings extends Column {
+
+		private final List<String> dictionary;
+		private final int[] codes;
+
+		private Strings(int size, BitSet valid, List<String> dictionary, int[] codes) {
+			super(size, valid);
+			this.dictionary = dictionary;
+			this.codes = codes;
+		}
+
+		/**
+		 * Returns the distinct strings in this column, in order of first occurrence.
+		 *
+		 * @return the strings
+		 */
+		public List<String> dictionary() {
+			return dictionary;
+		}
+
+		/**
+		 * Returns the positions in the dictionary of the strings in this column, with -1 in rows without values.
+		 * <p>
+		 * The array is not a copy, and must not be modified.
+		 *
+		 * @return the positions
+		 */
+		public int[] codes() {
+			return codes;
+		}
+
+		@Override
+		Object value(int row) {
+			return dictionary.get(codes[row]);
+		}
+	}
+
+	/**
+	 * A column of objects of the same class, stored as a nested columnar copy.
+	 */
+	public static final class Objects extends Column {
+
+		private final Columns columns;
+
+		private Objects(int size, BitSet valid, Columns columns) {
+			super(size, valid);
+			this.columns = columns;
+		}
+
+		/**
+		 * Returns the columnar copy of the objects in this column, with a row for each row of this column.
+		 *
+		 * @return the columnar copy
+		 */
+		public Columns columns() {
+			return columns;
+		}
+
+		@Override
+		Object value(int row) {
+			return columns.row(row);
+		}
+	}
+
+	/**
+	 * A column of dynamic values.
+	 */
+	public static final class Values extends Column {
+
+		private final Object[] values;
+
+		private Values(int size, BitSet valid, Object[] values) {
+			super(size, valid);
+			this.values = values;
+		}
+
+		@Override
+		Object value(int row) {
+			return values[row];
+		}
+	}
+
+	// assembly
+
+	/**
+	 * Returns the columnar copy of a collection of objects of the same class.
+	 *
+	 * @param objects the objects
+	 * @param state the state of the copy
+	 * @param directives the directives of the copy
+	 * @return the columnar copy
+	 * @throws IllegalArgumentException if the objects are not all instances of the same user-defined class
+	 * @throws Exception if the copy cannot be produced
+	 */
+	static Columns of(Iterable<?> objects, State state, Directives directives) throws Exception {
+
+		Table table = null;
+
+		for (Object o : objects) {
+
+			if (o == null || Type.of(o) != Type.object)
+				throw new IllegalArgumentException("columnar copies require instances of a user-defined class, found "
+						+ o);
+
+			if (table == null)
+				table = new Table(o.getClass(), Collections.<Class<?>> emptySet(), state, directives);
+			else if (o.getClass() != table.type)
+				throw new IllegalArgumentException("columnar copies require instances of the same class, found "
+						+ table.type + " and " + o.getClass());
+
+			table.add(o, state, directives);
+		}
+
+		return table == null ? new Columns(null, 0, Collections.<String, Column> emptyMap()) : table.build();
+	}
+
+	// accumulates the columns of the instances of a class
+	private static final class Table {
+
+		final Class<?> type;
+		final Set<Class<?>> enclosing;
+		final List<Field> fields = new ArrayList<Field>();
+		final Builder[] builders;
+		int size;
+
+		// the columns are those of the projection of the table, if any
+		Table(Class<?> type, Set<Class<?>> enclosing, State state, Directives directives) {
+
+			this.type = type;
+
+			this.enclosing = new HashSet<Class<?>>(enclosing);
+			this.enclosing.add(type);
+
+			Projection projection = state.projection();
+
+			for (Field field : projection == null ? Plan.of(type).fields() : projection.fieldsOf(type))
+				if (!field.getName().startsWith("this$")) // skip reference to owner object, if any
+					fields.add(field);
+
+			if (directives.isCanonical())
+				Collections.sort(fields, byName);
+
+			builders = new Builder[fields.size()];
+		}
+
+		void add(Object o, State state, Directives directives) throws Exception {
+
+			for (int i = 0; i < builders.length; i++) {
+
+				// moves to the field, for the projections and element exclusions of nested values
+				Projection outer = state.descend(fields.get(i).getName());
+
+				try {
+					add(i, o, state, directives);
+				} finally {
+					state.ascend(outer);
+				}
+			}
+
+			size++;
+		}
+
+		private void add(int i, Object o, State state, Directives directives) throws Exception {
+
+			Object cell = cell(o, fields.get(i), directives);
+
+			if (cell == null) {
+				if (builders[i] != null)
+					builders[i].addNull();
+				return;
+			}
+
+			if (builders[i] == null)
+				builders[i] = builderFor(cell, size, enclosing, state, directives);
+
+			if (!builders[i].add(cell, state, directives)) {
+				builders[i] = builders[i].degrade(state, directives);
+				builders[i].add(cell, state, directives);
+			}
+		}
+
+		void addNull() {
+
+			for (Builder builder : builders)
+				if (builder != null)
+					builder.addNull();
+
+			size++;
+		}
+
+		// the row as Columns#row(int) will return it, from the values accumulated so far
+		Map<String, Object> row(int row) {
+
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+
+			for (int i = 0; i < builders.length; i++)
+				if (builders[i] != null)
+					putField(map, fields.get(i).getName(), builders[i].valueOf(row));
+
+			return map;
+		}
+
+		Columns build() {
+
+			Map<String, Column> columns = new LinkedHashMap<String, Column>();
+
+			for (int i = 0; i < builders.length; i++)
+				columns.put(fields.get(i).getName(), builders[i] == null ? new Values(size, new BitSet(),
+						new Object[size]) : builders[i].build());
+
+			return new Columns(type, size, columns);
+		}
+
+		// reads a field as a value copy would
+		private Object cell(Object o, Field field, Directives directives) throws Exception {
+
+			for (Exclusion directive : directives.fieldExcludes())
+				if (directive.exclude(o, field))
+					return null;
+
+			Object value = field.get(o);
+
+			if (value == null)
+				return null;
+
+			for (ValueExclusion directive : directives.valueExcludes())
+				if (directive.exclude(o, field, value))
+					return null;
+
+			for (Mapping mapping : directives.mappings()) {
+				Object adapted = mapping.map(o, field, value);
+				if (adapted != null) {
+					value = adapted;
+					break;
+				}
+			}
+
+			return directives.converters().convert(value);
+		}
+	}
+
+	private static final Comparator<Field> byName = new Comparator<Field>() {
+
+		@Override
+		public int compare(Field f1, Field f2) {
+			return f1.getName().compareTo(f2.getName());
+		}
+	};
+
+	private static Builder builderFor(Object cell, int nulls, Set<Class<?>> enclosing, State state,
+			Directives directives) {
+
+		Class<?> type = cell.getClass();
+
+		if (type == Integer.class || type == Short.class || type == Byte.class || type == Character.class)
+			return new IntsBuilder(nulls, type);
+		if (type == Long.class)
+			return new LongsBuilder(nulls);
+		if (type == Double.class || type == Float.class)
+			return new DoublesBuilder(nulls, type);
+		if (type == Boolean.class)
+			return new BooleansBuilder(nulls);
+		if (type == String.class)
+			return new StringsBuilder(nulls);
+
+		// nested columns for objects, unless they recur (or cycles would never end)
+		if (Type.of(cell) == Type.object && !enclosing.contains(type))
+			return new ObjectsBuilder(nulls, type, enclosing, state, directives);
+
+		return new ValuesBuilder(nulls);
+	}
+
+	// accumulates the values of a column
+	private static abstract class Builder {
+
+		final BitSet valid = new BitSet();
+		int size;
+
+		Builder(int nulls) {
+			this.size = nulls;
+		}
+
+		void addNull() {
+			size++;
+		}
+
+		// returns false if the value does not fit the column
+		boolean add(Object value, State state, Directives directives) throws Exception {
+
+			if (!fits(value))
+				return false;
+
+			store(value, state, directives);
+
+			valid.set(size++);
+
+			return true;
+		}
+
+		// a builder for all values, with the values accumulated so far, which are copies already
+		Builder degrade(State state, Directives directives) throws Exception {
+
+			ValuesBuilder values = new ValuesBuilder(0);
+
+			for (int row = 0; row < size; row++)
+				values.addCopy(valueOf(row));
+
+			return values;
+		}
+
+		// the value of a row, as the column will return it
+		Object valueOf(int row) {
+			return valid.get(row) ? value(row) : null;
+		}
+
+		abstract boolean fits(Object value);
+
+		abstract void store(Object value, State state, Directives directives) throws Exception;
+
+		abstract Object value(int row);
+
+		abstract Column build();
+
+		// the length of an array that can store the current row
+		int capacity(int length) {
+			return size < length ? length : Math.max(size + 1, length * 2);
+		}
+	}
+
+	private static final class IntsBuilder extends Builder {
+
+		final Class<?> type;
+		int[] values = new int[16];
+
+		IntsBuilder(int nulls, Class<?> type) {
+			super(nulls);
+			this.type = type;
+		}
+
+		@Override
+		boolean fits(Object value) {
+			return value.getClass() == type;
+		}
+
+		@Override
+		void store(Object value, State state, Directives directives) {
+
+			if (size >= values.length)
+				values = Arrays.copyOf(values, capacity(values.length));
+
+			values[size] = value instanceof Character ? (Character) value : ((Number) value).intValue();
+		}
+
+		@Override
+		Object value(int row) {
+			return Ints.box(type, values[row]);
+		}
+
+		@Override
+		Column build() {
+			return new Ints(size, valid, type, Arrays.copyOf(values, size));
+		}
+	}
+
+	private static final class LongsBuilder extends Builder {
+
+		long[] values = new long[16];
+
+		LongsBuilder(int nulls) {
+			super(nulls);
+		}
+
+		@Override
+		boolean fits(Object value) {
+			return value instanceof Long;
+		}
+
+		@Override
+		void store(Object value, State state, Directives directives) {
+
+			if (size >= values.length)
+				values = Arrays.copyOf(values, capacity(values.length));
+
+			values[size] = (Long) value;
+		}
+
+		@Override
+		Object value(int row) {
+			return values[row];
+		}
+
+		@Override
+		Column build() {
+			return new Longs(size, valid, Arrays.copyOf(values, size));
+		}
+	}
+
+	private static final class DoublesBuilder extends Builder {
+
+		final Class<?> type;
+		double[] values = new double[16];
+
+		DoublesBuilder(int nulls, Class<?> type) {
+			super(nulls);
+			this.type = type;
+		}
+
+		@Override
+		boolean fits(Object value) {
+			return value.getClass() == type;
+		}
+
+		@Override
+		void store(Object value, State state, Directives directives) {
+
+			if (size >= values.length)
+				values = Arrays.copyOf(values, capacity(values.length));
+
+			values[size] = ((Number) value).doubleValue();
+		}
+
+		@Override
+		Object value(int row) {
+			return Doubles.box(type, values[row]);
+		}
+
+		@Override
+		Column build() {
+			return new Doubles(size, valid, type, Arrays.copyOf(values, size));
+		}
+	}
+
+	private static final class BooleansBuilder extends Builder {
+
+		final BitSet values = new BitSet();
+
+		BooleansBuilder(int nulls) {
+			super(nulls);
+		}
+
+		@Override
+		boolean fits(Object value) {
+			return value instanceof Boolean;
+		}
+
+		@Override
+		void store(Object value, State state, Directives directives) {
+			values.set(size, (Boolean) value);
+		}
+
+		@Override
+		Object value(int row) {
+			return values.get(row);
+		}
+
+		@Override
+		Column build() {
+			return new Booleans(size, valid, values);
+		}
+	}
+
+	private static final class StringsBuilder extends Builder {
+
+		final Map<String, Integer> index = new HashMap<String, Integer>();
+		final List<String> dictionary = new ArrayList<String>();
+		int[] codes = new int[16];
+
+		StringsBuilder(int nulls) {
+			super(nulls);
+			Arrays.fill(codes, -1);
+		}
+
+		@Override
+		boolean fits(Object value) {
+			return value instanceof String;
+		}
+
+		@Override
+		void store(Object value, State state, Directives directives) {
+
+			if (size >= codes.length) {
+				int length = codes.length;
+				codes = Arrays.copyOf(codes, capacity(length));
+				Arrays.fill(codes, length, codes.length, -1);
+			}
+
+			Integer code = index.get(value);
+
+			if (code == null) {
+				code = dictionary.size();
+				dictionary.add((String) value);
+				index.put((String) value, code);
+			}
+
+			codes[size] = code;
+		}
+
+		@Override
+		Object value(int row) {
+			return dictionary.get(codes[row]);
+		}
+
+		@Override
+		Column build() {
+			return new Strings(size, valid, Collections.unmodifiableList(dictionary), Arrays.copyOf(codes, size));
+		}
+	}
+
+	private static final class ObjectsBuilder extends Builder {
+
+		final Table table;
+
+		ObjectsBuilder(int nulls, Class<?> type, Set<Class<?>> enclosing, State state, Directives directives) {
+
+			super(nulls);
+
+			table = new Table(type, enclosing, state, directives);
+
+			for (int i = 0; i < nulls; i++)
+				table.addNull();
+		}
+
+		@Override
+		void addNull() {
+			super.addNull();
+			table.addNull();
+		}
+
+		@Override
+		boolean fits(Object value) {
+			return value.getClass() == table.type;
+		}
+
+		@Override
+		void store(Object value, State state, Directives directives) throws Exception {
+			table.add(value, state, directives);
+		}
+
+		@Override
+		Object value(int row) {
+			return table.row(row);
+		}
+
+		@Override
+		Column build() {
+			return new Objects(size, valid, table.build());
+		}
+	}
+
+	private static final class ValuesBuilder extends Builder {
+
+		Object[] values = new Object[16];
+
+		ValuesBuilder(int nulls) {
+			super(nulls);
+		}
+
+		@Override
+		boolean fits(Object value) {
+			return true;
+		}
+
+		@Override
+		void store(Object value, State state, Directives directives) throws Exception {
+
+			if (size >= values.length)
+				values = Arrays.copyOf(values, capacity(values.length));
+
+			// cells are converted already
+			values[size] = Dynamic.convertedValueOf(value, state, directives);
+		}
+
+		// adds a value that is a copy already
+		void addCopy(Object copy) {
+
+			if (copy == null) {
+				addNull();
+				return;
+			}
+
+			if (size >= values.length)
+				values = Arrays.copyOf(values, capacity(values.length));
+
+			values[size] = copy;
+
+			valid.set(size++);
+		}
+
+		@Override
+		Object value(int row) {
+			return values[row];
+		}
+
+		@Override
+		Column build() {
+			return new Values(size, valid, Arrays.copyOf(values, size));
+		}
+	}
+
+	// as in value copies, empty fields are left out
+	private static void putField(Map<String, Object> map, String name, Object value) {
+		if (value != null && !(value instanceof Map && ((Map<?, ?>) value).isEmpty())
+				&& !(value instanceof Collection && ((Collection<?>) value).isEmpty()))
+			map.put(name, value);
+	}
+
+	private static void check(int row, int size) {
+		if (row < 0 || row >= size)
+			throw new IndexOutOfBoundsException("row " + row + " of " + size);
+	}
+}
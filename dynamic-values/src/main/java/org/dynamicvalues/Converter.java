@@ -0,0 +1,26 @@
+package org.dynamicvalues;
+
+/**
+ * Directs the value copy to replace instances of a given type with other values, wherever they occur.
+ * <p>
+ * Unlike {@link Mapping}s, converters apply to the objects of a graph rather than to the fields of objects, including
+ * the root of the graph, the elements of collections and arrays, and the keys and values of maps.
+ * 
+ * @author Fabio Simeoni
+ * 
+ * @param <T> the type
+ * @see Directives#converting(Class, Converter)
+ */
+public interface Converter<T> {
+
+	/**
+	 * Returns the value that should be copied in place of a given object.
+	 * <p>
+	 * The value is copied in turn, but is not converted again.
+	 * 
+	 * @param object the object
+	 * @return the value
+	 * @throws Exception if the object cannot be converted
+	 */
+	Object convert(T object) throws Exception;
+}
@@ -0,0 +1,123 @@
+package org.dynamicvalues;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A registry of {@link Converter}s by type.
+ * <p>
+ * The converter of a class is the one registered for the class or else for the nearest of its supertypes, visiting
+ * the interfaces of a class before its superclass. Converters are resolved once per class, and registries are
+ * immutable so that resolutions can be shared by all the copies that use them.
+ * 
+ * @author Fabio Simeoni
+ * 
+ */
+final class Converters {
+
+	static final Converters none = new Converters(Collections.<Class<?>, Converter<Object>> emptyMap());
+
+	// the resolution of classes without converters
+	private static final Converter<Object> NONE = new Converter<Object>() {
+
+		@Override
+		public Object convert(Object object) {
+			return object;
+		}
+	};
+
+	private final Map<Class<?>, Converter<Object>> registered;
+
+	private final ConcurrentMap<Class<?>, Converter<Object>> resolved = new ConcurrentHashMap<Class<?>, Converter<Object>>();
+
+	private Converters(Map<Class<?>, Converter<Object>> registered) {
+		this.registered = registered;
+	}
+
+	/**
+	 * Returns a registry with the converters of this registry and a given converter.
+	 * 
+	 * @param type the type of the converter
+	 * @param converter the converter
+	 * @return the registry
+	 */
+	@SuppressWarnings("unchecked")
+	Converters with(Class<?> type, Converter<?> converter) {
+
+		Map<Class<?>, Converter<Object>> registered = new HashMap<Class<?>, Converter<Object>>(this.registered);
+
+		registered.put(type, (Converter<Object>) converter);
+
+		return new Converters(registered);
+	}
+
+	/**
+	 * Returns <code>true</code> if this registry has no converters.
+	 *
+	 * @return <code>true</code> if this registry has no converters
+	 */
+	boolean isEmpty() {
+		return registered.isEmpty();
+	}
+
+	/**
+	 * Converts an object with the converter of its class, if it has one.
+	 * 
+	 * @param o the object
+	 * @return the converted object, or the object itself if its class has no converter
+	 * @throws Exception if the object cannot be converted
+	 */
+	Object convert(Object o) throws Exception {
+
+		if (o == null || registered.isEmpty())
+			return o;
+
+		Class<?> clazz = o.getClass();
+
+		Converter<Object> converter = resolved.get(clazz);
+
+		if (converter == null) {
+			converter = resolve(clazz);
+			resolved.putIfAbsent(clazz, converter);
+		}
+
+		return converter == NONE ? o : converter.convert(o);
+	}
+
+	// helpers
+
+	private Converter<Object> resolve(Class<?> clazz) {
+
+		for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+
+			Converter<Object> converter = registered.get(c);
+
+			if (converter == null)
+				converter = resolveInterfaces(c);
+
+			if (converter != null)
+				return converter;
+		}
+
+		return NONE;
+	}
+
+	private Converter<Object> resolveInterfaces(Class<?> clazz) {
+
+		for (Class<?> i : clazz.getInterfaces()) {
+
+			Converter<Object> converter = registered.get(i);
+
+			if (converter == null)
+				converter = resolveInterfaces(i);
+
+			if (converter != null)
+				return converter;
+		}
+
+		return null;
+	}
+}
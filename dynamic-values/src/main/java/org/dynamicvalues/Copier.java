@@ -0,0 +1,33 @@
+package org.dynamicvalues;
+
+import java.util.Map;
+
+/**
+ * Reads the fields of the instances of a {@link Copyable} class without reflection.
+ * <p>
+ * Copiers are generated at compile time by the <code>dynamic-values-processor</code> annotation processor, in the
+ * package of the class and with the binary name of the class followed by {@link #SUFFIX}. They are not meant to be
+ * written by hand.
+ * 
+ * @author Fabio Simeoni
+ * 
+ * @param <T> the type of the instances
+ */
+public abstract class Copier<T> {
+
+	/**
+	 * The suffix of the names of generated copiers.
+	 */
+	public static final String SUFFIX = "$$Copier";
+
+	/**
+	 * Adds the fields of an instance to a map, by name.
+	 * <p>
+	 * Fields are added in declaration order, inherited ones first. Fields marked with {@link Exclude} are not added.
+	 * 
+	 * @param object the instance
+	 * @param fields the map
+	 * @throws Exception if the fields cannot be read
+	 */
+	protected abstract void fields(T object, Map<String, Object> fields) throws Exception;
+}
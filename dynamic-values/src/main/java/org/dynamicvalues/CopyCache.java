@@ -0,0 +1,206 @@
+package org.dynamicvalues;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of value copies that outlives individual copies.
+ * <p>
+ * When the directives of a copy use a cache ({@link Directives#caching(CopyCache)}), the value copies of immutable
+ * objects are taken from the cache if they have been produced before, and are added to it otherwise. Objects are
+ * immutable if their class is marked with the {@link Immutable} annotation, or if the directives declare it so (
+ * {@link Directives#immutable(Class...)}).
+ * <p>
+ * Caches remember objects by identity and hold them weakly, so that they do not prevent their collection. Caches
+ * evict the least recently used copies when they reach their capacity.
+ * <p>
+ * Value copies are cached as unmodifiable maps, or as frozen {@link Externals.ValueMap}s for external copies, and are
+ * shared by all the copies that take them from the cache. Only the maps themselves are unmodifiable: the lists and maps
+ * they contain are not copied again to freeze them, and must not be modified either. Value copies should be produced
+ * under the same directives, or under directives that produce equal copies. Caches are safe for use by multiple
+ * threads.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+public class CopyCache {
+
+	/**
+	 * The default capacity of caches.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final int capacity;
+
+	private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+	private final Map<Key, Object> copies;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Creates a cache with {@link #DEFAULT_CAPACITY}.
+	 */
+	public CopyCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a cache with a given capacity.
+	 *
+	 * @param capacity the maximum number of copies in the cache
+	 */
+	public CopyCache(final int capacity) {
+
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1");
+
+		this.capacity = capacity;
+
+		this.copies = new LinkedHashMap<Key, Object>(16, .75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+
+				if (size() <= CopyCache.this.capacity)
+					return false;
+
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of copies in this cache.
+	 *
+	 * @return the number of copies
+	 */
+	public synchronized int size() {
+		purge();
+		return copies.size();
+	}
+
+	/**
+	 * Returns the maximum number of copies in this cache.
+	 *
+	 * @return the capacity
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of times this cache has returned a copy.
+	 *
+	 * @return the number of hits
+	 */
+	public synchronized long hits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of times this cache has been consulted for a copy it did not have.
+	 *
+	 * @return the number of misses
+	 */
+	public synchronized long misses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the number of copies this cache has evicted because it had reached capacity.
+	 *
+	 * @return the number of evictions
+	 */
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	/**
+	 * Removes all copies from this cache.
+	 */
+	public synchronized void clear() {
+		copies.clear();
+		purge();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "CopyCache [size=" + copies.size() + ", capacity=" + capacity + ", hits=" + hits + ", misses="
+				+ misses + ", evictions=" + evictions + "]";
+	}
+
+	// used by the engine
+
+	synchronized Object get(Object o, boolean external) {
+
+		purge();
+
+		Object copy = copies.get(new Key(o, external, null));
+
+		if (copy == null)
+			misses++;
+		else
+			hits++;
+
+		return copy;
+	}
+
+	synchronized void put(Object o, boolean external, Object copy) {
+
+		purge();
+
+		copies.put(new Key(o, external, collected), copy);
+	}
+
+	// helpers
+
+	// drops the copies of collected objects
+	private void purge() {
+
+		// cleared keys are still equal to themselves, and evicted ones are simply no longer there
+		for (Reference<?> ref = collected.poll(); ref != null; ref = collected.poll())
+			copies.remove(ref);
+	}
+
+	private static class Key extends WeakReference<Object> {
+
+		private final int hash;
+		private final boolean external;
+
+		Key(Object o, boolean external, ReferenceQueue<Object> queue) {
+			super(o, queue);
+			this.hash = System.identityHashCode(o) * 31 + (external ? 1 : 0);
+			this.external = external;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+
+			if (this == obj)
+				return true;
+
+			if (!(obj instanceof Key))
+				return false;
+
+			Key other = (Key) obj;
+
+			Object referent = get();
+
+			return referent != null && referent == other.get() && external == other.external;
+		}
+	}
+}
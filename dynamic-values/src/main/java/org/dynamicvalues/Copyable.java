@@ -0,0 +1,23 @@
+package org.dynamicvalues;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class whose instances are copied by generated code rather than by reflection.
+ * <p>
+ * The <code>dynamic-values-processor</code> annotation processor generates a {@link Copier} for each marked class,
+ * which reads its fields directly and leaves out those marked with {@link Exclude}. Generated copiers are picked up
+ * automatically, and are used for copies that follow no other {@link Exclusion} or {@link Mapping} than the defaults.
+ * Marked classes without a generated copier are copied by reflection.
+ * 
+ * @author Fabio Simeoni
+ *
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Copyable {
+
+}
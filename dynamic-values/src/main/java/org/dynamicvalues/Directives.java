@@ -1,5 +1,6 @@
 package org.dynamicvalues;
 
+import java.io.File;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
@@ -25,7 +26,26 @@ public class Directives {
 	}
 	
 	private final List<Exclusion> excludes = new ArrayList<Exclusion>();
+	private final List<Exclusion> fieldExcludes = new ArrayList<Exclusion>();
+	private final List<ValueExclusion> valueExcludes = new ArrayList<ValueExclusion>();
 	private final List<Mapping> mappings = new ArrayList<Mapping>();
+	private Converters converters = Converters.none;
+	private final ElementExclusions elementExcludes = new ElementExclusions();
+	
+	private final List<Class<?>> immutables = new ArrayList<Class<?>>();
+	
+	private boolean sharing;
+	private boolean canonical;
+	private boolean interning;
+	private CopyCache cache;
+	private Budget budget;
+	private long spillBytes;
+	private File spillDirectory;
+	private boolean copiers;
+	private Schema schema;
+	
+	private final List<String> paths = new ArrayList<String>();
+	private Projection projection;
 	
 	private Directives() {}
 	
@@ -45,6 +65,60 @@ public class Directives {
 	 */
 	public Directives excluding(List<Exclusion> directives) {
 		this.excludes.addAll(directives);
+		for (Exclusion directive : directives)
+			if (directive instanceof ValueExclusion)
+				this.valueExcludes.add((ValueExclusion) directive);
+			else
+				this.fieldExcludes.add(directive);
+		return this;
+	}
+	
+	/**
+	 * Adds an {@link ElementExclusion} for the elements of all collections and arrays, and the values of all maps.
+	 * 
+	 * @param exclusion the exclusion
+	 * @return these directives
+	 */
+	public Directives excludingElements(ElementExclusion<Object> exclusion) {
+		this.elementExcludes.add(null, null, exclusion);
+		return this;
+	}
+	
+	/**
+	 * Adds an {@link ElementExclusion} for the elements of collections and arrays, and the values of maps, that are
+	 * instances of a given type.
+	 * <p>
+	 * Elements of other types are not tested, and are copied unless other exclusions apply.
+	 * 
+	 * @param type the type
+	 * @param exclusion the exclusion
+	 * @return these directives
+	 */
+	public <T> Directives excludingElements(Class<T> type, ElementExclusion<? super T> exclusion) {
+		this.elementExcludes.add(null, type, exclusion);
+		return this;
+	}
+	
+	/**
+	 * Adds an {@link ElementExclusion} for the elements of the collections and arrays, and the values of the maps, at a
+	 * given path.
+	 * <p>
+	 * Paths are sequences of field names separated by dots, as for projections ({@link #projecting(String...)}), and
+	 * identify the collections, arrays, and maps in the fields at their end, e.g. <code>orders</code> or
+	 * <code>orders[*].lines</code>. Steps into elements are implicit, and may be omitted. The roots of copies are not
+	 * at any path.
+	 * 
+	 * @param path the path
+	 * @param exclusion the exclusion
+	 * @return these directives
+	 * @throws IllegalArgumentException if the path is malformed
+	 */
+	public Directives excludingElements(String path, ElementExclusion<Object> exclusion) {
+		
+		// validates the path as projections do
+		Projection.of(Arrays.asList(path));
+		
+		this.elementExcludes.add(path.replace("[*]", ""), null, exclusion);
 		return this;
 	}
 	
@@ -67,15 +141,279 @@ public class Directives {
 		return mapping(Arrays.asList(directives));
 	}
 	
+	/**
+	 * Adds a {@link Converter} for the instances of a given type to these directives.
+	 * <p>
+	 * Instances of subtypes of the given type are converted as well, unless there are converters for more specific
+	 * types. Converters are resolved once per class, so they remain cheap when they apply to large graphs.
+	 * 
+	 * @param type the type
+	 * @param converter the converter
+	 * @return these directives
+	 */
+	public <T> Directives converting(Class<T> type, Converter<? super T> converter) {
+		this.converters=converters.with(type, converter);
+		return this;
+	}
+	
+	/**
+	 * Preserves sharing and cycles across the objects of batch copies (see {@link Dynamic#valueOfAll(Iterable, Directives)}).
+	 * <p>
+	 * By default, each object in a batch is copied independently of the others. With this directive, the batch retains
+	 * every object it has copied so far, and the copy of each, until the batch itself is discarded. Memory thus grows
+	 * with the batch, and long or unbounded batches, e.g. streams ({@link Dynamic#streamOf(Iterable, Directives)}),
+	 * should be split into batches of bounded size.
+	 * 
+	 * @return these directives
+	 */
+	public Directives preservingSharing() {
+		this.sharing=true;
+		return this;
+	}
+	
+	/**
+	 * Orders the entries of dynamic maps by key, so that equal copies iterate and serialise identically.
+	 * <p>
+	 * Keys are ordered by type first, then by natural order if they are atomic values, and by {@link Fingerprint}
+	 * otherwise. By default, the entries of dynamic maps follow the iteration order of the original maps, and the
+	 * entries of dynamic maps that replace user-defined objects are in no particular order.
+	 * 
+	 * @return these directives
+	 */
+	public Directives canonical() {
+		this.canonical=true;
+		return this;
+	}
+	
+	/**
+	 * Limits value copies to the fields along given paths.
+	 * <p>
+	 * Paths are sequences of field names separated by dots, and may step into the elements of collections, arrays, and
+	 * maps with <code>[*]</code>, e.g. <code>orders[*].lines[*].sku</code>. Fields at the end of paths are copied
+	 * completely, and other fields are never read. Objects that are reached along different paths are copied once,
+	 * along the first path that reaches them.
+	 * <p>
+	 * The directive can be used more than once, and the copies include the fields along all the paths.
+	 * 
+	 * @param paths the paths
+	 * @return these directives
+	 * @throws IllegalArgumentException if the paths are malformed
+	 */
+	public Directives projecting(String ... paths) {
+		List<String> all = new ArrayList<String>(this.paths);
+		all.addAll(Arrays.asList(paths));
+		this.projection=Projection.of(all);
+		this.paths.clear();
+		this.paths.addAll(all);
+		return this;
+	}
+	
+	/**
+	 * Feeds value copies to a given {@link Schema}, as they are produced.
+	 * <p>
+	 * In batch copies, each copy is fed separately (see {@link Dynamic#valueOfAll(Iterable, Directives)}).
+	 * 
+	 * @param schema the schema
+	 * @return these directives
+	 */
+	public Directives inferring(Schema schema) {
+		this.schema=schema;
+		return this;
+	}
+	
+	/**
+	 * Bounds the cost of value copies with a given {@link Budget}.
+	 * 
+	 * @param budget the budget
+	 * @return these directives
+	 */
+	public Directives within(Budget budget) {
+		this.budget=budget;
+		return this;
+	}
+	
+	/**
+	 * Spills value copies to a temporary file once they occupy more than a given number of bytes in memory.
+	 * <p>
+	 * Past that size, lists and maps are encoded to the file as soon as they are copied, and are replaced in the copy
+	 * by read-only handles that decode them when they are accessed. Handles keep decoded values only as long as
+	 * memory allows. Lists and maps that refer to values still being copied, i.e. that close cycles above them, are
+	 * spilled with the values that contain them. The directive does not apply to external value copies.
+	 * <p>
+	 * Files are created in the default temporary directory, and are removed when they can no longer be accessed.
+	 * 
+	 * @param bytes the number of bytes
+	 * @return these directives
+	 */
+	public Directives spilling(long bytes) {
+		return spilling(bytes, null);
+	}
+	
+	/**
+	 * Spills value copies to a temporary file in a given directory once they occupy more than a given number of bytes
+	 * in memory.
+	 * 
+	 * @param bytes the number of bytes
+	 * @param directory the directory
+	 * @return these directives
+	 * @see #spilling(long)
+	 */
+	public Directives spilling(long bytes, File directory) {
+		
+		if (bytes < 0)
+			throw new IllegalArgumentException("spill threshold must be positive");
+		
+		this.spillBytes=bytes;
+		this.spillDirectory=directory;
+		return this;
+	}
+	
+	/**
+	 * Replaces structurally equal dynamic lists and dynamic maps in value copies with a single, unmodifiable instance.
+	 * <p>
+	 * Equal lists and maps can then be compared by reference, and occupy memory once. Lists and maps that are part of
+	 * cycles are not replaced. In batch copies, instances are shared across objects (see
+	 * {@link Dynamic#valueOfAll(Iterable, Directives)}). The directive does not apply to external value copies.
+	 * 
+	 * @return these directives
+	 */
+	public Directives interning() {
+		this.interning=true;
+		return this;
+	}
+	
+	/**
+	 * Reuses the value copies of immutable objects across copies, through a given cache.
+	 * <p>
+	 * Objects are immutable if their class is marked with the {@link Immutable} annotation, or if they are declared so
+	 * with {@link #immutable(Class...)}. Cached copies are shared, and must not be modified (see {@link CopyCache}).
+	 * 
+	 * @param cache the cache
+	 * @return these directives
+	 */
+	public Directives caching(CopyCache cache) {
+		this.cache=cache;
+		return this;
+	}
+	
+	/**
+	 * Declares the instances of given types as immutable (in the sense of {@link Class#isAssignableFrom(Class)}), in
+	 * addition to those marked with the {@link Immutable} annotation.
+	 * 
+	 * @param types the types
+	 * @return these directives
+	 * @see #caching(CopyCache)
+	 */
+	public Directives immutable(Class<?> ... types) {
+		this.immutables.addAll(Arrays.asList(types));
+		return this;
+	}
+	
 	//use internally for inspection
 	List<Exclusion> excludes() {
 		return excludes;
 	}
 	
+	//exclusions that do not depend on field values
+	List<Exclusion> fieldExcludes() {
+		return fieldExcludes;
+	}
+	
+	List<ValueExclusion> valueExcludes() {
+		return valueExcludes;
+	}
+	
 	List<Mapping> mappings() {
 		return mappings;
 	}
 	
+	Converters converters() {
+		return converters;
+	}
+	
+	boolean sharing() {
+		return sharing;
+	}
+	
+	boolean isCanonical() {
+		return canonical;
+	}
+	
+	boolean isInterning() {
+		return interning;
+	}
+	
+	boolean usesCopiers() {
+		return copiers;
+	}
+	
+	//generated copiers bake in the default directives, and cannot follow others 
+	Directives usingCopiers(boolean copiers) {
+		this.copiers=copiers;
+		return this;
+	}
+	
+	Projection projection() {
+		return projection;
+	}
+	
+	Schema schema() {
+		return schema;
+	}
+	
+	ElementExclusions elementExcludes() {
+		return elementExcludes;
+	}
+	
+	Budget budget() {
+		return budget;
+	}
+	
+	//0 if copies do not spill
+	long spillBytes() {
+		return spillBytes;
+	}
+	
+	File spillDirectory() {
+		return spillDirectory;
+	}
+	
+	CopyCache cache() {
+		return cache;
+	}
+	
+	boolean isImmutable(Class<?> clazz) {
+		
+		if (Plan.of(clazz).immutable)
+			return true;
+		
+		for (Class<?> type : immutables)
+			if (type.isAssignableFrom(clazz))
+				return true;
+		
+		return false;
+	}
+	
+	//returns an independent copy of these directives
+	Directives copy() {
+		Directives copy = by().excluding(excludes).mapping(mappings);
+		copy.converters=converters;
+		copy.elementExcludes.addAll(elementExcludes);
+		copy.sharing=sharing;
+		copy.canonical=canonical;
+		copy.interning=interning;
+		copy.cache=cache;
+		copy.budget=budget;
+		copy.spillBytes=spillBytes;
+		copy.spillDirectory=spillDirectory;
+		copy.schema=schema;
+		copy.copiers=copiers;
+		copy.paths.addAll(paths);
+		copy.projection=projection;
+		copy.immutables.addAll(immutables);
+		return copy;
+	}
+	
 	
 	//excludes
 	
@@ -87,6 +425,16 @@ public class Directives {
 	 * @return the directive
 	 */
 	public static Exclusion not(final Exclusion directive) {
+		
+		if (directive instanceof ValueExclusion)
+			return new ValueExclusion() {
+
+				@Override
+				public boolean exclude(Object object, Field field, Object fieldValue) throws Exception {
+					return !((ValueExclusion) directive).exclude(object, field, fieldValue);
+				}
+			};
+		
 		return new Exclusion() {
 
 			@Override
@@ -103,6 +451,22 @@ public class Directives {
 	 * @return the directive
 	 */
 	public static Exclusion all(final Exclusion... directives) {
+		
+		for (Exclusion directive : directives)
+			if (directive instanceof ValueExclusion)
+				return new ValueExclusion() {
+
+					@Override
+					public boolean exclude(Object object, Field field, Object fieldValue) throws Exception {
+						for (Exclusion directive : directives)
+							if (!(directive instanceof ValueExclusion ? ((ValueExclusion) directive).exclude(object,
+									field, fieldValue) : directive.exclude(object, field)))
+								return false;
+
+						return true;
+					}
+				};
+		
 		return new Exclusion() {
 
 			@Override
@@ -171,13 +535,11 @@ public class Directives {
 	 * @return the directive
 	 */
 	public static Exclusion value(final Object value) {
-		return new Exclusion() {
+		return new ValueExclusion() {
 
 			@Override
-			public boolean exclude(Object object, Field field) throws Exception {
-				field.setAccessible(true);
-				Object val = field.get(object);
-				return val != null && val == value;
+			public boolean exclude(Object object, Field field, Object fieldValue) throws Exception {
+				return fieldValue != null && fieldValue == value;
 			}
 		};
 	}
@@ -206,13 +568,11 @@ public class Directives {
 	 * @return the directive
 	 */
 	public static Exclusion valueLike(final Object value) {
-		return new Exclusion() {
+		return new ValueExclusion() {
 
 			@Override
-			public boolean exclude(Object object, Field field) throws Exception {
-				field.setAccessible(true);
-				Object val = field.get(object);
-				return val != null && val.equals(value);
+			public boolean exclude(Object object, Field field, Object fieldValue) throws Exception {
+				return fieldValue != null && fieldValue.equals(value);
 			}
 		};
 	}
@@ -256,18 +616,11 @@ public class Directives {
 	 * @return the directive
 	 */
 	public static Exclusion emptyStrings() {
-		return new Exclusion() {
+		return new ValueExclusion() {
 
 			@Override
-			public boolean exclude(Object object, Field field) throws Exception {
-				
-				if (field.getType()==String.class) {
-					String val = String.class.cast(field.get(object));
-					if (val!=null && val.isEmpty())
-						return true;
-				}
-				
-				return false;
+			public boolean exclude(Object object, Field field, Object fieldValue) throws Exception {
+				return field.getType()==String.class && fieldValue!=null && String.class.cast(fieldValue).isEmpty();
 			}
 		};
 	}
@@ -304,4 +657,37 @@ public class Directives {
 			}
 		};
 	}
+	
+	//converters
+	
+	/**
+	 * Returns the converter that replaces objects with their string representation (in the sense of {@link Object#toString()}).
+	 * 
+	 * @return the converter
+	 */
+	public static Converter<Object> asString() {
+		return new Converter<Object>() {
+			
+			@Override
+			public Object convert(Object object) throws Exception {
+				return object.toString();
+			}
+		};
+	}
+	
+	/**
+	 * Returns the converter that replaces enumeration constants with their names.
+	 * 
+	 * @return the converter
+	 */
+	@SuppressWarnings("rawtypes") //matches Enum.class
+	public static Converter<Enum> asName() {
+		return new Converter<Enum>() {
+			
+			@Override
+			public Object convert(Enum object) throws Exception {
+				return object.name();
+			}
+		};
+	}
 }
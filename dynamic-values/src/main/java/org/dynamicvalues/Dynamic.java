@@ -2,7 +2,9 @@ package org.dynamicvalues;
 
 import static org.dynamicvalues.Directives.*;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import javax.xml.bind.JAXBContext;
@@ -60,6 +62,65 @@ import javax.xml.bind.JAXBContext;
  *  ...process value...
  * </pre>
  * 
+ * If the external value is no longer needed, {@link #unwrap(Object)} avoids the copy, and reuses the lists and maps
+ * that the deserialised object wraps.
+ * 
+ * <p>
+ * <b>Batch Copies</b>
+ * <p>
+ * 
+ * Many objects can be copied in a single batch ({@link #valueOfAll(Iterable, Directives)},
+ * {@link #externalValueOfAll(Iterable, Directives)}), or lazily as the copies are iterated over (
+ * {@link #valuesOf(Iterable, Directives)}, {@link #externalValuesOf(Iterable, Directives)}). Batch copies amortise
+ * the preparation of a copy over all the objects, and can preserve sharing across objects. Unbounded sequences of
+ * objects can be copied in parallel with {@link ValueStream}s ({@link #streamOf(Iterable, Directives)}).
+ * 
+ * <p>
+ * <b>Columnar Copies</b>
+ * <p>
+ * 
+ * Large collections of objects of the same class can be copied into {@link Columns} (
+ * {@link #columnsOf(Iterable, Directives)}), which store the values of each field in a single column, using primitive
+ * arrays, bitmaps, and dictionaries where possible.
+ * 
+ * <p>
+ * <b>Clones</b>
+ * <p>
+ * 
+ * Objects can be cloned deeply with the same engine that copies them ({@link #cloneOf(Object, Directives)}), so that
+ * clones have the same types as the objects and preserve their sharing and cycles.
+ * 
+ * <p>
+ * <b>Views</b>
+ * <p>
+ * 
+ * Objects can also be viewed as dynamic values without copying them ({@link #viewOf(Object, Directives)}), e.g. to
+ * evaluate expressions that read only a few of their fields. Views resolve values as they are accessed.
+ * 
+ * <p>
+ * <b>Footprints</b>
+ * <p>
+ * 
+ * The number of values and the heap space of a value copy can be estimated before it is produced (
+ * {@link #footprintOf(Object, Directives)}), e.g. to choose between a copy, a projected copy, or a streaming copy of
+ * a large object. The footprint of an existing dynamic value can be measured with {@link Footprint#of(Object)}.
+ * 
+ * <p>
+ * <b>Equality</b>
+ * <p>
+ * 
+ * Dynamic values with cycles can be compared and hashed with {@link #equal(Object, Object)} and
+ * {@link #hashOf(Object)}, which external values use for their own <code>equals()</code> and <code>hashCode()</code>.
+ * Frozen external values ({@link Externals.ValueMap#freeze()}) compute their hash codes only once, and can serve as keys.
+ * 
+ * <p>
+ * <b>Off-Heap Value Copies</b>
+ * <p>
+ * 
+ * Very large value copies can be produced directly into an {@link Arena} ({@link #valueOf(Object, Directives, Arena)}
+ * ), where they occupy direct buffers rather than heap objects. Dynamic lists and dynamic maps are then returned as
+ * read-only views that decode their elements on access.
+ * 
  * <p>
  * <b>Assignments and Casts</b>
  * <p>
@@ -80,9 +141,9 @@ import javax.xml.bind.JAXBContext;
  * <b>Copy Directives</b>
  * <p>
  * 
- * This factory can follow {@link Exclusion} and {@link Mapping} directives to produce value copies and external value
- * copies. By default, instance fields marked with the {@link Exclude} annotations are excluded from copies. Other
- * directives can be conveniently produced by the {@link Directives} factory> As a simple example:
+ * This factory can follow {@link Exclusion}, {@link Mapping}, and {@link Converter} directives to produce value copies
+ * and external value copies. By default, instance fields marked with the {@link Exclude} annotations are excluded from
+ * copies. Other directives can be conveniently produced by the {@link Directives} factory> As a simple example:
  * 
  * <pre>
  * 
@@ -90,7 +151,7 @@ import javax.xml.bind.JAXBContext;
  * 
  * MyObject o = ...
  * Map<String,Object> value = Dynamic.valueOf(o,by().excluding(type(MyType.class),annotation(MyAnnotation.class)))
- * 				   .mapping(asString(QName.class));
+ * 				   .converting(QName.class,asString()));
  * 
  * </pre>
  * 
@@ -121,6 +182,13 @@ public class Dynamic {
 	 */
 	public static <T> T valueOf(Object o) throws Exception {
 
+		// atomic objects are their own copies, under default directives
+		if (Type.of(o) == Type.atomic) {
+			@SuppressWarnings("all")
+			T t = (T) o;
+			return t;
+		}
+
 		return valueOf(o, by());
 
 	}
@@ -135,8 +203,23 @@ public class Dynamic {
 	 */
 	public static <T> T valueOf(Object o, Directives directives) throws Exception {
 
+		if (passesThrough(o, directives)) {
+			@SuppressWarnings("all")
+			T t = (T) o;
+			return t;
+		}
+
+		Directives merged = addDefaults(directives);
+
+		Object value = valueOf(o, new State(merged), merged);
+
+		if (merged.isInterning())
+			value = new Interner().intern(value);
+
+		observe(value, merged);
+
 		@SuppressWarnings("all")
-		T t = (T) valueOf(o, new HashMap<Integer, Object>(), addDefaults(directives));
+		T t = (T) value;
 		return t;
 
 	}
@@ -166,30 +249,513 @@ public class Dynamic {
 	 */
 	public static <T> T externalValueOf(Object o, Directives directives) throws Exception {
 
+		if (passesThrough(o, directives)) {
+			@SuppressWarnings("all")
+			T t = (T) o;
+			return t;
+		}
+
+		Directives merged = addDefaults(directives);
+
+		@SuppressWarnings("all")
+		T t = (T) observe(externalValueOf(o, new State(merged), merged), merged);
+		return t;
+
+	}
+
+	/**
+	 * Returns the dynamic value of an external value, without copying the lists and maps that it wraps.
+	 * <p>
+	 * Unlike {@link #valueOf(Object)}, the wrapped lists and maps are updated in place to replace references to
+	 * wrappers, and become part of the result, hence the external value must no longer be used. Frozen wrappers, which
+	 * may be shared with other copies, are copied instead. Sharing and cycles are preserved.
+	 * 
+	 * @param external the external value, typically deserialised
+	 * @return the dynamic value
+	 */
+	public static <T> T unwrap(Object external) {
+
 		@SuppressWarnings("all")
-		T t = (T) externalValueOf(o, new HashMap<Integer, Object>(), directives);
+		T t = (T) Externals.unwrap(external);
+		return t;
+
+	}
+
+	/**
+	 * Returns the value copies of a batch of objects based on given copy directives.
+	 * <p>
+	 * The copies share the same directives and copy state, and preserve sharing across objects if the directives
+	 * require it ({@link Directives#preservingSharing()}).
+	 * 
+	 * @param os the objects
+	 * @param directives the copy directives
+	 * @return the dynamic values, in the order of the objects
+	 * @throws Exception if the value copy of some object cannot be returned
+	 */
+	public static <T> List<T> valueOfAll(Iterable<?> os, Directives directives) throws Exception {
+
+		return drain(new Batch<T>(os.iterator(), directives, false));
+
+	}
+
+	/**
+	 * Returns the value copies of a batch of objects based on given copy directives, producing each copy only when it
+	 * is iterated over.
+	 * <p>
+	 * Iteration fails with an {@link IllegalStateException} if some copy cannot be produced.
+	 * 
+	 * @param os the objects
+	 * @param directives the copy directives
+	 * @return an iterator over the dynamic values, in the order of the objects
+	 * @see #valueOfAll(Iterable, Directives)
+	 */
+	public static <T> Iterator<T> valuesOf(Iterable<?> os, Directives directives) {
+
+		return new Batch<T>(os.iterator(), directives, false);
+
+	}
+
+	/**
+	 * Returns the value copies of a batch of objects in a form which is suitable for JAXB serialisation, based on
+	 * given copy directives.
+	 * 
+	 * @param os the objects
+	 * @param directives the copy directives
+	 * @return the dynamic values, in the order of the objects
+	 * @throws Exception if the value copy of some object cannot be returned
+	 * @see #valueOfAll(Iterable, Directives)
+	 */
+	public static <T> List<T> externalValueOfAll(Iterable<?> os, Directives directives) throws Exception {
+
+		return drain(new Batch<T>(os.iterator(), directives, true));
+
+	}
+
+	/**
+	 * Returns the value copies of a batch of objects in a form which is suitable for JAXB serialisation, based on
+	 * given copy directives, producing each copy only when it is iterated over.
+	 * 
+	 * @param os the objects
+	 * @param directives the copy directives
+	 * @return an iterator over the dynamic values, in the order of the objects
+	 * @see #valuesOf(Iterable, Directives)
+	 */
+	public static <T> Iterator<T> externalValuesOf(Iterable<?> os, Directives directives) {
+
+		return new Batch<T>(os.iterator(), directives, true);
+
+	}
+
+	/**
+	 * Returns a {@link ValueStream} over the value copies of a sequence of objects, based on default copy directives.
+	 * 
+	 * @param os the objects
+	 * @return the stream
+	 * @see #streamOf(Iterable, Directives)
+	 */
+	public static <T> ValueStream<T> streamOf(Iterable<?> os) {
+
+		return streamOf(os, by());
+
+	}
+
+	/**
+	 * Returns a {@link ValueStream} over the value copies of a sequence of objects, based on given copy directives.
+	 * <p>
+	 * Like {@link #valuesOf(Iterable, Directives)}, the stream produces each copy only when it is iterated over, and
+	 * holds only the copy state of the current object. Unlike it, the stream can be split for parallel consumption.
+	 * 
+	 * @param os the objects
+	 * @param directives the copy directives
+	 * @return the stream
+	 */
+	public static <T> ValueStream<T> streamOf(Iterable<?> os, Directives directives) {
+
+		return new ValueStream<T>(os, directives);
+
+	}
+
+	/**
+	 * Returns the columnar copy of a collection of objects of the same class, based on default copy directives.
+	 * 
+	 * @param os the objects
+	 * @return the columnar copy
+	 * @throws IllegalArgumentException if the objects are not all instances of the same user-defined class
+	 * @throws Exception if the columnar copy of the objects cannot be returned
+	 */
+	public static Columns columnsOf(Iterable<?> os) throws Exception {
+
+		return columnsOf(os, by());
+
+	}
+
+	/**
+	 * Returns the columnar copy of a collection of objects of the same class, based on given copy directives.
+	 * <p>
+	 * Values that are not stored in dedicated columns are copied as in a single value copy, and preserve sharing
+	 * across rows.
+	 * 
+	 * @param os the objects
+	 * @param directives the copy directives
+	 * @return the columnar copy
+	 * @throws IllegalArgumentException if the objects are not all instances of the same user-defined class
+	 * @throws Exception if the columnar copy of the objects cannot be returned
+	 */
+	public static Columns columnsOf(Iterable<?> os, Directives directives) throws Exception {
+
+		Directives merged = addDefaults(directives);
+
+		return Columns.of(os, new State(merged), merged);
+
+	}
+
+	/**
+	 * Returns a deep clone of an object, based on default copy directives.
+	 * 
+	 * @param o the object
+	 * @return the clone
+	 * @throws Exception if the object cannot be cloned
+	 * @see #cloneOf(Object, Directives)
+	 */
+	public static <T> T cloneOf(T o) throws Exception {
+
+		return cloneOf(o, by());
+
+	}
+
+	/**
+	 * Returns a deep clone of an object, based on given copy directives.
+	 * <p>
+	 * Unlike value copies, clones have the same types as the objects they copy, and preserve their sharing and
+	 * cycles. Fields that the directives exclude are left with their default values in clones. Atomic values, enum
+	 * constants, and objects that the directives declare as immutable are shared rather than cloned. Directives
+	 * that change the values of copies, i.e. mappings, converters, projections, and budgets, do not apply to clones.
+	 * <p>
+	 * Objects are instantiated without running their constructors where the JVM allows it, or else with their
+	 * no-argument constructors. Standard collections and maps of the JDK whose state is captured by their elements,
+	 * such as lists, sets, and hash or sorted maps, are rebuilt from their elements. Other collections and maps,
+	 * including subclasses of standard ones, are cloned as objects.
+	 * 
+	 * @param o the object
+	 * @param directives the copy directives
+	 * @return the clone
+	 * @throws Exception if the object cannot be cloned
+	 */
+	public static <T> T cloneOf(T o, Directives directives) throws Exception {
+
+		Directives merged = addDefaults(directives);
+
+		@SuppressWarnings("all")
+		T t = (T) cloneOf(o, new State(merged), merged);
+		return t;
+
+	}
+
+	/**
+	 * Returns a read-only view of an object as a dynamic value, based on default copy directives.
+	 * 
+	 * @param o the object
+	 * @return the view
+	 * @throws Exception if the view cannot be returned
+	 * @see #viewOf(Object, Directives)
+	 */
+	public static <T> T viewOf(Object o) throws Exception {
+
+		return viewOf(o, by());
+
+	}
+
+	/**
+	 * Returns a read-only view of an object as a dynamic value, based on given copy directives.
+	 * <p>
+	 * Views of objects and maps are maps, views of collections and arrays are lists, and the views of other values
+	 * are the values themselves. Views resolve fields, elements, and entries only when they are accessed, applying
+	 * the exclusions, element exclusions, mappings, and converters of the directives to the values they resolve, and
+	 * they reflect later changes to the object. Views of lists that exclude some of their elements are the exception,
+	 * as they keep the elements they include when they are resolved. Views fail with an {@link IllegalStateException}
+	 * if some value cannot be resolved.
+	 * 
+	 * @param o the object
+	 * @param directives the copy directives
+	 * @return the view
+	 * @throws Exception if the view cannot be returned
+	 */
+	public static <T> T viewOf(Object o, Directives directives) throws Exception {
+
+		@SuppressWarnings("all")
+		T t = (T) View.of(o, addDefaults(directives));
+		return t;
+
+	}
+
+	/**
+	 * Returns the estimated {@link Footprint} of the value copy of an object, based on default copy directives.
+	 * 
+	 * @param o the object
+	 * @return the footprint
+	 * @throws Exception if the footprint cannot be estimated
+	 */
+	public static Footprint footprintOf(Object o) throws Exception {
+
+		return footprintOf(o, by());
+
+	}
+
+	/**
+	 * Returns the estimated {@link Footprint} of the value copy of an object, based on given copy directives.
+	 * <p>
+	 * The estimate follows the directives but their budget, if any, and does not produce the copy.
+	 * 
+	 * @param o the object
+	 * @param directives the copy directives
+	 * @return the footprint
+	 * @throws Exception if the footprint cannot be estimated
+	 */
+	public static Footprint footprintOf(Object o, Directives directives) throws Exception {
+
+		Directives merged = addDefaults(directives);
+
+		return Footprint.estimate(o, new State(merged), merged);
+
+	}
+
+	/**
+	 * Returns <code>true</code> if two dynamic values are structurally equal.
+	 * <p>
+	 * Unlike the <code>equals()</code> of JDK lists and maps, the comparison terminates on values with cycles, which are
+	 * equal if they close their cycles equally far back. External values are equal to the corresponding dynamic values.
+	 * 
+	 * @param v1 the first value
+	 * @param v2 the second value
+	 * @return <code>true</code> if the values are equal
+	 */
+	public static boolean equal(Object v1, Object v2) {
+
+		return Equality.equal(v1, v2);
+
+	}
+
+	/**
+	 * Returns a hash code of a dynamic value which is consistent with {@link #equal(Object, Object)}.
+	 * 
+	 * @param value the value
+	 * @return the hash code
+	 * @throws IllegalArgumentException if the value is not a dynamic value
+	 */
+	public static int hashOf(Object value) {
+
+		return Fingerprint.of(value).hashCode();
+
+	}
+
+	/**
+	 * Returns the value copy of an object in a given {@link Arena}, based on given copy directives.
+	 * <p>
+	 * The value copy is returned as a read-only view over the arena.
+	 * 
+	 * @param o the object
+	 * @param directives the copy directives
+	 * @param arena the arena
+	 * @return the dynamic value
+	 * @throws Exception if the value copy of the object cannot be returned
+	 */
+	public static <T> T valueOf(Object o, Directives directives, Arena arena) throws Exception {
+
+		Directives merged = addDefaults(directives);
+
+		long ref = arenaValueOf(o, new State(merged), merged, arena);
+
+		@SuppressWarnings("all")
+		T t = (T) observe(arena.valueAt(ref), merged);
 		return t;
 
 	}
 
 	// used internally to support recursiones
-	static Object valueOf(Object o, Map<Integer, Object> state, Directives directives) throws Exception {
+	static Object valueOf(Object o, State state, Directives directives) throws Exception {
+		return convertedValueOf(directives.converters().convert(o), state, directives);
+	}
+
+	// used internally for objects that have been converted already, and must not be converted again
+	static Object convertedValueOf(Object o, State state, Directives directives) throws Exception {
+
+		Type type = Type.of(o);
+
+		if (!state.budgeted())
+			return toDynamic(o, type, state, directives);
+
+		Object replacement = state.enter(o, type);
+
+		if (replacement != null)
+			return replacement;
+
+		try {
+			return toDynamic(o, type, state, directives);
+		} finally {
+			state.exit(type);
+		}
+
+	}
+
+	// used internally to support recursion
+	static Object externalValueOf(Object o, State state, Directives directives) throws Exception {
+
+		o = directives.converters().convert(o);
 
-		return Type.of(o).toDynamic(o, state, directives);
+		Type type = Type.of(o);
+
+		if (!state.budgeted())
+			return type.toExternal(o, state, directives);
+
+		Object replacement = state.enter(o, type);
+
+		if (replacement != null)
+			return replacement;
+
+		try {
+			return type.toExternal(o, state, directives);
+		} finally {
+			state.exit(type);
+		}
+
+	}
+
+	// used internally to support recursion
+	static long arenaValueOf(Object o, State state, Directives directives, Arena arena) throws Exception {
+
+		o = directives.converters().convert(o);
+
+		Type type = Type.of(o);
+
+		if (!state.budgeted())
+			return type.toArena(o, state, directives, arena);
+
+		Object replacement = state.enter(o, type);
+
+		if (replacement != null)
+			return arena.atomic(replacement);
+
+		try {
+			return type.toArena(o, state, directives, arena);
+		} finally {
+			state.exit(type);
+		}
 
 	}
 
 	// used internally to support recursion
-	static Object externalValueOf(Object o, Map<Integer, Object> state, Directives directives) throws Exception {
+	static Object cloneOf(Object o, State state, Directives directives) throws Exception {
 
-		return Type.of(o).toExternal(o, state, addDefaults(directives));
+		return Type.of(o).toClone(o, state, directives);
 
 	}
 
-	// helper
-	private static Directives addDefaults(Directives directives) {
+	// helpers
+
+	// copies lists, maps, and objects into the spill of the state, if the copy spills to disk, else on the heap
+	private static Object toDynamic(Object o, Type type, State state, Directives directives) throws Exception {
+
+		if (state.spill() == null || type == Type.atomic || type == Type.voidtype)
+			return type.toDynamic(o, state, directives);
+
+		return state.spill().copy(o, type, state, directives);
+	}
+
+	// atomic objects are their own copies, unless directives convert, truncate, or observe them
+	private static boolean passesThrough(Object o, Directives directives) {
+		return Type.of(o) == Type.atomic && directives.converters().isEmpty() && directives.budget() == null
+				&& directives.schema() == null;
+	}
+
+	private static Object observe(Object value, Directives directives) {
+
+		if (directives.schema() != null)
+			directives.schema().observe(value);
+
+		return value;
+	}
+
+	private static <T> List<T> drain(Batch<T> batch) throws Exception {
+
+		List<T> values = new ArrayList<T>();
+
+		while (batch.hasNext())
+			values.add(batch.copyNext());
+
+		return values;
+	}
+
+	// also used where objects are read as copies would read them (e.g. Flattener)
+	static Directives addDefaults(Directives directives) {
+
+		// leaves client directives untouched, so they can be reused across copies
+		Directives merged = directives.copy();
+
+		merged.usingCopiers(merged.excludes().isEmpty() && merged.mappings().isEmpty()
+				&& merged.elementExcludes().isEmpty());
+
+		return merged.excluding(defaults.excludes()).mapping(defaults.mappings());
+	}
+
+	// copies objects in sequence, merging defaults once and recycling state
+	static class Batch<T> implements Iterator<T> {
+
+		private final Iterator<?> objects;
+		private final Directives directives;
+		private final boolean external;
+		private final State state;
+		private final Interner interner;
+
+		Batch(Iterator<?> objects, Directives directives, boolean external) {
+			this.objects = objects;
+			this.directives = addDefaults(directives);
+			this.state = new State(this.directives);
+			this.external = external;
+			this.interner = !external && this.directives.isInterning() ? new Interner() : null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return objects.hasNext();
+		}
+
+		@Override
+		public T next() {
+			try {
+				return copyNext();
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IllegalStateException("cannot return value copy", e);
+			}
+		}
+
+		T copyNext() throws Exception {
+
+			Object o = objects.next();
+
+			// keeps capacity, so the table is not regrown for every object
+			if (!directives.sharing())
+				state.clear();
+
+			state.restart();
+
+			Object value = external ? externalValueOf(o, state, directives) : valueOf(o, state, directives);
+
+			if (interner != null)
+				value = interner.intern(value);
+
+			observe(value, directives);
+
+			@SuppressWarnings("all")
+			T t = (T) value;
+			return t;
+		}
 
-		return directives.excluding(defaults.excludes()).mapping(defaults.mappings());
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
 	}
 
 }
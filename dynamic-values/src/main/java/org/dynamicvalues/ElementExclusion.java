@@ -0,0 +1,27 @@
+package org.dynamicvalues;
+
+/**
+ * Directs the value copy to exclude the elements of collections and arrays, and the values of maps, that match given
+ * criteria.
+ * <p>
+ * Exclusions are applied to the original elements, before they are converted or copied, hence excluded elements cost
+ * no more than the test. Excluded map values take their keys with them.
+ * 
+ * @author Fabio Simeoni
+ * 
+ * @param <T> the type of the elements
+ * @see Directives#excludingElements(ElementExclusion)
+ * @see Directives#excludingElements(Class, ElementExclusion)
+ * @see Directives#excludingElements(String, ElementExclusion)
+ */
+public interface ElementExclusion<T> {
+
+	/**
+	 * Returns <code>true</code> to exclude a given element from the value copy of its collection, array, or map.
+	 * 
+	 * @param element the element
+	 * @return <code>true</code> to exclude the element
+	 * @throws Exception if the exclusion cannot be applied
+	 */
+	boolean exclude(T element) throws Exception;
+}
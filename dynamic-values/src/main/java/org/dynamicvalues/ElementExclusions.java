@@ -0,0 +1,103 @@
+package org.dynamicvalues;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link ElementExclusion}s of a set of {@link Directives}, with their scopes.
+ * 
+ * @author Fabio Simeoni
+ * 
+ */
+final class ElementExclusions {
+
+	private final List<Scoped> scoped = new ArrayList<Scoped>();
+
+	// set if some exclusion is scoped to a path
+	private boolean paths;
+
+	/**
+	 * Adds an exclusion scoped to the elements of collections at a given path and of a given type.
+	 * 
+	 * @param path the path, or <code>null</code> for all paths
+	 * @param type the type, or <code>null</code> for all types
+	 * @param exclusion the exclusion
+	 */
+	void add(String path, Class<?> type, ElementExclusion<?> exclusion) {
+
+		scoped.add(new Scoped(path, type, exclusion));
+
+		paths = paths || path != null;
+	}
+
+	/**
+	 * Adds all the exclusions of another set.
+	 * 
+	 * @param other the set
+	 */
+	void addAll(ElementExclusions other) {
+
+		scoped.addAll(other.scoped);
+
+		paths = paths || other.paths;
+	}
+
+	/**
+	 * Returns <code>true</code> if there are no exclusions.
+	 * 
+	 * @return <code>true</code> if there are no exclusions
+	 */
+	boolean isEmpty() {
+		return scoped.isEmpty();
+	}
+
+	/**
+	 * Returns <code>true</code> if some exclusion is scoped to a path, so that copies must track their paths.
+	 * 
+	 * @return <code>true</code> if some exclusion is scoped to a path
+	 */
+	boolean scopedToPaths() {
+		return paths;
+	}
+
+	/**
+	 * Returns <code>true</code> if some exclusion excludes a given element of a collection at a given path.
+	 * 
+	 * @param element the element
+	 * @param path the path of the collection, or <code>null</code> if it is not in a field
+	 * @return <code>true</code> if the element is excluded
+	 * @throws Exception if some exclusion cannot be applied
+	 */
+	@SuppressWarnings("unchecked")
+	boolean exclude(Object element, String path) throws Exception {
+
+		for (Scoped s : scoped) {
+
+			if (s.path != null && !s.path.equals(path))
+				continue;
+
+			if (s.type != null && !s.type.isInstance(element))
+				continue;
+
+			if (((ElementExclusion<Object>) s.exclusion).exclude(element))
+				return true;
+		}
+
+		return false;
+	}
+
+	// helpers
+
+	private static final class Scoped {
+
+		final String path;
+		final Class<?> type;
+		final ElementExclusion<?> exclusion;
+
+		Scoped(String path, Class<?> type, ElementExclusion<?> exclusion) {
+			this.path = path;
+			this.type = type;
+			this.exclusion = exclusion;
+		}
+	}
+}
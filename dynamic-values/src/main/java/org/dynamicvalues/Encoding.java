@@ -0,0 +1,197 @@
+package org.dynamicvalues;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dynamicvalues.Externals.ValueList;
+import org.dynamicvalues.Externals.ValueMap;
+
+/**
+ * Compact binary encoding of dynamic values.
+ * <p>
+ * Dynamic lists and dynamic maps are numbered in the order in which they are first encountered, and later occurrences
+ * are encoded as references to their number, so that sharing and cycles survive a round-trip.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+final class Encoding {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final byte NULL = 0, STRING = 1, BOOLEAN = 2, CHAR = 3, BYTE = 4, SHORT = 5, INT = 6, LONG = 7, FLOAT = 8,
+			DOUBLE = 9, LIST = 10, MAP = 11, REF = 12;
+
+	private Encoding() {
+	}
+
+	/**
+	 * Returns the encoding of a dynamic value.
+	 *
+	 * @param value the value
+	 * @return the encoding
+	 * @throws Exception if the value is not a dynamic value
+	 */
+	static byte[] encode(Object value) throws Exception {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		encode(value, out, new IdentityHashMap<Object, Integer>());
+
+		out.flush();
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a dynamic value from the current position of a buffer, advancing the position past its encoding.
+	 *
+	 * @param buffer the buffer
+	 * @return the value
+	 * @throws Exception if the buffer does not contain a valid encoding
+	 */
+	static Object decode(ByteBuffer buffer) throws Exception {
+
+		return decode(buffer, new ArrayList<Object>());
+	}
+
+	// helpers
+
+	private static void encode(Object o, DataOutputStream out, Map<Object, Integer> seen) throws Exception {
+
+		if (o == null) {
+			out.writeByte(NULL);
+			return;
+		}
+
+		if (o instanceof ValueMap)
+			o = ValueMap.class.cast(o).elements;
+		else if (o instanceof ValueList)
+			o = ValueList.class.cast(o).elements;
+		else
+			o = Spill.resolve(o);
+
+		if (o instanceof String) {
+			byte[] chars = String.class.cast(o).getBytes(UTF8);
+			out.writeByte(STRING);
+			out.writeInt(chars.length);
+			out.write(chars);
+		} else if (o instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) o);
+		} else if (o instanceof Character) {
+			out.writeByte(CHAR);
+			out.writeChar((Character) o);
+		} else if (o instanceof Byte) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) o);
+		} else if (o instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeShort((Short) o);
+		} else if (o instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer) o);
+		} else if (o instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) o);
+		} else if (o instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) o);
+		} else if (o instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) o);
+		} else if (o instanceof List || o instanceof Map) {
+
+			Integer ref = seen.get(o);
+
+			if (ref != null) {
+				out.writeByte(REF);
+				out.writeInt(ref);
+				return;
+			}
+
+			// number it _before_ recursion, to close cycles
+			seen.put(o, seen.size());
+
+			if (o instanceof List) {
+				List<?> list = (List<?>) o;
+				out.writeByte(LIST);
+				out.writeInt(list.size());
+				for (Object e : list)
+					encode(e, out, seen);
+			} else {
+				Map<?, ?> map = (Map<?, ?>) o;
+				out.writeByte(MAP);
+				out.writeInt(map.size());
+				for (Map.Entry<?, ?> e : map.entrySet()) {
+					encode(e.getKey(), out, seen);
+					encode(e.getValue(), out, seen);
+				}
+			}
+		} else
+			throw new IllegalArgumentException("cannot encode " + o + ": instances of " + o.getClass()
+					+ " are not dynamic values");
+	}
+
+	private static Object decode(ByteBuffer in, List<Object> seen) throws Exception {
+
+		byte tag = in.get();
+
+		switch (tag) {
+
+		case NULL:
+			return null;
+		case STRING:
+			byte[] chars = new byte[in.getInt()];
+			in.get(chars);
+			return new String(chars, UTF8);
+		case BOOLEAN:
+			return in.get() != 0;
+		case CHAR:
+			return in.getChar();
+		case BYTE:
+			return in.get();
+		case SHORT:
+			return in.getShort();
+		case INT:
+			return in.getInt();
+		case LONG:
+			return in.getLong();
+		case FLOAT:
+			return in.getFloat();
+		case DOUBLE:
+			return in.getDouble();
+		case REF:
+			return seen.get(in.getInt());
+		case LIST: {
+			int size = in.getInt();
+			List<Object> list = new ArrayList<Object>(size);
+			seen.add(list);
+			for (int i = 0; i < size; i++)
+				list.add(decode(in, seen));
+			return list;
+		}
+		case MAP: {
+			int size = in.getInt();
+			Map<Object, Object> map = new LinkedHashMap<Object, Object>(size * 4 / 3 + 1);
+			seen.add(map);
+			for (int i = 0; i < size; i++) {
+				Object key = decode(in, seen);
+				map.put(key, decode(in, seen));
+			}
+			return map;
+		}
+		default:
+			throw new IllegalStateException("invalid encoding: unknown tag " + tag + " at " + (in.position() - 1));
+		}
+	}
+}
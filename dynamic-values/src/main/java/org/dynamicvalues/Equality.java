@@ -0,0 +1,184 @@
+package org.dynamicvalues;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dynamicvalues.Externals.ValueList;
+import org.dynamicvalues.Externals.ValueMap;
+import org.dynamicvalues.Fingerprint.Identity;
+
+/**
+ * The structural equality of dynamic values, consistent with their {@link Fingerprint}s.
+ * <p>
+ * Values are compared in a single, parallel pass which tolerates sharing and cycles: lists and maps are equal if they
+ * have equal elements and close their cycles equally far back, regardless of their implementations and of whether
+ * they are external values or not.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+final class Equality {
+
+	/**
+	 * Returns <code>true</code> if two dynamic values are structurally equal.
+	 *
+	 * @param v1 the first value
+	 * @param v2 the second value
+	 * @return <code>true</code> if the values are equal
+	 */
+	static boolean equal(Object v1, Object v2) {
+		return new Equality().equal(v1, v2, 0);
+	}
+
+	// pairs of values already found equal
+	private final Set<Pair> memo = new HashSet<Pair>();
+
+	// depths of the values under comparison
+	private final Map<Identity, Integer> path1 = new HashMap<Identity, Integer>();
+	private final Map<Identity, Integer> path2 = new HashMap<Identity, Integer>();
+
+	// smallest depth reached by back-references in the current values
+	private int reach = Integer.MAX_VALUE;
+
+	private Equality() {
+	}
+
+	// helpers
+
+	private boolean equal(Object v1, Object v2, int depth) {
+
+		if (v1 == v2)
+			return true;
+
+		if (v1 == null || v2 == null)
+			return false;
+
+		boolean list1 = v1 instanceof List || v1 instanceof ValueList, list2 = v2 instanceof List
+				|| v2 instanceof ValueList;
+		boolean map1 = v1 instanceof Map || v1 instanceof ValueMap, map2 = v2 instanceof Map || v2 instanceof ValueMap;
+
+		if (!list1 && !map1 && !list2 && !map2)
+			return v1.equals(v2);
+
+		if (list1 != list2 || map1 != map2)
+			return false;
+
+		// differing hashes, where known, rule out equality early
+		int hash1 = cachedHashOf(v1), hash2 = cachedHashOf(v2);
+
+		if (hash1 != 0 && hash2 != 0 && hash1 != hash2)
+			return false;
+
+		Identity id1 = Identity.of(v1), id2 = Identity.of(v2);
+
+		Pair pair = new Pair(id1, id2);
+
+		if (memo.contains(pair))
+			return true;
+
+		// cycles must close at the same depth
+		Integer ancestor1 = path1.get(id1), ancestor2 = path2.get(id2);
+
+		if (ancestor1 != null || ancestor2 != null) {
+
+			if (ancestor1 == null || !ancestor1.equals(ancestor2))
+				return false;
+
+			reach = Math.min(reach, ancestor1);
+
+			return true;
+		}
+
+		path1.put(id1, depth);
+		path2.put(id2, depth);
+
+		int outerReach = reach;
+
+		reach = Integer.MAX_VALUE;
+
+		boolean equal = list1 ? lists(v1, v2, depth) : maps(v1, v2, depth);
+
+		path1.remove(id1);
+		path2.remove(id2);
+
+		// as for fingerprints, comparisons of values that close cycles above them do not hold elsewhere
+		if (equal && reach >= depth)
+			memo.add(pair);
+
+		reach = Math.min(reach, outerReach);
+
+		return equal;
+	}
+
+	private boolean lists(Object v1, Object v2, int depth) {
+
+		List<?> l1 = v1 instanceof ValueList ? ((ValueList) v1).elements : (List<?>) v1;
+		List<?> l2 = v2 instanceof ValueList ? ((ValueList) v2).elements : (List<?>) v2;
+
+		if (l1.size() != l2.size())
+			return false;
+
+		for (int i = 0; i < l1.size(); i++)
+			if (!equal(l1.get(i), l2.get(i), depth + 1))
+				return false;
+
+		return true;
+	}
+
+	private boolean maps(Object v1, Object v2, int depth) {
+
+		Map<?, ?> m1 = v1 instanceof ValueMap ? ((ValueMap) v1).elements : (Map<?, ?>) v1;
+		Map<?, ?> m2 = v2 instanceof ValueMap ? ((ValueMap) v2).elements : (Map<?, ?>) v2;
+
+		if (m1.size() != m2.size())
+			return false;
+
+		for (Map.Entry<?, ?> e : m1.entrySet()) {
+
+			Object value = m2.get(e.getKey());
+
+			if (value == null && !m2.containsKey(e.getKey()))
+				return false;
+
+			if (!equal(e.getValue(), value, depth + 1))
+				return false;
+		}
+
+		return true;
+	}
+
+	private static int cachedHashOf(Object v) {
+
+		if (v instanceof ValueMap)
+			return ((ValueMap) v).hash;
+
+		if (v instanceof ValueList)
+			return ((ValueList) v).hash;
+
+		return 0;
+	}
+
+	private static final class Pair {
+
+		final Identity id1;
+		final Identity id2;
+
+		Pair(Identity id1, Identity id2) {
+			this.id1 = id1;
+			this.id2 = id2;
+		}
+
+		@Override
+		public int hashCode() {
+			return id1.hashCode() * 31 + id2.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Pair && ((Pair) obj).id1.equals(id1) && ((Pair) obj).id2.equals(id2);
+		}
+	}
+}
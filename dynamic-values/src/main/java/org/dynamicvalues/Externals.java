@@ -1,10 +1,13 @@
 package org.dynamicvalues;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 
 import javax.xml.bind.annotation.XmlElement;
@@ -33,6 +36,10 @@ public class Externals {
 		@XmlElement(name="entries")
 		public Map<Object,Object> elements;
 		
+		// cached once frozen, 0 if not yet computed
+		transient int hash;
+		transient boolean frozen;
+		
 		public ValueMap(Map<Object,Object> elements) {
 			this.elements=elements;
 
@@ -43,11 +50,34 @@ public class Externals {
 			return elements.toString();
 		}
 
+		/**
+		 * Makes this map unmodifiable, so that its hash code is computed only once.
+		 * <p>
+		 * The values in a frozen map must not change either.
+		 * 
+		 * @return this map
+		 */
+		public ValueMap freeze() {
+			
+			if (!frozen) {
+				elements = Collections.unmodifiableMap(elements);
+				frozen = true;
+			}
+			
+			return this;
+		}
+
 		@Override
 		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + ((elements == null) ? 0 : elements.hashCode());
+			
+			if (hash != 0)
+				return hash;
+			
+			int result = hashOf(this, elements);
+			
+			if (frozen)
+				hash = result;
+			
 			return result;
 		}
 
@@ -60,12 +90,9 @@ public class Externals {
 			if (getClass() != obj.getClass())
 				return false;
 			ValueMap other = (ValueMap) obj;
-			if (elements == null) {
-				if (other.elements != null)
-					return false;
-			} else if (!elements.equals(other.elements))
-				return false;
-			return true;
+			if (elements == null || other.elements == null)
+				return elements == other.elements;
+			return Equality.equal(this, other);
 		}
 		
 		
@@ -83,6 +110,10 @@ public class Externals {
 		@XmlElement(name="element")
 		public List<Object> elements;
 		
+		// cached once frozen, 0 if not yet computed
+		transient int hash;
+		transient boolean frozen;
+		
 		@SuppressWarnings("all")
 		public ValueList(List<Object> elements) {
 			this.elements=elements;
@@ -98,11 +129,34 @@ public class Externals {
 			return elements.iterator();
 		}
 
+		/**
+		 * Makes this list unmodifiable, so that its hash code is computed only once.
+		 * <p>
+		 * The values in a frozen list must not change either.
+		 * 
+		 * @return this list
+		 */
+		public ValueList freeze() {
+			
+			if (!frozen) {
+				elements = Collections.unmodifiableList(elements);
+				frozen = true;
+			}
+			
+			return this;
+		}
+
 		@Override
 		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + ((elements == null) ? 0 : elements.hashCode());
+			
+			if (hash != 0)
+				return hash;
+			
+			int result = hashOf(this, elements);
+			
+			if (frozen)
+				hash = result;
+			
 			return result;
 		}
 
@@ -115,20 +169,126 @@ public class Externals {
 			if (getClass() != obj.getClass())
 				return false;
 			ValueList other = (ValueList) obj;
-			if (elements == null) {
-				if (other.elements != null)
-					return false;
-			} else if (!elements.equals(other.elements))
-				return false;
-			return true;
+			if (elements == null || other.elements == null)
+				return elements == other.elements;
+			return Equality.equal(this, other);
 		}
 		
 		
 	}
 	
 	
+	/**
+	 * Returns the dynamic value of an external value, reusing the lists and maps that it wraps.
+	 * <p>
+	 * Wrapped lists and maps are updated in place to refer to the lists and maps wrapped in turn by their elements, and
+	 * are copied only if they are frozen, since frozen values may be shared with other copies. Sharing and cycles are
+	 * preserved.
+	 * 
+	 * @param value the external value
+	 * @return the dynamic value
+	 */
+	static Object unwrap(Object value) {
+		return unwrap(value, new IdentityHashMap<Object, Object>());
+	}
+	
 	//helpers
 	
+	private static Object unwrap(Object value, Map<Object,Object> unwrapped) {
+		
+		if (!(value instanceof ValueMap || value instanceof ValueList))
+			return value;
+		
+		Object known = unwrapped.get(value);
+		
+		if (known != null)
+			return known;
+		
+		return value instanceof ValueMap ? unwrap((ValueMap) value, unwrapped) : unwrap((ValueList) value, unwrapped);
+	}
+	
+	private static Map<Object,Object> unwrap(ValueMap vmap, Map<Object,Object> unwrapped) {
+		
+		Map<Object,Object> elements = vmap.frozen ? new LinkedHashMap<Object, Object>(vmap.elements.size() * 4 / 3 + 1) : vmap.elements;
+		
+		// recorded _before_ recursion, to close cycles
+		unwrapped.put(vmap, elements);
+		
+		if (vmap.frozen) {
+			
+			for (Map.Entry<Object,Object> e : vmap.elements.entrySet())
+				elements.put(unwrap(e.getKey(), unwrapped), unwrap(e.getValue(), unwrapped));
+			
+			return elements;
+		}
+		
+		boolean wrappedKeys = false;
+		
+		for (Map.Entry<Object,Object> e : elements.entrySet()) {
+			
+			wrappedKeys = wrappedKeys || e.getKey() instanceof ValueMap || e.getKey() instanceof ValueList;
+			
+			Object value = e.getValue();
+			Object plain = unwrap(value, unwrapped);
+			
+			if (plain != value)
+				e.setValue(plain);
+		}
+		
+		// rare: keys change hashes, so their entries are re-inserted in order
+		if (wrappedKeys) {
+			
+			List<Map.Entry<Object,Object>> entries = new ArrayList<Map.Entry<Object,Object>>(elements.entrySet());
+			
+			elements.clear();
+			
+			for (Map.Entry<Object,Object> e : entries)
+				elements.put(unwrap(e.getKey(), unwrapped), e.getValue());
+		}
+		
+		return elements;
+	}
+	
+	private static List<Object> unwrap(ValueList vlist, Map<Object,Object> unwrapped) {
+		
+		List<Object> elements = vlist.frozen ? new ArrayList<Object>(vlist.elements.size()) : vlist.elements;
+		
+		unwrapped.put(vlist, elements);
+		
+		if (vlist.frozen) {
+			
+			for (Object element : vlist.elements)
+				elements.add(unwrap(element, unwrapped));
+			
+			return elements;
+		}
+		
+		for (ListIterator<Object> it = elements.listIterator(); it.hasNext();) {
+			
+			Object element = it.next();
+			Object plain = unwrap(element, unwrapped);
+			
+			if (plain != element)
+				it.set(plain);
+		}
+		
+		return elements;
+	}
+	
+	// structural, so consistent with equality and safe on cycles
+	private static int hashOf(Object value, Object elements) {
+		
+		if (elements == null)
+			return 0;
+		
+		try {
+			return Fingerprint.of(value).hashCode();
+		}
+		catch(IllegalArgumentException e) {
+			return elements.hashCode(); // holds more than dynamic values
+		}
+	}
+	
 	
 	@XmlType
 	static class Entries {
@@ -159,7 +319,7 @@ public class Externals {
 		@Override
 		public Map<Object, Object> unmarshal(Entries entries) throws Exception {
 			
-			Map<Object,Object> in = new HashMap<Object,Object>();
+			Map<Object,Object> in = new HashMap<Object,Object>(entries.value.size() * 4 / 3 + 1);
 			
 			for (Entry e : entries.value)
 				in.put(e.key,e.value);
@@ -0,0 +1,330 @@
+package org.dynamicvalues;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dynamicvalues.Externals.ValueList;
+import org.dynamicvalues.Externals.ValueMap;
+
+/**
+ * A 128-bit structural hash of a dynamic value.
+ * <p>
+ * Dynamic values with equal structure and equal atomic values have equal fingerprints, regardless of the
+ * implementations of their lists and maps and of the order in which their maps are iterated over. External values have
+ * the same fingerprints as the corresponding dynamic values.
+ * <p>
+ * Fingerprints are computed in a single pass which tolerates sharing and cycles. Fingerprints of shared values are
+ * computed once per pass, and can be remembered across passes with {@link Fingerprints}.
+ * <p>
+ * Fingerprints are meant as compact keys for dynamic values, e.g. in caches. Values with different fingerprints are
+ * certainly different, while values with equal fingerprints are equal with overwhelming probability.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+public final class Fingerprint {
+
+	/**
+	 * Returns the fingerprint of a dynamic value.
+	 *
+	 * @param value the value
+	 * @return the fingerprint
+	 * @throws IllegalArgumentException if the value is not a dynamic value
+	 */
+	public static Fingerprint of(Object value) {
+		return new Walk(new HashMap<Identity, Fingerprint>()).fingerprint(value, 0);
+	}
+
+	private final long high;
+	private final long low;
+
+	Fingerprint(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	/**
+	 * Returns a 64-bit digest of this fingerprint.
+	 *
+	 * @return the digest
+	 */
+	public long longValue() {
+		return high ^ low;
+	}
+
+	/**
+	 * Returns the most significant 64 bits of this fingerprint.
+	 *
+	 * @return the bits
+	 */
+	public long high() {
+		return high;
+	}
+
+	/**
+	 * Returns the least significant 64 bits of this fingerprint.
+	 *
+	 * @return the bits
+	 */
+	public long low() {
+		return low;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (low ^ (low >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof Fingerprint))
+			return false;
+		Fingerprint other = (Fingerprint) obj;
+		return high == other.high && low == other.low;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%016x%016x", high, low);
+	}
+
+	// the order of keys in canonical copies: null, then atomics by type and natural order, then lists and maps by
+	// fingerprint
+	static final Comparator<Object> canonicalOrder = new Comparator<Object>() {
+
+		@Override
+		public int compare(Object o1, Object o2) {
+
+			if (o1 == o2)
+				return 0;
+
+			int rank1 = rank(o1), rank2 = rank(o2);
+
+			if (rank1 != rank2)
+				return rank1 < rank2 ? -1 : 1;
+
+			if (rank1 < LIST)
+				return naturally(o1, o2);
+
+			Fingerprint f1 = of(o1), f2 = of(o2);
+
+			return f1.high != f2.high ? compare(f1.high, f2.high) : compare(f1.low, f2.low);
+		}
+
+		// atomics of the same rank have the same type, hence are comparable with each other
+		@SuppressWarnings("unchecked")
+		private int naturally(Object o1, Object o2) {
+			return ((Comparable<Object>) o1).compareTo(o2);
+		}
+
+		private int compare(long l1, long l2) {
+			return l1 < l2 ? -1 : l1 == l2 ? 0 : 1;
+		}
+	};
+
+	// helpers
+
+	private static final byte NULL = 0, STRING = 1, BOOLEAN = 2, CHAR = 3, BYTE = 4, SHORT = 5, INT = 6, LONG = 7,
+			FLOAT = 8, DOUBLE = 9, LIST = 10, MAP = 11, BACKREF = 12;
+
+	private static final long SEED1 = 0x9E3779B97F4A7C15L, SEED2 = 0xC2B2AE3D27D4EB4FL;
+
+	private static int rank(Object o) {
+
+		if (o == null)
+			return NULL;
+		if (o instanceof String)
+			return STRING;
+		if (o instanceof Boolean)
+			return BOOLEAN;
+		if (o instanceof Character)
+			return CHAR;
+		if (o instanceof Byte)
+			return BYTE;
+		if (o instanceof Short)
+			return SHORT;
+		if (o instanceof Integer)
+			return INT;
+		if (o instanceof Long)
+			return LONG;
+		if (o instanceof Float)
+			return FLOAT;
+		if (o instanceof Double)
+			return DOUBLE;
+		if (o instanceof List || o instanceof ValueList)
+			return LIST;
+		if (o instanceof Map || o instanceof ValueMap)
+			return MAP;
+
+		throw new IllegalArgumentException("cannot fingerprint " + o + ": instances of " + o.getClass()
+				+ " are not dynamic values");
+	}
+
+	// murmur3 finaliser
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static Fingerprint atomic(int tag, long bits) {
+		return new Fingerprint(mix(SEED1 ^ tag * 31 + bits), mix(SEED2 ^ mix(bits + tag)));
+	}
+
+	private static Fingerprint string(String s) {
+
+		long h1 = SEED1 ^ s.length(), h2 = SEED2 ^ s.length();
+
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			h1 = (h1 ^ c) * 0x100000001B3L;
+			h2 = (h2 ^ c) * 0x5BD1E9955BD1E995L + i;
+		}
+
+		return new Fingerprint(mix(h1 ^ STRING), mix(h2 + STRING));
+	}
+
+	// identity of lists and maps, including those that are re-created on access
+	static final class Identity {
+
+		static Identity of(Object o) {
+
+			if (o instanceof Arena.Node)
+				return new Identity(((Arena.Node) o).arena(), ((Arena.Node) o).address());
+
+			return new Identity(Spill.resolve(o), 0);
+		}
+
+		final Object target;
+		final long address;
+
+		private Identity(Object target, long address) {
+			this.target = target;
+			this.address = address;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(target) * 31 + (int) (address ^ (address >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Identity && ((Identity) obj).target == target && ((Identity) obj).address == address;
+		}
+	}
+
+	// a single pass over a value
+	static final class Walk {
+
+		// fingerprints of completed values
+		private final Map<Identity, Fingerprint> memo;
+
+		// depths of the values under fingerprinting
+		private final Map<Identity, Integer> path = new HashMap<Identity, Integer>();
+
+		// smallest depth reached by back-references in the current value
+		private int reach = Integer.MAX_VALUE;
+
+		Walk(Map<Identity, Fingerprint> memo) {
+			this.memo = memo;
+		}
+
+		Fingerprint fingerprint(Object o, int depth) {
+
+			int rank = rank(o);
+
+			switch (rank) {
+			case NULL:
+				return atomic(NULL, 0);
+			case STRING:
+				return string((String) o);
+			case BOOLEAN:
+				return atomic(BOOLEAN, ((Boolean) o) ? 1 : 0);
+			case CHAR:
+				return atomic(CHAR, (Character) o);
+			case BYTE:
+			case SHORT:
+			case INT:
+			case LONG:
+				return atomic(rank, ((Number) o).longValue());
+			case FLOAT:
+				return atomic(FLOAT, Float.floatToIntBits((Float) o));
+			case DOUBLE:
+				return atomic(DOUBLE, Double.doubleToLongBits((Double) o));
+			}
+
+			Identity identity = Identity.of(o);
+
+			Fingerprint known = memo.get(identity);
+
+			if (known != null)
+				return known;
+
+			// a cycle: the fingerprint depends on how far back it closes
+			Integer ancestor = path.get(identity);
+
+			if (ancestor != null) {
+				reach = Math.min(reach, ancestor);
+				return atomic(BACKREF, depth - ancestor);
+			}
+
+			path.put(identity, depth);
+
+			int outerReach = reach;
+
+			reach = Integer.MAX_VALUE;
+
+			Fingerprint fingerprint = rank == LIST ? list(o, depth) : map(o, depth);
+
+			path.remove(identity);
+
+			// values that close cycles above them fingerprint differently from different entry points
+			if (reach >= depth)
+				memo.put(identity, fingerprint);
+
+			reach = Math.min(reach, outerReach);
+
+			return fingerprint;
+		}
+
+		private Fingerprint list(Object o, int depth) {
+
+			List<?> list = o instanceof ValueList ? ((ValueList) o).elements : (List<?>) o;
+
+			long h1 = SEED1 ^ LIST ^ list.size(), h2 = SEED2 + LIST + list.size();
+
+			for (Object e : list) {
+				Fingerprint f = fingerprint(e, depth + 1);
+				h1 = mix(h1 * 31 + f.high);
+				h2 = mix(h2 ^ f.low) + 0x632BE59BD9B4E019L;
+			}
+
+			return new Fingerprint(h1, h2);
+		}
+
+		private Fingerprint map(Object o, int depth) {
+
+			Map<?, ?> map = o instanceof ValueMap ? ((ValueMap) o).elements : (Map<?, ?>) o;
+
+			// commutative, so independent of iteration order
+			long sum1 = 0, sum2 = 0;
+
+			for (Map.Entry<?, ?> e : map.entrySet()) {
+				Fingerprint k = fingerprint(e.getKey(), depth + 1);
+				Fingerprint v = fingerprint(e.getValue(), depth + 1);
+				sum1 += mix(k.high * 31 + v.high);
+				sum2 += mix(k.low ^ mix(v.low + SEED2));
+			}
+
+			return new Fingerprint(mix(SEED1 ^ MAP ^ map.size() ^ sum1), mix(SEED2 + MAP + map.size() + sum2));
+		}
+	}
+}
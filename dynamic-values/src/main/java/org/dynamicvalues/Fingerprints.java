@@ -0,0 +1,61 @@
+package org.dynamicvalues;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.dynamicvalues.Fingerprint.Identity;
+import org.dynamicvalues.Fingerprint.Walk;
+
+/**
+ * Remembers the {@link Fingerprint}s of dynamic values, so that they are computed once per value.
+ * <p>
+ * The fingerprints of lists and maps are remembered by identity, including those of their nested lists and maps.
+ * Values that are fingerprinted again after they have changed must be {@link #forget(Object)}ed first.
+ * <p>
+ * Instances hold strong references to the values they have fingerprinted. They are safe for use by multiple threads.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+public class Fingerprints {
+
+	private final Map<Identity, Fingerprint> memo = new HashMap<Identity, Fingerprint>();
+
+	/**
+	 * Returns the fingerprint of a dynamic value.
+	 *
+	 * @param value the value
+	 * @return the fingerprint
+	 * @throws IllegalArgumentException if the value is not a dynamic value
+	 */
+	public synchronized Fingerprint of(Object value) {
+		return new Walk(memo).fingerprint(value, 0);
+	}
+
+	/**
+	 * Forgets the fingerprint of a dynamic value, if it has one.
+	 * <p>
+	 * Fingerprints of values that contain the value are not forgotten.
+	 *
+	 * @param value the value
+	 */
+	public synchronized void forget(Object value) {
+		memo.remove(Identity.of(value));
+	}
+
+	/**
+	 * Forgets all fingerprints.
+	 */
+	public synchronized void clear() {
+		memo.clear();
+	}
+
+	/**
+	 * Returns the number of remembered fingerprints.
+	 *
+	 * @return the number of fingerprints
+	 */
+	public synchronized int size() {
+		return memo.size();
+	}
+}
@@ -0,0 +1,618 @@
+package org.dynamicvalues;
+
+import static org.dynamicvalues.Directives.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dynamicvalues.Externals.ValueList;
+import org.dynamicvalues.Externals.ValueMap;
+
+/**
+ * Writes a stream of objects as a flat table, in CSV or TSV format.
+ * <p>
+ * Objects are read under the directives of value copies (see {@link Dynamic#valueOf(Object, Directives)}), one at the
+ * time, and are flattened into rows without being copied first. The fields of nested objects and maps become columns
+ * with dotted names (e.g. <code>address.city</code>).
+ * Lists are either joined into a single cell with a delimiter (by default), or exploded into as many rows as they have
+ * elements ({@link #exploding()}). Joined lists of maps produce a cell per nested column, with a slot for each element.
+ * Delimiters and backslashes within slots are escaped with backslashes.
+ * <p>
+ * The columns of the table are given upfront ({@link #columns(String...)}), or else are the columns of the first row.
+ * Cells of other columns are not written. Only the cells of the current object are held in memory, and its rows are
+ * written as they are combined, so tables can grow indefinitely:
+ *
+ * <pre>
+ * Flattener flattener = Flattener.csv(writer).with(by().excluding(...)).joining(";");
+ *
+ * flattener.writeAll(objects);
+ *
+ * flattener.close();
+ * </pre>
+ *
+ * Cells follow the canonical order of fields (see {@link Directives#canonical()}).
+ *
+ * @author Fabio Simeoni
+ *
+ */
+public class Flattener implements Closeable {
+
+	/**
+	 * The name of the column of atomic values at the top of the table.
+	 */
+	public static final String VALUE = "value";
+
+	/**
+	 * Creates a flattener that writes comma-separated values to a given writer, quoting cells as per RFC 4180.
+	 *
+	 * @param writer the writer
+	 * @return the flattener
+	 */
+	public static Flattener csv(Writer writer) {
+		return new Flattener(writer, ',');
+	}
+
+	/**
+	 * Creates a flattener that writes tab-separated values to a given writer, escaping tabs, line breaks, and
+	 * backslashes in cells with backslashes.
+	 *
+	 * @param writer the writer
+	 * @return the flattener
+	 */
+	public static Flattener tsv(Writer writer) {
+		return new Flattener(writer, '\t');
+	}
+
+	private final Writer writer;
+	private final char separator;
+
+	private Directives directives = by();
+	private boolean exploding;
+	private String delimiter = "|";
+	private boolean header = true;
+
+	private List<String> columns;
+	private long rows;
+
+	// reused across rows
+	private final StringBuilder line = new StringBuilder();
+	private final Map<Object, Object> path = new IdentityHashMap<Object, Object>();
+
+	private Flattener(Writer writer, char separator) {
+		this.writer = writer;
+		this.separator = separator;
+	}
+
+	/**
+	 * Copies objects with given directives.
+	 *
+	 * @param directives the directives
+	 * @return this flattener
+	 */
+	public Flattener with(Directives directives) {
+		this.directives = directives;
+		return this;
+	}
+
+	/**
+	 * Joins the elements of lists in single cells, with a given delimiter.
+	 * <p>
+	 * Occurrences of the delimiter and of backslashes within elements are escaped with backslashes.
+	 *
+	 * @param delimiter the delimiter
+	 * @return this flattener
+	 * @throws IllegalArgumentException if the delimiter is empty
+	 */
+	public Flattener joining(String delimiter) {
+		if (delimiter.isEmpty())
+			throw new IllegalArgumentException("delimiters cannot be empty");
+		this.exploding = false;
+		this.delimiter = delimiter;
+		return this;
+	}
+
+	/**
+	 * Explodes lists into a row for each of their elements, repeating the cells outside the lists.
+	 * <p>
+	 * Objects with many exploded lists produce the rows of all the combinations of their elements, which are written
+	 * one at a time.
+	 *
+	 * @return this flattener
+	 */
+	public Flattener exploding() {
+		this.exploding = true;
+		return this;
+	}
+
+	/**
+	 * Writes given columns, in the given order.
+	 *
+	 * @param columns the columns
+	 * @return this flattener
+	 */
+	public Flattener columns(String... columns) {
+		this.columns = Arrays.asList(columns);
+		return this;
+	}
+
+	/**
+	 * Does not write a header row with the names of the columns.
+	 *
+	 * @return this flattener
+	 */
+	public Flattener withoutHeader() {
+		this.header = false;
+		return this;
+	}
+
+	/**
+	 * Writes the rows of a given object.
+	 *
+	 * @param o the object
+	 * @return the number of rows written
+	 * @throws Exception if the object cannot be read or written
+	 */
+	public long write(Object o) throws Exception {
+		return writeAll(Collections.singletonList(o));
+	}
+
+	/**
+	 * Writes the rows of given objects, reading each object only when the rows of the previous one have been written.
+	 *
+	 * @param objects the objects
+	 * @return the number of rows written
+	 * @throws Exception if the objects cannot be read or written
+	 */
+	public long writeAll(Iterable<?> objects) throws Exception {
+
+		long before = rows;
+
+		Directives merged = Dynamic.addDefaults(directives.copy().canonical());
+
+		State state = new State(merged);
+
+		for (Object o : objects) {
+
+			state.clear();
+			state.restart();
+
+			List<Object> parts = new ArrayList<Object>();
+
+			walk(o, null, parts, state, merged);
+
+			combine(new Rest(parts, 0, null), new LinkedHashMap<String, String>());
+		}
+
+		return rows - before;
+	}
+
+	/**
+	 * Returns the number of rows written so far, excluding the header.
+	 *
+	 * @return the number of rows
+	 */
+	public long rows() {
+		return rows;
+	}
+
+	/**
+	 * Flushes the rows written so far to the underlying writer.
+	 *
+	 * @throws IOException if the rows cannot be flushed
+	 */
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	/**
+	 * Flushes the rows written so far and closes the underlying writer.
+	 */
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+
+	// helpers
+
+	// the rows of a value are a sequence of parts, each either cells by column, or alternative sequences, one for each
+	// element of an exploded list, and the rows are all the combinations of the alternatives
+
+	// adds the parts of the rows of an object, under a given column (null at the top)
+	private void walk(Object o, String column, List<Object> parts, State state, Directives directives)
+			throws Exception {
+
+		o = directives.converters().convert(o);
+
+		Type type = Type.of(o);
+
+		if (!state.budgeted()) {
+			walk(o, type, column, parts, state, directives);
+			return;
+		}
+
+		Object replacement = state.enter(o, type);
+
+		if (replacement != null) {
+			cell(replacement, column, parts);
+			return;
+		}
+
+		try {
+			walk(o, type, column, parts, state, directives);
+		} finally {
+			state.exit(type);
+		}
+	}
+
+	private void walk(Object o, Type type, String column, List<Object> parts, State state, Directives directives)
+			throws Exception {
+
+		if (type == Type.atomic || type == Type.voidtype) {
+			cell(o, column, parts);
+			return;
+		}
+
+		// cycles are cut where they close
+		if (path.containsKey(o))
+			return;
+
+		path.put(o, o);
+
+		try {
+
+			switch (type) {
+			case valuemap:
+				walkMap(((ValueMap) o).elements, column, parts, state, directives);
+				break;
+			case map:
+				walkMap((Map<?, ?>) o, column, parts, state, directives);
+				break;
+			case valuelist:
+				walkList(((ValueList) o).elements, column, parts, state, directives);
+				break;
+			case array:
+				walkList(elementsOf(o), column, parts, state, directives);
+				break;
+			case collection:
+				walkList((Iterable<?>) o, column, parts, state, directives);
+				break;
+			default:
+				walkObject(o, column, parts, state, directives);
+			}
+
+		} finally {
+			path.remove(o);
+		}
+	}
+
+	private void walkObject(Object o, String column, List<Object> parts, State state, Directives directives)
+			throws Exception {
+
+		for (Map.Entry<String, Object> field : Type.gatherFields(o, state, directives).entrySet()) {
+
+			// skip reference to owner object, if any
+			if (field.getKey().startsWith("this$"))
+				continue;
+
+			Projection outer = state.descend(field.getKey());
+
+			try {
+				walk(field.getValue(), nested(column, field.getKey()), parts, state, directives);
+			} finally {
+				state.ascend(outer);
+			}
+		}
+	}
+
+	private void walkMap(Map<?, ?> map, String column, List<Object> parts, State state, Directives directives)
+			throws Exception {
+
+		List<Map.Entry<Object, Object>> entries = new ArrayList<Map.Entry<Object, Object>>(map.size());
+
+		boolean truncated = false;
+
+		for (Map.Entry<?, ?> e : map.entrySet()) {
+
+			if (Type.excluded(e.getValue(), state, directives))
+				continue;
+
+			if (state.stops(entries.size())) {
+				truncated = true;
+				break;
+			}
+
+			Object key = Type.direct(e.getKey(), state, directives) ? e.getKey() : Dynamic.valueOf(e.getKey(), state,
+					directives);
+
+			entries.add(new AbstractMap.SimpleImmutableEntry<Object, Object>(key, e.getValue()));
+		}
+
+		// as in canonical copies
+		Collections.sort(entries, new Comparator<Map.Entry<Object, Object>>() {
+
+			@Override
+			public int compare(Map.Entry<Object, Object> e1, Map.Entry<Object, Object> e2) {
+				return Fingerprint.canonicalOrder.compare(e1.getKey(), e2.getKey());
+			}
+		});
+
+		for (Map.Entry<Object, Object> e : entries)
+			walk(e.getValue(), nested(column, e.getKey()), parts, state, directives);
+
+		if (truncated)
+			cell(state.marker(), nested(column, state.marker()), parts);
+	}
+
+	private void walkList(Iterable<?> list, String column, List<Object> parts, State state, Directives directives)
+			throws Exception {
+
+		List<List<Object>> elements = new ArrayList<List<Object>>();
+
+		for (Object element : list) {
+
+			if (Type.excluded(element, state, directives))
+				continue;
+
+			List<Object> alternative = new ArrayList<Object>();
+
+			if (state.stops(elements.size())) {
+				cell(state.marker(), column, alternative);
+				elements.add(alternative);
+				break;
+			}
+
+			walk(element, column, alternative, state, directives);
+
+			elements.add(alternative);
+		}
+
+		if (elements.isEmpty())
+			return;
+
+		if (exploding)
+			parts.add(elements);
+		else
+			join(elements, column, parts);
+	}
+
+	// one slot per element in each cell, with empty slots for elements that do not have the cell
+	@SuppressWarnings("unchecked")
+	private void join(List<List<Object>> elements, String column, List<Object> parts) {
+
+		Map<String, StringBuilder> cells = new LinkedHashMap<String, StringBuilder>();
+
+		for (int i = 0; i < elements.size(); i++) {
+
+			// without exploded lists, the parts of elements are only cells
+			Map<String, String> element = new LinkedHashMap<String, String>();
+
+			for (Object part : elements.get(i))
+				element.putAll((Map<String, String>) part);
+
+			for (Map.Entry<String, String> cell : element.entrySet()) {
+
+				StringBuilder joined = cells.get(cell.getKey());
+
+				if (joined == null) {
+					joined = new StringBuilder();
+					for (int slot = 0; slot < i; slot++)
+						joined.append(delimiter);
+					cells.put(cell.getKey(), joined);
+				} else
+					joined.append(delimiter);
+
+				if (cell.getValue() != null)
+					slot(joined, cell.getValue());
+			}
+
+			if (i > 0)
+				for (Map.Entry<String, StringBuilder> joined : cells.entrySet())
+					if (!element.containsKey(joined.getKey()))
+						joined.getValue().append(delimiter);
+		}
+
+		for (Map.Entry<String, StringBuilder> joined : cells.entrySet())
+			cell(joined.getValue().toString(), joined.getKey(), parts);
+	}
+
+	// appends a slot, escaping delimiters and backslashes so that slots can be told apart
+	private void slot(StringBuilder joined, String value) {
+
+		for (int i = 0; i < value.length(); i++) {
+
+			char c = value.charAt(i);
+
+			if (c == '\\')
+				joined.append('\\');
+			else if (value.startsWith(delimiter, i)) {
+				joined.append('\\').append(delimiter);
+				i += delimiter.length() - 1;
+				continue;
+			}
+
+			joined.append(c);
+		}
+	}
+
+	// adds a cell to the trailing cells of a sequence
+	@SuppressWarnings("unchecked")
+	private void cell(Object value, String column, List<Object> parts) {
+
+		Object last = parts.isEmpty() ? null : parts.get(parts.size() - 1);
+
+		Map<String, String> cells;
+
+		if (last instanceof Map)
+			cells = (Map<String, String>) last;
+		else {
+			cells = new LinkedHashMap<String, String>();
+			parts.add(cells);
+		}
+
+		cells.put(column == null ? VALUE : column, value == null ? null : String.valueOf(value));
+	}
+
+	// writes a row for each combination of the alternatives in the parts that remain, after the cells of a given row
+	@SuppressWarnings("unchecked")
+	private void combine(Rest rest, Map<String, String> row) throws IOException {
+
+		// resumes the sequences that enclose completed alternatives
+		while (rest != null && rest.next == rest.parts.size())
+			rest = rest.outer;
+
+		if (rest == null) {
+			writeRow(row);
+			return;
+		}
+
+		Object part = rest.parts.get(rest.next);
+
+		Rest after = new Rest(rest.parts, rest.next + 1, rest.outer);
+
+		if (part instanceof Map) {
+
+			Map<String, String> combined = new LinkedHashMap<String, String>(row);
+			combined.putAll((Map<String, String>) part);
+
+			combine(after, combined);
+
+			return;
+		}
+
+		for (List<Object> alternative : (List<List<Object>>) part)
+			combine(new Rest(alternative, 0, after), row);
+	}
+
+	// the parts that remain in a sequence, and in those that enclose it
+	private static final class Rest {
+
+		final List<Object> parts;
+		final int next;
+		final Rest outer;
+
+		Rest(List<Object> parts, int next, Rest outer) {
+			this.parts = parts;
+			this.next = next;
+			this.outer = outer;
+		}
+	}
+
+	private static String nested(String column, Object key) {
+		return column == null ? String.valueOf(key) : column + "." + key;
+	}
+
+	private static List<Object> elementsOf(Object array) {
+
+		List<Object> elements = new ArrayList<Object>(Array.getLength(array));
+
+		for (int i = 0; i < Array.getLength(array); i++)
+			elements.add(Array.get(array, i));
+
+		return elements;
+	}
+
+	private void writeRow(Map<String, String> row) throws IOException {
+
+		if (columns == null)
+			columns = new ArrayList<String>(row.keySet());
+
+		if (header) {
+			writeLine(columns);
+			header = false;
+		}
+
+		List<String> cells = new ArrayList<String>(columns.size());
+
+		for (String column : columns)
+			cells.add(row.get(column));
+
+		writeLine(cells);
+
+		rows++;
+	}
+
+	private void writeLine(List<String> cells) throws IOException {
+
+		line.setLength(0);
+
+		for (int i = 0; i < cells.size(); i++) {
+
+			if (i > 0)
+				line.append(separator);
+
+			String cell = cells.get(i);
+
+			if (cell != null)
+				if (separator == '\t')
+					escape(cell);
+				else
+					quote(cell);
+		}
+
+		line.append(separator == '\t' ? "\n" : "\r\n");
+
+		writer.append(line);
+	}
+
+	private void quote(String cell) {
+
+		boolean quoted = false;
+
+		for (int i = 0; i < cell.length() && !quoted; i++) {
+			char c = cell.charAt(i);
+			quoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+
+		if (!quoted) {
+			line.append(cell);
+			return;
+		}
+
+		line.append('"');
+
+		for (int i = 0; i < cell.length(); i++) {
+			char c = cell.charAt(i);
+			if (c == '"')
+				line.append('"');
+			line.append(c);
+		}
+
+		line.append('"');
+	}
+
+	private void escape(String cell) {
+
+		for (int i = 0; i < cell.length(); i++) {
+
+			char c = cell.charAt(i);
+
+			switch (c) {
+			case '\t':
+				line.append("\\t");
+				break;
+			case '\n':
+				line.append("\\n");
+				break;
+			case '\r':
+				line.append("\\r");
+				break;
+			case '\\':
+				line.append("\\\\");
+				break;
+			default:
+				line.append(c);
+			}
+		}
+	}
+}
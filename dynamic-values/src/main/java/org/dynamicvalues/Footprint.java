@@ -0,0 +1,395 @@
+package org.dynamicvalues;
+
+import java.lang.reflect.Array;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.dynamicvalues.Externals.ValueList;
+import org.dynamicvalues.Externals.ValueMap;
+
+/**
+ * The size of a dynamic value: the number of its values, and the heap space it retains.
+ * <p>
+ * Footprints are either measured on existing dynamic values ({@link #of(Object)}), or estimated for the value copies
+ * of objects before they are produced ({@link Dynamic#footprintOf(Object, Directives)}). Estimates take a single pass
+ * over the objects which reads the fields that the copies would retain, but does not allocate the copies, and so can
+ * be used to route large objects to projections, budgets, arenas, or streaming copies.
+ * <p>
+ * The values of a dynamic value are its lists, its maps, their keys and elements, atomic or <code>null</code>, and its
+ * shared lists and maps count once. Heap space includes the atomic values that copies share with the objects they
+ * copy, and is computed with the layouts of the JDK collections on a 64-bit JVM with compressed references. It is
+ * thus an approximation, though one that is meant to be accurate enough to compare values.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+public final class Footprint {
+
+	// object layouts, in bytes
+	private static final int REFERENCE = 4;
+	private static final int ARRAY = 16;
+	private static final int WRAPPER = 16;
+	private static final int ARRAY_LIST = 24;
+	private static final int LINKED_LIST = 32, LINKED_NODE = 24;
+	private static final int HASH_MAP = 48, HASH_NODE = 32;
+	private static final int LINKED_HASH_MAP = 56, LINKED_HASH_NODE = 40;
+	private static final int TREE_MAP = 48, TREE_NODE = 40;
+	private static final int STRING = 24;
+
+	/**
+	 * Returns the footprint of a dynamic value.
+	 *
+	 * @param value the value
+	 * @return the footprint
+	 * @throws IllegalArgumentException if the value is not a dynamic value
+	 */
+	public static Footprint of(Object value) {
+
+		Footprint footprint = new Footprint();
+
+		footprint.measure(value);
+
+		return footprint;
+	}
+
+	/**
+	 * Returns the estimated footprint of the value copy of an object.
+	 *
+	 * @param o the object
+	 * @param state the state of the copy
+	 * @param directives the directives of the copy
+	 * @return the footprint
+	 * @throws Exception if the object cannot be read
+	 */
+	static Footprint estimate(Object o, State state, Directives directives) throws Exception {
+
+		Footprint footprint = new Footprint();
+
+		footprint.follow(o, state, directives);
+
+		return footprint;
+	}
+
+	private long nodes;
+	private long bytes;
+
+	// lists, maps, and strings seen so far
+	private final Map<Object, Object> seen = new IdentityHashMap<Object, Object>();
+
+	private Footprint() {
+	}
+
+	/**
+	 * Returns the number of values.
+	 *
+	 * @return the number of values
+	 */
+	public long nodes() {
+		return nodes;
+	}
+
+	/**
+	 * Returns the retained heap space, in bytes.
+	 *
+	 * @return the bytes
+	 */
+	public long bytes() {
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return "footprint[nodes=" + nodes + ", bytes=" + bytes + "]";
+	}
+
+	// helpers
+
+	// follows the engine, without copying, and returns true if the copy would be an empty list or map
+	private boolean follow(Object o, State state, Directives directives) throws Exception {
+
+		o = directives.converters().convert(o);
+
+		Type type = Type.of(o);
+
+		switch (type) {
+
+		case voidtype:
+			nodes++;
+			return false;
+
+		case atomic:
+			nodes++;
+			atomic(o);
+			return false;
+
+		default:
+		}
+
+		if (seen.put(o, o) != null)
+			return false; // copied once
+
+		nodes++;
+
+		switch (type) {
+
+		case valuelist:
+			o = ((ValueList) o).elements;
+			//$FALL-THROUGH$
+		case collection:
+
+			int size = 0;
+
+			// as in copies, wrapped elements are not excluded
+			for (Object element : (Iterable<?>) o)
+				if (type == Type.valuelist || !Type.excluded(element, state, directives)) {
+					follow(element, state, directives);
+					size++;
+				}
+
+			bytes += arrayList(size);
+			return size == 0;
+
+		case array:
+
+			int length = 0;
+
+			for (int i = 0; i < Array.getLength(o); i++) {
+
+				Object element = Array.get(o, i);
+
+				if (!Type.excluded(element, state, directives)) {
+					follow(element, state, directives);
+					length++;
+				}
+			}
+
+			bytes += arrayList(length);
+			return length == 0;
+
+		case valuemap:
+			o = ((ValueMap) o).elements;
+			//$FALL-THROUGH$
+		case map:
+
+			int entries = 0;
+
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet())
+				if (type == Type.valuemap || !Type.excluded(e.getValue(), state, directives)) {
+					follow(e.getKey(), state, directives);
+					follow(e.getValue(), state, directives);
+					entries++;
+				}
+
+			bytes += linkedHashMap(entries);
+			return entries == 0;
+
+		default:
+
+			int fields = 0;
+
+			for (Map.Entry<String, Object> field : Type.gatherFields(o, state, directives).entrySet()) {
+
+				if (field.getKey().startsWith("this$"))
+					continue;
+
+				long nodesBefore = nodes, bytesBefore = bytes;
+
+				Projection outer = state.descend(field.getKey());
+
+				boolean empty;
+
+				try {
+					empty = follow(field.getValue(), state, directives);
+				} finally {
+					state.ascend(outer);
+				}
+
+				// copies drop empty lists and maps, e.g. those whose elements are all excluded
+				if (empty) {
+					nodes = nodesBefore;
+					bytes = bytesBefore;
+					continue;
+				}
+
+				// field names become keys
+				nodes++;
+				atomic(field.getKey());
+
+				fields++;
+			}
+
+			bytes += directives.isCanonical() ? linkedHashMap(fields) : hashMap(fields);
+
+			return fields == 0;
+		}
+	}
+
+	private void measure(Object value) {
+
+		if (value == null) {
+			nodes++;
+			return;
+		}
+
+		if (Type.of(value) == Type.atomic) {
+			nodes++;
+			atomic(value);
+			return;
+		}
+
+		if (seen.put(value, value) != null)
+			return; // counted once
+
+		// only the handle stays in memory
+		if (value instanceof Spill.Handle) {
+			nodes++;
+			bytes += Spill.HANDLE;
+			return;
+		}
+
+		if (value instanceof ValueMap) {
+			bytes += WRAPPER;
+			measure(((ValueMap) value).elements);
+		}
+
+		else if (value instanceof ValueList) {
+			bytes += WRAPPER;
+			measure(((ValueList) value).elements);
+		}
+
+		else if (value instanceof Map) {
+
+			nodes++;
+
+			Map<?, ?> map = (Map<?, ?>) value;
+
+			for (Map.Entry<?, ?> e : map.entrySet()) {
+				measure(e.getKey());
+				measure(e.getValue());
+			}
+
+			bytes += sizeOf(map);
+		}
+
+		else if (value instanceof List) {
+
+			nodes++;
+
+			List<?> list = (List<?>) value;
+
+			for (Object element : list)
+				measure(element);
+
+			bytes += sizeOf(list);
+		}
+
+		else
+			throw new IllegalArgumentException(value.getClass() + " is not a dynamic value");
+	}
+
+	/**
+	 * Returns the heap space of a dynamic list or map, and of the atomic values it contains, but not of its other
+	 * values.
+	 *
+	 * @param value the list or map
+	 * @return the bytes, or 0 if the value is not a list or a map
+	 */
+	static long shallowSizeOf(Object value) {
+
+		if (value instanceof Spill.Handle)
+			return Spill.HANDLE;
+
+		Footprint footprint = new Footprint();
+
+		if (value instanceof Map) {
+
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+				footprint.shallow(e.getKey());
+				footprint.shallow(e.getValue());
+			}
+
+			return footprint.bytes + sizeOf((Map<?, ?>) value);
+		}
+
+		if (value instanceof List) {
+
+			for (Object element : (List<?>) value)
+				footprint.shallow(element);
+
+			return footprint.bytes + sizeOf((List<?>) value);
+		}
+
+		return 0;
+	}
+
+	private void shallow(Object o) {
+		if (o != null && Type.of(o) == Type.atomic)
+			atomic(o);
+	}
+
+	private static long sizeOf(Map<?, ?> map) {
+
+		if (map instanceof LinkedHashMap)
+			return linkedHashMap(map.size());
+
+		if (map instanceof TreeMap)
+			return TREE_MAP + (long) TREE_NODE * map.size();
+
+		return hashMap(map.size());
+	}
+
+	private static long sizeOf(List<?> list) {
+
+		if (list instanceof LinkedList)
+			return LINKED_LIST + (long) LINKED_NODE * list.size();
+
+		return arrayList(list.size());
+	}
+
+	private void atomic(Object o) {
+
+		if (o instanceof String) {
+
+			if (seen.put(o, o) == null)
+				bytes += STRING + align(ARRAY + 2L * ((String) o).length());
+
+			return;
+		}
+
+		bytes += o instanceof Long || o instanceof Double ? 24 : 16;
+	}
+
+	private static long arrayList(int size) {
+		return ARRAY_LIST + align(ARRAY + (long) REFERENCE * size);
+	}
+
+	private static long hashMap(int size) {
+		return HASH_MAP + table(size) + (long) HASH_NODE * size;
+	}
+
+	private static long linkedHashMap(int size) {
+		return LINKED_HASH_MAP + table(size) + (long) LINKED_HASH_NODE * size;
+	}
+
+	// the bucket array of a hash map that holds a given number of entries
+	private static long table(int size) {
+
+		if (size == 0)
+			return 0;
+
+		int buckets = 16;
+
+		while (buckets * 3 / 4 < size)
+			buckets <<= 1;
+
+		return align(ARRAY + (long) REFERENCE * buckets);
+	}
+
+	private static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+}
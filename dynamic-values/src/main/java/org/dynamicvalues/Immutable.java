@@ -0,0 +1,20 @@
+package org.dynamicvalues;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class whose instances, and all the objects they reference, never change after construction.
+ * <p>
+ * Value copies of instances of marked classes can be reused across copies (see {@link Directives#caching(CopyCache)}).
+ * 
+ * @author Fabio Simeoni
+ *
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Immutable {
+
+}
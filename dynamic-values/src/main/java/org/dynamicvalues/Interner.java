@@ -0,0 +1,210 @@
+package org.dynamicvalues;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import org.dynamicvalues.Fingerprint.Identity;
+import org.dynamicvalues.Fingerprint.Walk;
+
+/**
+ * Replaces structurally equal lists and maps in value copies with a single, unmodifiable instance.
+ * <p>
+ * Values are interned bottom-up, so that their elements are already interned when their fingerprint is computed, and
+ * their equality with a candidate instance can be verified by reference on the elements. Values that are part of
+ * cycles are left as they are, since references to them may already exist elsewhere.
+ * <p>
+ * Interned instances are shared across all the values interned by an interner, up to {@link #LIMIT} of them. Beyond
+ * that, the least recently matched instances are forgotten, and equal values that follow are interned anew. Forgotten
+ * instances remain valid where they are already shared.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+final class Interner {
+
+	/**
+	 * The maximum number of instances that an interner remembers.
+	 */
+	static final int LIMIT = 1 << 16;
+
+	// interned instances, to recognise them when they recur
+	private final Map<Object, Object> instances = new IdentityHashMap<Object, Object>();
+
+	// fingerprints of interned instances, and of no other value
+	private final Map<Identity, Fingerprint> memo = new HashMap<Identity, Fingerprint>();
+
+	// interned instances by fingerprint, least recently matched first
+	private final Map<Fingerprint, Object> interned = new LinkedHashMap<Fingerprint, Object>(16, .75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Fingerprint, Object> eldest) {
+
+			if (size() <= LIMIT)
+				return false;
+
+			instances.remove(eldest.getValue());
+			memo.remove(Identity.of(eldest.getValue()));
+
+			return true;
+		}
+	};
+
+	// state of the current pass
+
+	// replacements of values already visited
+	private Map<Object, Object> replacements;
+
+	// values under visit, by depth
+	private Map<Object, Integer> positions;
+
+	// lowest depth reached by a cycle
+	private int reach;
+
+	/**
+	 * Interns the lists and maps of a dynamic value.
+	 *
+	 * @param value the value
+	 * @return the value, or the interned instance that replaces it
+	 */
+	Object intern(Object value) {
+
+		replacements = new IdentityHashMap<Object, Object>();
+		positions = new IdentityHashMap<Object, Integer>();
+		reach = Integer.MAX_VALUE;
+
+		try {
+			return visit(value);
+		} finally {
+			replacements = null;
+			positions = null;
+		}
+	}
+
+	// helpers
+
+	private Object visit(Object value) {
+
+		if (!(value instanceof List || value instanceof Map) || instances.containsKey(value))
+			return value;
+
+		// spilled values stay on file
+		if (value instanceof Spill.Handle)
+			return value;
+
+		Object replacement = replacements.get(value);
+
+		if (replacement != null)
+			return replacement;
+
+		Integer position = positions.get(value);
+
+		// a cycle: the value and all those visited after it stay as they are
+		if (position != null) {
+			reach = Math.min(reach, position);
+			return value;
+		}
+
+		int here = positions.size();
+
+		positions.put(value, here);
+
+		int outerReach = reach;
+
+		reach = Integer.MAX_VALUE;
+
+		if (value instanceof List)
+			visitElements((List<?>) value);
+		else
+			visitValues((Map<?, ?>) value);
+
+		positions.remove(value);
+
+		replacement = reach <= here ? value : canonical(value);
+
+		reach = Math.min(reach, outerReach);
+
+		replacements.put(value, replacement);
+
+		return replacement;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void visitElements(List<?> list) {
+
+		ListIterator<Object> it = ((List<Object>) list).listIterator();
+
+		while (it.hasNext()) {
+
+			Object element = it.next();
+			Object replacement = visit(element);
+
+			if (replacement != element)
+				try {
+					it.set(replacement);
+				} catch (UnsupportedOperationException e) {
+					// e.g. a cached copy, which is left as it is
+				}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void visitValues(Map<?, ?> map) {
+
+		for (Map.Entry<Object, Object> e : ((Map<Object, Object>) map).entrySet()) {
+
+			Object value = e.getValue();
+			Object replacement = visit(value);
+
+			if (replacement != value)
+				try {
+					e.setValue(replacement);
+				} catch (UnsupportedOperationException ex) {
+					// e.g. a cached copy, which is left as it is
+				}
+		}
+	}
+
+	private Object canonical(Object value) {
+
+		// the walk memoizes the raw values it meets only for its own duration, as they may not be interned
+		Map<Identity, Fingerprint> pass = new HashMap<Identity, Fingerprint>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Fingerprint get(Object identity) {
+				Fingerprint fingerprint = memo.get(identity);
+				return fingerprint == null ? super.get(identity) : fingerprint;
+			}
+		};
+
+		Fingerprint fingerprint = new Walk(pass).fingerprint(value, 0);
+
+		Object candidate = interned.get(fingerprint);
+
+		// elements are interned already, so equality is cheap
+		if (candidate != null && candidate.equals(value))
+			return candidate;
+
+		if (candidate != null)
+			return value; // fingerprint collision, leave it be
+
+		Object instance = value instanceof List ? Collections.unmodifiableList((List<?>) value) : Collections
+				.unmodifiableMap((Map<?, ?>) value);
+
+		interned.put(fingerprint, instance);
+		instances.put(instance, instance);
+
+		// the instance will recur in fingerprints of enclosing values
+		memo.put(Identity.of(instance), fingerprint);
+
+		return instance;
+	}
+}
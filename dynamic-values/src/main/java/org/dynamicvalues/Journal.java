@@ -0,0 +1,699 @@
+package org.dynamicvalues;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only, file-backed store of dynamic values.
+ * <p>
+ * Values are encoded and appended to <em>segment files</em> in a given directory, and are identified by the
+ * progressive number returned by {@link #append(Object)}. The journal keeps an in-memory index from identifiers to
+ * file offsets, so that {@link #read(long)} decodes the value alone, regardless of how many other values the journal
+ * holds. Values in sealed segments are read from memory-mapped buffers.
+ * <p>
+ * A segment is sealed when it exceeds a given size and a new one is started. Values can be {@link #remove(long)}d, and
+ * the space they occupy in sealed segments is reclaimed by {@link #compact()}, possibly in the background (
+ * {@link #compactInBackground()}).
+ * <p>
+ * Journals can be re-opened after they are {@link #close()}d, and their index is rebuilt by scanning the segments.
+ * Appends and removals are forced to disk before they return, and a record that is only partially written when the
+ * process stops is dropped when the journal is re-opened, with all the values that precede it surviving.
+ * Journals are safe for use by multiple threads, but not by multiple processes.
+ *
+ * <pre>
+ * Journal journal = Journal.open(new File("snapshots"));
+ * long id = journal.append(Dynamic.valueOf(o));
+ * ...
+ * Map&lt;String,Object&gt; snapshot = journal.read(id);
+ * </pre>
+ *
+ * @author Fabio Simeoni
+ *
+ */
+public class Journal implements Closeable {
+
+	/**
+	 * The default size of segments, in bytes.
+	 */
+	public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final int MAGIC = 0xD7A10001;
+	private static final int HEADER = 4 + 8; // magic, base id
+	private static final int RECORD_HEADER = 8 + 4; // id, length
+	private static final int TOMBSTONE = -1;
+
+	private static final String prefix = "segment-";
+	private static final String suffix = ".log";
+	private static final String compacting = ".tmp";
+
+	/**
+	 * Opens a journal in a given directory, with segments of {@link #DEFAULT_SEGMENT_SIZE}.
+	 * <p>
+	 * The directory is created if it does not exist already.
+	 *
+	 * @param directory the directory
+	 * @return the journal
+	 * @throws Exception if the journal cannot be opened
+	 */
+	public static Journal open(File directory) throws Exception {
+		return open(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens a journal in a given directory, with segments of a given size.
+	 * <p>
+	 * The directory is created if it does not exist already. Sealed segments are memory-mapped, hence they cannot
+	 * exceed {@link Integer#MAX_VALUE} bytes.
+	 *
+	 * @param directory the directory
+	 * @param segmentSize the segment size, in bytes
+	 * @return the journal
+	 * @throws IllegalArgumentException if the segment size is too small or too large
+	 * @throws Exception if the journal cannot be opened
+	 */
+	public static Journal open(File directory, long segmentSize) throws Exception {
+
+		if (segmentSize <= HEADER)
+			throw new IllegalArgumentException("segment size must be greater than " + HEADER + " bytes");
+
+		// sealed segments are mapped, and mappings cannot exceed this size
+		if (segmentSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("segment size must not exceed " + Integer.MAX_VALUE + " bytes");
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot create journal directory " + directory);
+
+		Journal journal = new Journal(directory, segmentSize);
+
+		journal.recover();
+
+		return journal;
+	}
+
+	private final File directory;
+	private final long segmentSize;
+
+	// segments by number
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+	// the segment that takes appends
+	private Segment active;
+
+	// locations of live values
+	private final Map<Long, Location> index = new HashMap<Long, Location>();
+
+	// locations of removed values that have not been compacted away yet
+	private final Map<Long, Location> removed = new HashMap<Long, Location>();
+
+	private long nextId;
+	private boolean closed;
+
+	private ExecutorService compactor;
+
+	private Journal(File directory, long segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Appends a dynamic value to this journal.
+	 *
+	 * @param value the value
+	 * @return the identifier of the value in this journal
+	 * @throws Exception if the value cannot be appended
+	 */
+	public synchronized long append(Object value) throws Exception {
+
+		checkOpen();
+
+		byte[] encoded = Encoding.encode(value);
+
+		if (active.size > HEADER && active.size + RECORD_HEADER + encoded.length > segmentSize)
+			roll();
+
+		long id = nextId++;
+
+		long offset = active.write(id, encoded);
+
+		active.force();
+
+		index.put(id, new Location(active.number, offset, encoded.length));
+
+		active.live++;
+
+		return id;
+	}
+
+	/**
+	 * Returns the dynamic value with a given identifier in this journal.
+	 *
+	 * @param id the identifier
+	 * @return the value
+	 * @throws IllegalArgumentException if there is no value with the given identifier in this journal
+	 * @throws Exception if the value cannot be returned
+	 */
+	public synchronized <T> T read(long id) throws Exception {
+
+		checkOpen();
+
+		Location location = index.get(id);
+
+		if (location == null)
+			throw new IllegalArgumentException("unknown value " + id);
+
+		long start = location.offset + RECORD_HEADER;
+
+		ByteBuffer buffer = segments.get(location.segment).read(start, start + location.length);
+
+		@SuppressWarnings("all")
+		T t = (T) Encoding.decode(buffer);
+		return t;
+	}
+
+	/**
+	 * Returns <code>true</code> if this journal contains a value with a given identifier.
+	 *
+	 * @param id the identifier
+	 * @return <code>true</code> if this journal contains a value with a given identifier
+	 */
+	public synchronized boolean contains(long id) {
+		return index.containsKey(id);
+	}
+
+	/**
+	 * Returns the number of values in this journal.
+	 *
+	 * @return the number of values
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Removes the value with a given identifier from this journal.
+	 * <p>
+	 * The space occupied by the value is reclaimed only after the segment that contains it is sealed and compacted.
+	 *
+	 * @param id the identifier
+	 * @return <code>true</code> if the journal contained the value
+	 * @throws Exception if the value cannot be removed
+	 */
+	public synchronized boolean remove(long id) throws Exception {
+
+		checkOpen();
+
+		Location location = index.remove(id);
+
+		if (location == null)
+			return false;
+
+		active.write(id, null);
+
+		active.force();
+
+		removed.put(id, location);
+
+		Segment segment = segments.get(location.segment);
+		segment.live--;
+		segment.dead++;
+
+		return true;
+	}
+
+	/**
+	 * Rewrites the sealed segments of this journal that contain removed values, so as to reclaim their space.
+	 * <p>
+	 * Segments are compacted one at a time, and other operations can interleave with compaction in between segments.
+	 *
+	 * @return the number of compacted segments
+	 * @throws Exception if the segments cannot be compacted
+	 */
+	public int compact() throws Exception {
+
+		int compacted = 0;
+
+		for (Integer number : candidates())
+			if (compact(number))
+				compacted++;
+
+		return compacted;
+	}
+
+	/**
+	 * Compacts this journal in a background thread.
+	 *
+	 * @return a future for the number of compacted segments
+	 * @see #compact()
+	 */
+	public synchronized Future<Integer> compactInBackground() {
+
+		checkOpen();
+
+		if (compactor == null)
+			compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "journal-compactor-" + directory.getName());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+		return compactor.submit(new Callable<Integer>() {
+
+			@Override
+			public Integer call() throws Exception {
+				return compact();
+			}
+		});
+	}
+
+	/**
+	 * Closes this journal, releasing its files.
+	 * <p>
+	 * Any ongoing background compaction completes first.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		ExecutorService compactor;
+
+		synchronized (this) {
+
+			if (closed)
+				return;
+
+			compactor = this.compactor;
+		}
+
+		if (compactor != null) {
+			compactor.shutdown();
+			try {
+				while (!compactor.awaitTermination(1, TimeUnit.SECONDS))
+					;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized (this) {
+
+			closed = true;
+
+			IOException error = null;
+
+			for (Segment segment : segments.values())
+				try {
+					segment.close();
+				} catch (IOException e) {
+					error = e;
+				}
+
+			segments.clear();
+			index.clear();
+			removed.clear();
+
+			if (error != null)
+				throw error;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Journal [directory=" + directory + ", segments=" + segments.size() + ", size=" + index.size() + "]";
+	}
+
+	// helpers
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("journal " + directory + " is closed");
+	}
+
+	private void roll() throws IOException {
+
+		if (active != null)
+			active.seal();
+
+		active = create(nextId);
+	}
+
+	private Segment create(long baseId) throws IOException {
+
+		int number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+
+		Segment segment = Segment.create(new File(directory, String.format("%s%010d%s", prefix, number, suffix)),
+				number, baseId);
+
+		segments.put(number, segment);
+
+		return segment;
+	}
+
+	private synchronized List<Integer> candidates() {
+
+		checkOpen();
+
+		List<Integer> candidates = new ArrayList<Integer>();
+
+		for (Segment segment : segments.values())
+			if (segment != active && segment.dead > 0)
+				candidates.add(segment.number);
+
+		return candidates;
+	}
+
+	// copies live values and outstanding tombstones of a sealed segment into a new file, which then replaces the old
+	// one under the same number, so that segments keep their order
+	private synchronized boolean compact(int number) throws Exception {
+
+		if (closed)
+			return false;
+
+		Segment old = segments.get(number);
+
+		if (old == null || old == active)
+			return false;
+
+		// identifiers allocated so far must not be reused, even if they are all compacted away
+		Segment fresh = Segment.create(new File(directory, old.file.getName() + compacting), number, nextId);
+
+		Map<Long, Location> moved = new HashMap<Long, Location>();
+		List<Long> dropped = new ArrayList<Long>();
+
+		ByteBuffer buffer = old.read(HEADER, old.size);
+
+		while (buffer.hasRemaining()) {
+
+			long offset = HEADER + buffer.position();
+			long id = buffer.getLong();
+			int length = buffer.getInt();
+
+			if (length == TOMBSTONE) {
+
+				// keep it only while the value it removes is on disk elsewhere
+				Location gone = removed.get(id);
+
+				if (gone != null && gone.segment != number)
+					fresh.write(id, null);
+
+				continue;
+			}
+
+			Location location = index.get(id);
+
+			if (location != null && location.segment == number && location.offset == offset) {
+
+				byte[] encoded = new byte[length];
+				buffer.get(encoded);
+
+				moved.put(id, new Location(number, fresh.write(id, encoded), length));
+
+			} else {
+
+				buffer.position(buffer.position() + length);
+
+				Location gone = removed.get(id);
+
+				if (gone != null && gone.segment == number)
+					dropped.add(id);
+			}
+		}
+
+		fresh.force();
+		fresh.close();
+		old.close();
+
+		// the old segment survives a crash before the move, and leftovers are discarded on recovery
+		try {
+			Files.move(fresh.file.toPath(), old.file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+
+			Segment restored = Segment.open(old.file, number);
+
+			restored.seal();
+			restored.live = old.live;
+			restored.dead = old.dead;
+
+			segments.put(number, restored);
+
+			fresh.file.delete();
+
+			throw e;
+		}
+
+		Segment compacted = Segment.open(old.file, number);
+
+		compacted.seal();
+		compacted.live = moved.size();
+
+		segments.put(number, compacted);
+
+		index.putAll(moved);
+
+		for (Long id : dropped)
+			removed.remove(id);
+
+		return true;
+	}
+
+	// rebuilds the index from the segments on disk
+	private synchronized void recover() throws Exception {
+
+		for (File file : directory.listFiles()) {
+
+			String name = file.getName();
+
+			// interrupted compactions, whose segments are still in place
+			if (name.startsWith(prefix) && name.endsWith(suffix + compacting) && !file.delete())
+				throw new IOException("cannot delete partially compacted segment " + file);
+
+			if (name.startsWith(prefix) && name.endsWith(suffix)) {
+				int number = Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length()));
+				segments.put(number, Segment.open(file, number));
+			}
+		}
+
+		List<Long> tombstones = new ArrayList<Long>();
+
+		for (Segment segment : segments.values()) {
+
+			nextId = Math.max(nextId, segment.baseId);
+
+			ByteBuffer buffer = segment.read(HEADER, segment.size);
+
+			while (buffer.hasRemaining()) {
+
+				long offset = HEADER + buffer.position();
+
+				// a record torn by a crash, dropped along with anything after it
+				if (buffer.remaining() < RECORD_HEADER) {
+					segment.truncate(offset);
+					break;
+				}
+
+				long id = buffer.getLong();
+				int length = buffer.getInt();
+
+				if (length < TOMBSTONE || length > buffer.remaining()) {
+					segment.truncate(offset);
+					break;
+				}
+
+				// identifiers are never reused, so tombstones apply regardless of the order of segments
+				if (length == TOMBSTONE) {
+					tombstones.add(id);
+					continue;
+				}
+
+				buffer.position(buffer.position() + length);
+
+				index.put(id, new Location(segment.number, offset, length));
+
+				nextId = Math.max(nextId, id + 1);
+			}
+		}
+
+		for (Long id : tombstones) {
+			Location location = index.remove(id);
+			if (location != null)
+				removed.put(id, location);
+		}
+
+		for (Location location : index.values())
+			segments.get(location.segment).live++;
+
+		for (Location location : removed.values())
+			segments.get(location.segment).dead++;
+
+		if (segments.isEmpty() || segments.lastEntry().getValue().size >= segmentSize)
+			roll();
+		else
+			active = segments.lastEntry().getValue();
+
+		for (Segment segment : segments.values())
+			if (segment != active)
+				segment.seal();
+	}
+
+	private static class Location {
+
+		final int segment;
+		final long offset;
+		final int length;
+
+		Location(int segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private static class Segment {
+
+		static Segment create(File file, int number, long baseId) throws IOException {
+
+			if (file.exists())
+				throw new IOException("segment " + file + " exists already");
+
+			Segment segment = new Segment(file, number);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			header.putInt(MAGIC).putLong(baseId).flip();
+
+			while (header.hasRemaining())
+				segment.channel.write(header, header.position());
+
+			segment.baseId = baseId;
+			segment.size = HEADER;
+
+			return segment;
+		}
+
+		static Segment open(File file, int number) throws IOException {
+
+			Segment segment = new Segment(file, number);
+
+			segment.size = segment.channel.size();
+
+			if (segment.size < HEADER)
+				throw new IOException("segment " + file + " is truncated");
+
+			ByteBuffer header = segment.read(0, HEADER);
+
+			if (header.getInt() != MAGIC)
+				throw new IOException(file + " is not a journal segment");
+
+			segment.baseId = header.getLong();
+
+			return segment;
+		}
+
+		final File file;
+		final int number;
+		final FileChannel channel;
+
+		long baseId;
+		long size;
+
+		int live;
+		int dead;
+
+		// set once the segment no longer takes appends
+		MappedByteBuffer mapped;
+
+		private Segment(File file, int number) throws FileNotFoundException {
+			this.file = file;
+			this.number = number;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+		}
+
+		// appends a record, or a tombstone if there are no bytes, returning its offset
+		long write(long id, byte[] encoded) throws IOException {
+
+			long offset = size;
+
+			ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + (encoded == null ? 0 : encoded.length));
+
+			record.putLong(id).putInt(encoded == null ? TOMBSTONE : encoded.length);
+
+			if (encoded != null)
+				record.put(encoded);
+
+			record.flip();
+
+			while (record.hasRemaining())
+				channel.write(record, offset + record.position());
+
+			size += record.limit();
+
+			return offset;
+		}
+
+		// returns a buffer over a range of bytes, from the mapping if the segment is sealed
+		ByteBuffer read(long from, long to) throws IOException {
+
+			if (mapped != null) {
+				ByteBuffer buffer = mapped.duplicate();
+				buffer.limit((int) to).position((int) from);
+				return buffer.slice();
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate((int) (to - from));
+
+			while (buffer.hasRemaining())
+				if (channel.read(buffer, from + buffer.position()) < 0)
+					throw new IOException("segment " + file + " is truncated");
+
+			buffer.flip();
+
+			return buffer;
+		}
+
+		void force() throws IOException {
+			channel.force(false);
+		}
+
+		// drops the bytes from a given offset onwards
+		void truncate(long offset) throws IOException {
+			channel.truncate(offset);
+			size = offset;
+		}
+
+		void seal() throws IOException {
+
+			force();
+
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("segment " + file + " is too large to map");
+
+			mapped = channel.map(MapMode.READ_ONLY, 0, size);
+		}
+
+		void close() throws IOException {
+			mapped = null;
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,418 @@
+package org.dynamicvalues;
+
+import static org.dynamicvalues.Directives.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.bind.Marshaller;
+
+/**
+ * Converts and serialises a stream of objects on multiple threads.
+ * <p>
+ * Objects {@link #submit(Object)}ted to a pipeline are grouped in batches, and each batch is turned into external value
+ * copies ({@link Dynamic#externalValueOf(Object, Directives)}) and marshalled with the {@link DynamicIO} context by a
+ * worker thread. The serialisations are then delivered to a {@link Sink}, one at the time and in the order in which
+ * objects have been submitted.
+ * <p>
+ * Pipelines bound the number of objects that can be submitted but not yet delivered, and {@link #submit(Object)} blocks
+ * when the bound is reached.
+ * <p>
+ * Pipelines are configured before the first submission:
+ *
+ * <pre>
+ * Pipeline pipeline = Pipeline.to(sink).with(by().excluding(...)).workers(8).batching(32).bounded(4096);
+ *
+ * for (Object o : objects)
+ *   pipeline.submit(o);
+ *
+ * pipeline.close();
+ * </pre>
+ *
+ * By default, workers are daemon threads of a pool owned by the pipeline. Any other {@link ExecutorService} can be
+ * used instead ({@link #using(ExecutorService)}), including one based on virtual threads where the platform offers
+ * them.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+public class Pipeline implements Closeable {
+
+	/**
+	 * Receives the serialisations produced by a {@link Pipeline}.
+	 */
+	public static interface Sink {
+
+		/**
+		 * Receives the serialisation of an object.
+		 *
+		 * @param object the object
+		 * @param serialisation the serialisation
+		 * @throws Exception if the serialisation cannot be received
+		 */
+		void write(Object object, byte[] serialisation) throws Exception;
+	}
+
+	/**
+	 * Creates a pipeline towards a given sink.
+	 *
+	 * @param sink the sink
+	 * @return the pipeline
+	 */
+	public static Pipeline to(Sink sink) {
+		return new Pipeline(sink);
+	}
+
+	private final Sink sink;
+
+	private Directives directives = by();
+	private ExecutorService executor;
+	private boolean ownsExecutor;
+	private int workers = Runtime.getRuntime().availableProcessors();
+	private int batchSize = 16;
+	private int capacity = 1024;
+
+	private boolean started;
+	private boolean closed;
+
+	private Semaphore permits;
+
+	// batch being accumulated
+	private List<Object> pending = new ArrayList<Object>();
+
+	// sequence numbers of the next batch to dispatch and the next to deliver
+	private long dispatched;
+	private long delivered;
+
+	// batches completed out of order
+	private final Map<Long, Batch> completed = new HashMap<Long, Batch>();
+
+	// set while a worker delivers batches, so that the sink receives them one at the time
+	private boolean delivering;
+
+	// first failure, reported to the submitter
+	private volatile Exception failure;
+
+	private Pipeline(Sink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Sets the directives for the value copies.
+	 *
+	 * @param directives the directives
+	 * @return this pipeline
+	 */
+	public synchronized Pipeline with(Directives directives) {
+		checkConfigurable();
+		this.directives = directives;
+		return this;
+	}
+
+	/**
+	 * Sets the number of worker threads, when this pipeline owns its workers.
+	 *
+	 * @param workers the number of workers
+	 * @return this pipeline
+	 */
+	public synchronized Pipeline workers(int workers) {
+		checkConfigurable();
+		if (workers < 1)
+			throw new IllegalArgumentException("there must be at least one worker");
+		this.workers = workers;
+		return this;
+	}
+
+	/**
+	 * Sets the executor of the workers.
+	 * <p>
+	 * The executor is not shut down when this pipeline is closed.
+	 *
+	 * @param executor the executor
+	 * @return this pipeline
+	 */
+	public synchronized Pipeline using(ExecutorService executor) {
+		checkConfigurable();
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Sets the number of objects that are converted and serialised together by a worker.
+	 *
+	 * @param size the size of batches
+	 * @return this pipeline
+	 */
+	public synchronized Pipeline batching(int size) {
+		checkConfigurable();
+		if (size < 1)
+			throw new IllegalArgumentException("batches must have at least one object");
+		this.batchSize = size;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of objects that can be submitted to this pipeline and not yet delivered to the sink.
+	 *
+	 * @param capacity the capacity
+	 * @return this pipeline
+	 */
+	public synchronized Pipeline bounded(int capacity) {
+		checkConfigurable();
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least one object");
+		this.capacity = capacity;
+		return this;
+	}
+
+	/**
+	 * Submits an object to this pipeline, blocking if the pipeline is at capacity.
+	 *
+	 * @param o the object
+	 * @throws Exception if the pipeline has failed to convert, serialise, or deliver previous objects
+	 */
+	public void submit(Object o) throws Exception {
+
+		start();
+
+		checkFailure();
+
+		// at capacity, the partial batch may hold the permits that would be released
+		if (!permits.tryAcquire()) {
+
+			synchronized (this) {
+				if (!pending.isEmpty())
+					dispatch();
+			}
+
+			permits.acquire();
+		}
+
+		synchronized (this) {
+
+			if (closed) {
+				permits.release();
+				throw new IllegalStateException("pipeline is closed");
+			}
+
+			pending.add(o);
+
+			if (pending.size() >= batchSize)
+				dispatch();
+		}
+	}
+
+	/**
+	 * Waits until all the objects submitted so far are delivered to the sink.
+	 *
+	 * @throws Exception if the pipeline has failed to convert, serialise, or deliver some object
+	 */
+	public void flush() throws Exception {
+
+		start();
+
+		synchronized (this) {
+			if (!pending.isEmpty())
+				dispatch();
+		}
+
+		// all the permits are back only when all objects are delivered
+		while (!permits.tryAcquire(capacity, 100, TimeUnit.MILLISECONDS))
+			checkFailure();
+
+		permits.release(capacity);
+
+		checkFailure();
+	}
+
+	/**
+	 * Delivers all the objects submitted so far and closes this pipeline.
+	 *
+	 * @throws IOException if the pipeline has failed to convert, serialise, or deliver some object
+	 */
+	@Override
+	public void close() throws IOException {
+
+		synchronized (this) {
+
+			if (closed)
+				return;
+
+			// nothing was submitted, and there are no workers to stop
+			if (!started) {
+				closed = true;
+				return;
+			}
+		}
+
+		try {
+			flush();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("pipeline failed", e);
+		} finally {
+
+			synchronized (this) {
+				closed = true;
+			}
+
+			if (ownsExecutor)
+				executor.shutdown();
+		}
+	}
+
+	// helpers
+
+	private void checkConfigurable() {
+		if (started)
+			throw new IllegalStateException("pipeline has already started");
+	}
+
+	private void checkFailure() throws Exception {
+		if (failure != null)
+			throw failure;
+	}
+
+	private synchronized void start() {
+
+		if (started)
+			return;
+
+		if (closed)
+			throw new IllegalStateException("pipeline is closed");
+
+		if (executor == null) {
+
+			final AtomicInteger count = new AtomicInteger();
+
+			executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "pipeline-worker-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			ownsExecutor = true;
+		}
+
+		permits = new Semaphore(capacity);
+
+		started = true;
+	}
+
+	// called with the lock held
+	private void dispatch() {
+
+		final Batch batch = new Batch(dispatched++, pending);
+
+		pending = new ArrayList<Object>(batchSize);
+
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+					batch.serialise(directives);
+				} catch (Exception e) {
+					batch.failure = e;
+				}
+
+				deliver(batch);
+			}
+		});
+	}
+
+	// delivers completed batches in sequence, from whichever worker completes the next one, outside the lock so that
+	// a slow sink does not hold up submitters
+	private void deliver(Batch batch) {
+
+		synchronized (this) {
+
+			completed.put(batch.sequence, batch);
+
+			// the worker that is delivering will deliver this batch too
+			if (delivering)
+				return;
+
+			delivering = true;
+		}
+
+		while (true) {
+
+			Batch next;
+
+			synchronized (this) {
+
+				next = completed.remove(delivered);
+
+				if (next == null) {
+					delivering = false;
+					return;
+				}
+
+				delivered++;
+			}
+
+			try {
+
+				if (next.failure != null)
+					throw next.failure;
+
+				if (failure == null)
+					for (int i = 0; i < next.objects.size(); i++)
+						sink.write(next.objects.get(i), next.serialisations.get(i));
+
+			} catch (Exception e) {
+				if (failure == null)
+					failure = e;
+			} finally {
+				permits.release(next.objects.size());
+			}
+		}
+	}
+
+	private static class Batch {
+
+		final long sequence;
+		final List<Object> objects;
+		final List<byte[]> serialisations;
+
+		Exception failure;
+
+		Batch(long sequence, List<Object> objects) {
+			this.sequence = sequence;
+			this.objects = objects;
+			this.serialisations = new ArrayList<byte[]>(objects.size());
+		}
+
+		void serialise(Directives directives) throws Exception {
+
+			// marshallers are not thread-safe, but one per batch is cheap enough
+			Marshaller marshaller = DynamicIO.newInstance().createMarshaller();
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+			for (Object value : Dynamic.externalValueOfAll(objects, directives)) {
+				bytes.reset();
+				marshaller.marshal(value, bytes);
+				serialisations.add(bytes.toByteArray());
+			}
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package org.dynamicvalues;
+
+import static java.lang.reflect.Modifier.*;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The reflective analysis of a class that the engine needs to copy its instances, computed once per class.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+final class Plan {
+
+	private static final ConcurrentMap<Class<?>, Plan> plans = new ConcurrentHashMap<Class<?>, Plan>();
+
+	/**
+	 * Returns the plan of a given class.
+	 *
+	 * @param clazz the class
+	 * @return the plan
+	 */
+	static Plan of(Class<?> clazz) {
+
+		Plan plan = plans.get(clazz);
+
+		if (plan == null) {
+			plan = new Plan(clazz);
+			Plan existing = plans.putIfAbsent(clazz, plan);
+			if (existing != null)
+				plan = existing;
+		}
+
+		return plan;
+	}
+
+	/**
+	 * Whether the class is marked {@link Immutable}.
+	 */
+	final boolean immutable;
+
+	/**
+	 * The generated {@link Copier} of the class, if it is {@link Copyable} and has one.
+	 */
+	final Copier<Object> copier;
+
+	private final Class<?> clazz;
+
+	// the no-argument constructor of the class, if it has one
+	private final Constructor<?> constructor;
+
+	// the fields are analysed when first needed, as classes with generated copiers may never need them
+	private volatile List<Field> fields;
+	private volatile Map<String, Field> named;
+
+	private Plan(Class<?> clazz) {
+
+		this.clazz = clazz;
+		this.constructor = allocator == null ? constructorOf(clazz) : null;
+
+		immutable = clazz.isAnnotationPresent(Immutable.class);
+		copier = clazz.isAnnotationPresent(Copyable.class) ? copierOf(clazz) : null;
+	}
+
+	/**
+	 * Returns the instance fields of the class, inherited ones first, already made accessible.
+	 *
+	 * @return the fields
+	 */
+	List<Field> fields() {
+
+		List<Field> fields = this.fields;
+
+		// concurrent analyses yield the same fields
+		if (fields == null) {
+
+			List<Field> analysed = new ArrayList<Field>();
+
+			Class<?> superclass = clazz.getSuperclass();
+
+			if (superclass != null)
+				analysed.addAll(of(superclass).fields());
+
+			for (Field field : clazz.getDeclaredFields())
+				if (!isStatic(field.getModifiers())) {
+					field.setAccessible(true);
+					analysed.add(field);
+				}
+
+			Map<String, Field> named = new HashMap<String, Field>();
+
+			for (Field field : analysed)
+				named.put(field.getName(), field);
+
+			this.named = Collections.unmodifiableMap(named);
+			this.fields = fields = Collections.unmodifiableList(Arrays.asList(analysed.toArray(new Field[analysed.size()])));
+		}
+
+		return fields;
+	}
+
+	/**
+	 * Returns the instance fields of the class by name, where fields hide the fields of superclasses with the same
+	 * name.
+	 *
+	 * @return the fields by name
+	 */
+	Map<String, Field> named() {
+
+		fields();
+
+		return named;
+	}
+
+	/**
+	 * Returns a new instance of the class, with default values for all its fields where possible.
+	 * <p>
+	 * Instances are allocated without running constructors where the JVM allows it, as in deserialisation, or else
+	 * with the no-argument constructor of the class.
+	 *
+	 * @return the instance
+	 * @throws IllegalArgumentException if the class cannot be instantiated
+	 * @throws Exception if the instance cannot be created
+	 */
+	Object newInstance() throws Exception {
+
+		if (allocator != null)
+			return allocator.invoke(unsafe, clazz);
+
+		if (constructor == null)
+			throw new IllegalArgumentException("cannot instantiate " + clazz + " without a no-argument constructor");
+
+		return constructor.newInstance();
+	}
+
+	// helpers
+
+	// allocates instances without constructors, if the JVM offers it
+	private static final Object unsafe;
+	private static final Method allocator;
+
+	static {
+
+		Object instance = null;
+		Method method = null;
+
+		try {
+			Class<?> clazz = Class.forName("sun.misc.Unsafe");
+			Field field = clazz.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			instance = field.get(null);
+			method = clazz.getMethod("allocateInstance", Class.class);
+		} catch (Exception e) {
+			method = null; // falls back to constructors
+		}
+
+		unsafe = instance;
+		allocator = method;
+	}
+
+	private static Constructor<?> constructorOf(Class<?> clazz) {
+
+		try {
+			Constructor<?> constructor = clazz.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return constructor;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Copier<Object> copierOf(Class<?> clazz) {
+
+		try {
+			return (Copier<Object>) Class.forName(clazz.getName() + Copier.SUFFIX, true, clazz.getClassLoader())
+					.newInstance();
+		} catch (ClassNotFoundException e) {
+			return null; // not generated, falls back to reflection
+		} catch (Exception e) {
+			throw new IllegalStateException("cannot instantiate generated copier for " + clazz, e);
+		}
+	}
+}
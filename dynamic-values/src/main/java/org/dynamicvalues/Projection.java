@@ -0,0 +1,121 @@
+package org.dynamicvalues;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled set of field paths, which limits value copies to the fields along the paths.
+ * <p>
+ * A projection is a tree of field names. The fields of an object that are copied under a node are its children, and
+ * each of them is copied under the corresponding child. Copies under a leaf are complete. The elements of collections,
+ * arrays, and maps are copied under the same node as their container, i.e. containers are transparent to projections.
+ * <p>
+ * The fields selected by a node are resolved once per class, from the {@link Plan} of the class.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+final class Projection {
+
+	private static final Pattern segment = Pattern.compile("[\\p{javaJavaIdentifierStart}][\\p{javaJavaIdentifierPart}]*(\\[\\*\\])*");
+
+	/**
+	 * Compiles a projection from a list of paths.
+	 *
+	 * @param paths the paths
+	 * @return the projection
+	 * @throws IllegalArgumentException if the paths are malformed
+	 */
+	static Projection of(List<String> paths) {
+
+		Projection root = new Projection();
+
+		for (String path : paths) {
+
+			if (path == null || path.isEmpty())
+				throw new IllegalArgumentException("empty path");
+
+			Projection node = root;
+
+			for (String step : path.split("\\.", -1)) {
+
+				if (!segment.matcher(step).matches())
+					throw new IllegalArgumentException("malformed path " + path + " at '" + step + "'");
+
+				// element steps are implicit
+				String name = step.replace("[*]", "");
+
+				Projection child = node.children.get(name);
+
+				if (child == null) {
+					child = new Projection();
+					node.children.put(name, child);
+				}
+
+				node = child;
+			}
+
+			// a shorter path includes longer ones
+			node.children.clear();
+			node.leaf = true;
+		}
+
+		return root;
+	}
+
+	private final Map<String, Projection> children = new HashMap<String, Projection>();
+
+	private boolean leaf;
+
+	// selected fields by class
+	private final ConcurrentMap<Class<?>, List<Field>> fields = new ConcurrentHashMap<Class<?>, List<Field>>();
+
+	private Projection() {
+	}
+
+	/**
+	 * Returns the fields of a given class selected by this projection.
+	 *
+	 * @param clazz the class
+	 * @return the fields, inherited ones first
+	 */
+	List<Field> fieldsOf(Class<?> clazz) {
+
+		List<Field> selected = fields.get(clazz);
+
+		if (selected == null) {
+
+			selected = new ArrayList<Field>();
+
+			for (Field field : Plan.of(clazz).fields())
+				if (children.containsKey(field.getName()))
+					selected.add(field);
+
+			selected = Collections.unmodifiableList(selected);
+
+			fields.putIfAbsent(clazz, selected);
+		}
+
+		return selected;
+	}
+
+	/**
+	 * Returns the projection of a given field selected by this projection.
+	 *
+	 * @param name the name of the field
+	 * @return the projection, or <code>null</code> if the field is to be copied completely
+	 */
+	Projection child(String name) {
+
+		Projection child = children.get(name);
+
+		return child == null || child.leaf ? null : child;
+	}
+}
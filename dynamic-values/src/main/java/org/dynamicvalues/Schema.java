@@ -0,0 +1,533 @@
+package org.dynamicvalues;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dynamicvalues.Externals.ValueList;
+import org.dynamicvalues.Externals.ValueMap;
+import org.dynamicvalues.Fingerprint.Identity;
+
+/**
+ * The structure of a stream of dynamic values, inferred incrementally as the values are observed.
+ * <p>
+ * A schema describes the values observed at a position of the stream: the types of atomic values, whether they include
+ * <code>null</code>, the sizes of dynamic lists and dynamic maps, the schema of list elements, and the schemas of map
+ * fields, including whether they are optional. The fields of a map position are tracked by key up to a maximum
+ * number, beyond which the position becomes <em>open</em> and is described by a single schema for all keys and one for
+ * all values. A schema thus occupies memory in proportion to the number of distinct shapes in the stream, rather than
+ * to the number of values.
+ * <p>
+ * Schemas can be fed directly by value copies (see {@link Directives#inferring(Schema)}), and report changes to their
+ * shape to help detect drift in the stream ({@link #observe(Object)}). They are safe for concurrent use.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+public final class Schema {
+
+	/**
+	 * The default maximum number of fields tracked by key at a map position.
+	 */
+	public static final int DEFAULT_MAX_FIELDS = 256;
+
+	private final Object lock;
+	private final int maxFields;
+
+	private long count;
+	private long nulls;
+
+	private final Map<Class<?>, Long> types = new LinkedHashMap<Class<?>, Long>();
+	private int maxLength;
+
+	private long lists;
+	private long maps;
+	private int minSize = Integer.MAX_VALUE;
+	private int maxSize;
+	private long totalSize;
+
+	private Schema elements;
+
+	private Map<Object, Schema> fields = new LinkedHashMap<Object, Schema>();
+	private boolean optional;
+
+	// for open positions
+	private Schema keys;
+	private Schema values;
+
+	/**
+	 * Creates an empty schema that tracks up to {@link #DEFAULT_MAX_FIELDS} per map position.
+	 */
+	public Schema() {
+		this(DEFAULT_MAX_FIELDS);
+	}
+
+	/**
+	 * Creates an empty schema that tracks up to a given number of fields per map position.
+	 *
+	 * @param maxFields the number of fields
+	 */
+	public Schema(int maxFields) {
+
+		if (maxFields < 0)
+			throw new IllegalArgumentException("maximum number of fields must be positive");
+
+		this.lock = this;
+		this.maxFields = maxFields;
+	}
+
+	private Schema(Schema parent) {
+		this.lock = parent.lock;
+		this.maxFields = parent.maxFields;
+	}
+
+	/**
+	 * Merges a dynamic value into this schema.
+	 *
+	 * @param value the value
+	 * @return <code>true</code> if the value changes the shape of this schema, i.e. it introduces a type, a field, an
+	 *         optional field, or <code>null</code> at some position, or makes some position open
+	 * @throws IllegalArgumentException if the value is not a dynamic value
+	 */
+	public boolean observe(Object value) {
+		synchronized (lock) {
+			return merge(value, new HashSet<Identity>());
+		}
+	}
+
+	/**
+	 * Returns the number of values observed at this position.
+	 *
+	 * @return the number of values
+	 */
+	public long count() {
+		synchronized (lock) {
+			return count;
+		}
+	}
+
+	/**
+	 * Returns the number of <code>null</code>s observed at this position.
+	 *
+	 * @return the number of <code>null</code>s
+	 */
+	public long nulls() {
+		synchronized (lock) {
+			return nulls;
+		}
+	}
+
+	/**
+	 * Returns the types of the atomic values observed at this position, with the number of values of each type.
+	 *
+	 * @return the types, in the order in which they were first observed
+	 */
+	public Map<Class<?>, Long> types() {
+		synchronized (lock) {
+			return Collections.unmodifiableMap(new LinkedHashMap<Class<?>, Long>(types));
+		}
+	}
+
+	/**
+	 * Returns the length of the longest string observed at this position.
+	 *
+	 * @return the length
+	 */
+	public int maxLength() {
+		synchronized (lock) {
+			return maxLength;
+		}
+	}
+
+	/**
+	 * Returns the number of dynamic lists observed at this position.
+	 *
+	 * @return the number of lists
+	 */
+	public long lists() {
+		synchronized (lock) {
+			return lists;
+		}
+	}
+
+	/**
+	 * Returns the number of dynamic maps observed at this position.
+	 *
+	 * @return the number of maps
+	 */
+	public long maps() {
+		synchronized (lock) {
+			return maps;
+		}
+	}
+
+	/**
+	 * Returns the size of the smallest list or map observed at this position.
+	 *
+	 * @return the size, or 0 if no lists or maps have been observed
+	 */
+	public int minSize() {
+		synchronized (lock) {
+			return lists + maps == 0 ? 0 : minSize;
+		}
+	}
+
+	/**
+	 * Returns the size of the largest list or map observed at this position.
+	 *
+	 * @return the size
+	 */
+	public int maxSize() {
+		synchronized (lock) {
+			return maxSize;
+		}
+	}
+
+	/**
+	 * Returns the average size of the lists and maps observed at this position.
+	 *
+	 * @return the average size, or 0 if no lists or maps have been observed
+	 */
+	public double averageSize() {
+		synchronized (lock) {
+			return lists + maps == 0 ? 0 : (double) totalSize / (lists + maps);
+		}
+	}
+
+	/**
+	 * Returns the schema of the elements of the lists observed at this position.
+	 *
+	 * @return the schema, or <code>null</code> if no list elements have been observed
+	 */
+	public Schema elements() {
+		synchronized (lock) {
+			return elements;
+		}
+	}
+
+	/**
+	 * Returns the schemas of the fields of the maps observed at this position, by key.
+	 *
+	 * @return the schemas, in the order in which the fields were first observed, or an empty map if this position is
+	 *         open
+	 */
+	public Map<Object, Schema> fields() {
+		synchronized (lock) {
+			return Collections.unmodifiableMap(new LinkedHashMap<Object, Schema>(fields));
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if this is the position of a field which is missing from some maps.
+	 *
+	 * @return <code>true</code> if this is the position of an optional field
+	 */
+	public boolean isOptional() {
+		synchronized (lock) {
+			return optional;
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the maps observed at this position have more than the maximum number of fields
+	 * tracked by key.
+	 *
+	 * @return <code>true</code> if this position is open
+	 */
+	public boolean isOpen() {
+		synchronized (lock) {
+			return keys != null;
+		}
+	}
+
+	/**
+	 * Returns the schema of the keys of the maps observed at this position, if it is open.
+	 *
+	 * @return the schema, or <code>null</code> if this position is not open
+	 */
+	public Schema keys() {
+		synchronized (lock) {
+			return keys;
+		}
+	}
+
+	/**
+	 * Returns the schema of the values of the maps observed at this position, if it is open.
+	 *
+	 * @return the schema, or <code>null</code> if this position is not open
+	 */
+	public Schema values() {
+		synchronized (lock) {
+			return values;
+		}
+	}
+
+	/**
+	 * Returns a compact description of this schema, e.g. <code>{name: String, tags?: [String], age: Integer|null}</code>
+	 * .
+	 */
+	@Override
+	public String toString() {
+		synchronized (lock) {
+			StringBuilder builder = new StringBuilder();
+			describe(builder);
+			return builder.toString();
+		}
+	}
+
+	// helpers
+
+	private boolean merge(Object value, Set<Identity> path) {
+
+		count++;
+
+		if (value == null) {
+			return nulls++ == 0;
+		}
+
+		if (value instanceof ValueList)
+			value = ((ValueList) value).elements;
+		else if (value instanceof ValueMap)
+			value = ((ValueMap) value).elements;
+
+		// a cycle: the value is already being observed, under the identity of what it stands for (e.g. in an arena)
+		if (path.contains(Identity.of(value))) {
+			count--;
+			return false;
+		}
+
+		if (value instanceof List)
+			return mergeList((List<?>) value, path);
+
+		if (value instanceof Map)
+			return mergeMap((Map<?, ?>) value, path);
+
+		if (Type.of(value) != Type.atomic)
+			throw new IllegalArgumentException("cannot infer schema of " + value + ": instances of "
+					+ value.getClass() + " are not dynamic values");
+
+		if (value instanceof String)
+			maxLength = Math.max(maxLength, ((String) value).length());
+
+		Long typed = types.get(value.getClass());
+
+		types.put(value.getClass(), typed == null ? 1 : typed + 1);
+
+		return typed == null;
+	}
+
+	private boolean mergeList(List<?> list, Set<Identity> path) {
+
+		boolean changed = lists++ == 0;
+
+		size(list.size());
+
+		if (list.isEmpty())
+			return changed;
+
+		if (elements == null)
+			elements = new Schema(this);
+
+		path.add(Identity.of(list));
+
+		for (Object element : list)
+			changed |= elements.merge(element, path);
+
+		path.remove(Identity.of(list));
+
+		return changed;
+	}
+
+	private boolean mergeMap(Map<?, ?> map, Set<Identity> path) {
+
+		boolean changed = maps++ == 0;
+
+		size(map.size());
+
+		path.add(Identity.of(map));
+
+		if (keys == null && fieldsFit(map)) {
+
+			for (Map.Entry<?, ?> e : map.entrySet()) {
+
+				Schema field = fields.get(e.getKey());
+
+				if (field == null) {
+					field = new Schema(this);
+					field.optional = maps > 1; // missing from earlier maps
+					fields.put(e.getKey(), field);
+					changed = true;
+				}
+
+				changed |= field.merge(e.getValue(), path);
+			}
+
+			if (map.size() < fields.size())
+				for (Map.Entry<Object, Schema> field : fields.entrySet())
+					if (!field.getValue().optional && !map.containsKey(field.getKey())) {
+						field.getValue().optional = true;
+						changed = true;
+					}
+
+		} else {
+
+			if (keys == null) {
+				open();
+				changed = true;
+			}
+
+			for (Map.Entry<?, ?> e : map.entrySet()) {
+				changed |= keys.merge(e.getKey(), path);
+				changed |= values.merge(e.getValue(), path);
+			}
+		}
+
+		path.remove(Identity.of(map));
+
+		return changed;
+	}
+
+	// whether the fields of the map can still be tracked by key
+	private boolean fieldsFit(Map<?, ?> map) {
+
+		int added = 0;
+
+		for (Object key : map.keySet()) {
+
+			if (Type.of(key) != Type.atomic)
+				return false;
+
+			if (!fields.containsKey(key))
+				added++;
+		}
+
+		return fields.size() + added <= maxFields;
+	}
+
+	// folds tracked fields into a schema for all keys and one for all values
+	private void open() {
+
+		keys = new Schema(this);
+		values = new Schema(this);
+
+		for (Map.Entry<Object, Schema> field : fields.entrySet()) {
+			keys.merge(field.getKey(), new HashSet<Identity>());
+			values.absorb(field.getValue());
+		}
+
+		fields = Collections.emptyMap();
+	}
+
+	// merges the observations of another schema at the same position
+	private void absorb(Schema other) {
+
+		long mapsBefore = maps;
+
+		count += other.count;
+		nulls += other.nulls;
+
+		for (Map.Entry<Class<?>, Long> type : other.types.entrySet()) {
+			Long typed = types.get(type.getKey());
+			types.put(type.getKey(), typed == null ? type.getValue() : typed + type.getValue());
+		}
+
+		maxLength = Math.max(maxLength, other.maxLength);
+
+		lists += other.lists;
+		maps += other.maps;
+		minSize = Math.min(minSize, other.minSize);
+		maxSize = Math.max(maxSize, other.maxSize);
+		totalSize += other.totalSize;
+
+		if (other.elements != null) {
+			if (elements == null)
+				elements = new Schema(this);
+			elements.absorb(other.elements);
+		}
+
+		if (other.keys != null) {
+			if (keys == null)
+				open();
+			keys.absorb(other.keys);
+			values.absorb(other.values);
+		} else if (keys != null)
+			for (Map.Entry<Object, Schema> field : other.fields.entrySet()) {
+				keys.merge(field.getKey(), new HashSet<Identity>());
+				values.absorb(field.getValue());
+			}
+		else {
+			for (Map.Entry<Object, Schema> field : other.fields.entrySet()) {
+
+				Schema mine = fields.get(field.getKey());
+
+				if (mine == null) {
+					mine = new Schema(this);
+					mine.optional = mapsBefore > 0;
+					fields.put(field.getKey(), mine);
+				}
+
+				mine.optional |= field.getValue().optional;
+				mine.absorb(field.getValue());
+			}
+
+			if (other.maps > 0)
+				for (Map.Entry<Object, Schema> field : fields.entrySet())
+					if (!other.fields.containsKey(field.getKey()))
+						field.getValue().optional = true;
+		}
+	}
+
+	private void size(int size) {
+		minSize = Math.min(minSize, size);
+		maxSize = Math.max(maxSize, size);
+		totalSize += size;
+	}
+
+	private void describe(StringBuilder builder) {
+
+		List<String> alternatives = new ArrayList<String>();
+
+		for (Class<?> type : types.keySet())
+			alternatives.add(type.getSimpleName());
+
+		if (lists > 0) {
+			StringBuilder list = new StringBuilder("[");
+			if (elements != null)
+				elements.describe(list);
+			alternatives.add(list.append("]").toString());
+		}
+
+		if (maps > 0) {
+
+			StringBuilder map = new StringBuilder("{");
+
+			if (keys != null) {
+				keys.describe(map);
+				map.append(": ");
+				values.describe(map);
+				map.append("...");
+			} else {
+
+				String separator = "";
+
+				for (Map.Entry<Object, Schema> field : fields.entrySet()) {
+					map.append(separator).append(field.getKey()).append(field.getValue().optional ? "?: " : ": ");
+					field.getValue().describe(map);
+					separator = ", ";
+				}
+			}
+
+			alternatives.add(map.append("}").toString());
+		}
+
+		if (nulls > 0)
+			alternatives.add("null");
+
+		for (int i = 0; i < alternatives.size(); i++)
+			builder.append(i == 0 ? "" : "|").append(alternatives.get(i));
+	}
+}
@@ -0,0 +1,372 @@
+package org.dynamicvalues;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * The spilling of a copy to a temporary file, once its values occupy more than a given number of bytes in memory.
+ * <p>
+ * Spills follow the copy as it unfolds, and account for the shallow size of each list and map it produces. Past the
+ * threshold, each list or map that is large enough is {@link Encoding encoded} to the file as soon as it is copied, and
+ * is replaced in the copy by a {@link Handle} that decodes it on access, and keeps it only as long as memory allows.
+ * The root of the copy is never spilled, nor are lists and maps that refer to values still being copied, i.e. that
+ * close cycles above them, or that contain atomic values that cannot be encoded.
+ * <p>
+ * Spilled values share no values with the rest of the copy: their objects are forgotten by the state of the copy, and
+ * are copied afresh if they are found again.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+final class Spill {
+
+	// the estimated size of a handle, in bytes
+	static final int HANDLE = 40;
+
+	// the smallest subtree worth spilling, in bytes
+	static final int MIN_SPILL = 256;
+
+	private final long threshold;
+	private final File directory;
+
+	// created on the first spill, and shared by the handles of all the copies that use this spill
+	private Store store;
+
+	// the estimated size of the values in memory
+	private long bytes;
+
+	// the lists and maps being copied, and their depths
+	private final List<Frame> frames = new ArrayList<Frame>();
+	private final Map<Object, Integer> open = new IdentityHashMap<Object, Integer>();
+
+	// smallest depth reached by back-references in the current values
+	private int reach = Integer.MAX_VALUE;
+
+	// the objects recorded in the state of the copy, in order
+	private final List<Object> log = new ArrayList<Object>();
+
+	Spill(long threshold, File directory) {
+		this.threshold = threshold;
+		this.directory = directory;
+	}
+
+	/**
+	 * Resets the accounting of this spill, for a new copy.
+	 */
+	void restart() {
+		bytes = 0;
+		frames.clear();
+		open.clear();
+		log.clear();
+		reach = Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Records that the state of the copy holds the value of a given object.
+	 *
+	 * @param key the object
+	 */
+	void recorded(Object key) {
+		log.add(key);
+	}
+
+	/**
+	 * Returns the value copy of an object which is not atomic, spilling the copy if required.
+	 *
+	 * @param o the object
+	 * @param type the type of the object
+	 * @param state the state of the copy
+	 * @param directives the directives of the copy
+	 * @return the value copy, or a handle to it
+	 * @throws Exception if the object cannot be copied, or its copy cannot be spilled
+	 */
+	Object copy(Object o, Type type, State state, Directives directives) throws Exception {
+
+		Integer ancestor = open.get(o);
+
+		// a cycle
+		if (ancestor != null) {
+			reach = Math.min(reach, ancestor);
+			return type.toDynamic(o, state, directives);
+		}
+
+		// copied once
+		if (state.containsKey(o))
+			return type.toDynamic(o, state, directives);
+
+		int depth = frames.size();
+
+		Frame frame = new Frame(log.size(), bytes);
+
+		frames.add(frame);
+		open.put(o, depth);
+
+		int outerReach = reach;
+
+		reach = Integer.MAX_VALUE;
+
+		Object value;
+
+		try {
+			value = type.toDynamic(o, state, directives);
+		} finally {
+			frames.remove(depth);
+			open.remove(o);
+		}
+
+		bytes += Footprint.shallowSizeOf(value);
+
+		if (depth > 0 && reach >= depth && !frame.opaque && bytes > threshold && bytes - frame.bytes >= MIN_SPILL
+				&& (value instanceof List || value instanceof Map) && !(value instanceof Handle))
+			value = spill(o, value, frame, state);
+
+		// values that contain this one cannot be encoded either
+		if (frame.opaque && depth > 0)
+			frames.get(depth - 1).opaque = true;
+
+		reach = Math.min(reach, outerReach);
+
+		return value;
+	}
+
+	/**
+	 * Returns the value that a given value stands for, i.e. the decoding of a {@link Handle} or the value itself.
+	 * <p>
+	 * Handles and their decodings differ in identity, hence values that are compared or encoded by identity, as those
+	 * that close cycles, must be resolved first.
+	 *
+	 * @param value the value
+	 * @return the value it stands for
+	 */
+	static Object resolve(Object value) {
+		return value instanceof Handle ? ((Handle) value).decoded() : value;
+	}
+
+	/**
+	 * A value spilled to file.
+	 */
+	interface Handle {
+
+		/**
+		 * Returns the decoding of the value.
+		 *
+		 * @return the decoding
+		 */
+		Object decoded();
+	}
+
+	// helpers
+
+	private Object spill(Object o, Object value, Frame frame, State state) throws Exception {
+
+		byte[] encoding;
+
+		try {
+			encoding = Encoding.encode(value);
+		} catch (IllegalArgumentException e) {
+			frame.opaque = true;
+			return value;
+		}
+
+		if (store == null)
+			store = new Store(directory);
+
+		Spilled spilled = new Spilled(store, store.append(encoding), encoding.length);
+
+		// forgets the objects of the subtree, so that their copies can be reclaimed
+		for (int i = log.size() - 1; i >= frame.mark; i--)
+			state.remove(log.remove(i));
+
+		Object handle = value instanceof List ? new SpilledList(spilled, ((List<?>) value).size()) : new SpilledMap(
+				spilled, ((Map<?, ?>) value).size());
+
+		state.put(o, handle);
+
+		bytes = frame.bytes + HANDLE;
+
+		return handle;
+	}
+
+	private static final class Frame {
+
+		// the length of the log, and the bytes in memory, when the value started to be copied
+		final int mark;
+		final long bytes;
+
+		boolean opaque;
+
+		Frame(int mark, long bytes) {
+			this.mark = mark;
+			this.bytes = bytes;
+		}
+	}
+
+	// an append-only temporary file
+	private static final class Store {
+
+		private final FileChannel channel;
+		private long end;
+
+		Store(File directory) throws IOException {
+
+			File file = File.createTempFile("values", ".spill", directory);
+
+			@SuppressWarnings("resource")
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+			channel = raf.getChannel();
+
+			// unlinked while open where the platform allows it, and on exit otherwise
+			if (!file.delete())
+				file.deleteOnExit();
+		}
+
+		synchronized long append(byte[] bytes) throws IOException {
+
+			long position = end;
+
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+			while (buffer.hasRemaining())
+				end += channel.write(buffer, end);
+
+			return position;
+		}
+
+		Object read(long position, int length) throws Exception {
+
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+
+			while (buffer.hasRemaining())
+				if (channel.read(buffer, position + buffer.position()) < 0)
+					throw new EOFException("spilled value is truncated at " + (position + buffer.position()));
+
+			buffer.flip();
+
+			return Encoding.decode(buffer);
+		}
+
+		@Override
+		protected void finalize() throws Throwable {
+			channel.close();
+		}
+	}
+
+	// the encoding of a value in a store, and its last decoding
+	private static final class Spilled {
+
+		private final Store store;
+		private final long position;
+		private final int length;
+
+		private SoftReference<Object> decoded = new SoftReference<Object>(null);
+
+		Spilled(Store store, long position, int length) {
+			this.store = store;
+			this.position = position;
+			this.length = length;
+		}
+
+		synchronized Object value() {
+
+			Object value = decoded.get();
+
+			if (value == null)
+				try {
+					value = store.read(position, length);
+					decoded = new SoftReference<Object>(value);
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IllegalStateException("cannot read spilled value", e);
+				}
+
+			return value;
+		}
+	}
+
+	private static final class SpilledList extends AbstractList<Object> implements RandomAccess, Handle {
+
+		private final Spilled spilled;
+		private final int size;
+
+		SpilledList(Spilled spilled, int size) {
+			this.spilled = spilled;
+			this.size = size;
+		}
+
+		@Override
+		public Object decoded() {
+			return spilled.value();
+		}
+
+		@Override
+		public Object get(int index) {
+			return list().get(index);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		private List<?> list() {
+			return (List<?>) spilled.value();
+		}
+	}
+
+	private static final class SpilledMap extends AbstractMap<Object, Object> implements Handle {
+
+		private final Spilled spilled;
+		private final int size;
+
+		SpilledMap(Spilled spilled, int size) {
+			this.spilled = spilled;
+			this.size = size;
+		}
+
+		@Override
+		public Object decoded() {
+			return spilled.value();
+		}
+
+		@Override
+		public Object get(Object key) {
+			return map().get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return map().containsKey(key);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Set<Map.Entry<Object, Object>> entrySet() {
+			return Collections.unmodifiableMap(map()).entrySet();
+		}
+
+		@SuppressWarnings("unchecked")
+		private Map<Object, Object> map() {
+			return (Map<Object, Object>) spilled.value();
+		}
+	}
+}
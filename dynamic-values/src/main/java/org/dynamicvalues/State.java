@@ -0,0 +1,261 @@
+package org.dynamicvalues;
+
+import java.util.IdentityHashMap;
+
+/**
+ * The state of a copy: the values produced so far, indexed by the objects they copy and compared by identity, the
+ * consumption of the {@link Budget} of the copy, if it has one, and the {@link Projection} of the object being
+ * copied, if the copy is projected, and its {@link Spill}, if it spills to file.
+ * 
+ * @author Fabio Simeoni
+ * 
+ */
+final class State extends IdentityHashMap<Object, Object> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Budget budget;
+	private final Projection root;
+	private final Spill spill;
+
+	// the projection of the object being copied, if any
+	private Projection projection;
+
+	// the path of the field being copied, if element exclusions need it
+	private final boolean tracking;
+	private String path;
+
+	private int depth;
+	private long nodes;
+	private long deadline;
+	private final boolean timed;
+
+	// set once nodes or time run out
+	private boolean exhausted;
+
+	State(Directives directives) {
+
+		this.budget = directives.budget();
+		this.timed = budget != null && budget.nanos != Long.MAX_VALUE;
+		this.root = directives.projection();
+		this.tracking = directives.elementExcludes().scopedToPaths();
+		this.spill = directives.spillBytes() > 0 ? new Spill(directives.spillBytes(), directives.spillDirectory()) : null;
+
+		restart();
+	}
+
+	/**
+	 * Resets the consumption of the budget and the projection, for a new copy.
+	 */
+	void restart() {
+
+		projection = root;
+		path = null;
+
+		depth = 0;
+		nodes = 0;
+		exhausted = false;
+
+		if (timed)
+			deadline = System.nanoTime() + budget.nanos;
+
+		if (spill != null)
+			spill.restart();
+	}
+
+	@Override
+	public Object put(Object key, Object value) {
+
+		if (spill != null)
+			spill.recorded(key);
+
+		return super.put(key, value);
+	}
+
+	/**
+	 * Returns <code>true</code> if the copy has a budget.
+	 * 
+	 * @return <code>true</code> if the copy has a budget
+	 */
+	boolean budgeted() {
+		return budget != null;
+	}
+
+	/**
+	 * Returns the spill of the copy.
+	 * 
+	 * @return the spill, or <code>null</code> if the copy does not spill to file
+	 */
+	Spill spill() {
+		return spill;
+	}
+
+	/**
+	 * Accounts for the copy of a given object.
+	 * <p>
+	 * Must be matched by {@link #exit(Type)} if the object can be copied.
+	 * 
+	 * @param o the object
+	 * @param type the type of the object
+	 * @return <code>null</code> if the object can be copied, or the value that replaces its copy otherwise
+	 * @throws BudgetExceededException if the object cannot be copied and the budget is not truncating
+	 */
+	Object enter(Object o, Type type) throws BudgetExceededException {
+
+		if (exhausted)
+			return budget.marker;
+
+		nodes++;
+
+		if (nodes > budget.nodes)
+			return exceeded("copy exceeds " + budget.nodes + " values", true);
+
+		if (timed && (nodes & 31) == 0 && System.nanoTime() - deadline > 0)
+			return exceeded("copy exceeds " + budget.nanos + " ns", true);
+
+		if (type == Type.atomic) {
+
+			if (o instanceof String && String.class.cast(o).length() > budget.strings) {
+
+				if (budget.marker == null)
+					throw new BudgetExceededException("string exceeds " + budget.strings + " characters");
+
+				String truncated = String.class.cast(o).substring(0, budget.strings);
+
+				return budget.marker instanceof String ? truncated + budget.marker : truncated;
+			}
+
+			return null;
+		}
+
+		if (type == Type.voidtype)
+			return null;
+
+		if (depth >= budget.depth)
+			return exceeded("copy exceeds depth " + budget.depth, false);
+
+		depth++;
+
+		return null;
+	}
+
+	/**
+	 * Accounts for the end of the copy of an object that could be copied.
+	 * 
+	 * @param type the type of the object
+	 */
+	void exit(Type type) {
+		if (type != Type.atomic && type != Type.voidtype)
+			depth--;
+	}
+
+	/**
+	 * Returns the number of elements that the copy of a collection, array, or map with a given number of elements
+	 * holds at most, including the marker if the budget truncates the elements.
+	 *
+	 * @param size the number of elements
+	 * @return the number of elements in the copy
+	 */
+	int elementsOf(int size) {
+		return budget == null || size <= budget.elements ? size : budget.elements + 1;
+	}
+
+	/**
+	 * Returns <code>true</code> if a collection, array, or map must not copy more elements.
+	 * <p>
+	 * If so, the collection, array, or map should include the {@link #marker()} and stop copying elements.
+	 * 
+	 * @param copied the number of elements copied so far
+	 * @return <code>true</code> if a collection, array, or map must not copy more elements
+	 * @throws BudgetExceededException if no more elements can be copied and the budget is not truncating
+	 */
+	boolean stops(int copied) throws BudgetExceededException {
+
+		if (budget == null)
+			return false;
+
+		if (exhausted)
+			return true;
+
+		if (copied >= budget.elements)
+			return exceeded("collection exceeds " + budget.elements + " elements", false) != null;
+
+		return false;
+	}
+
+	/**
+	 * Returns the projection of the object being copied.
+	 * 
+	 * @return the projection, or <code>null</code> if the object is to be copied completely
+	 */
+	Projection projection() {
+		return projection;
+	}
+
+	/**
+	 * Moves the projection, and the path if it is tracked, to a given field of the object being copied.
+	 * <p>
+	 * Must be matched by {@link #ascend(Projection)} when the field has been copied.
+	 * 
+	 * @param field the name of the field
+	 * @return the projection of the object
+	 */
+	Projection descend(String field) {
+
+		Projection outer = projection;
+
+		if (outer != null)
+			projection = outer.child(field);
+
+		if (tracking)
+			path = path == null ? field : path + "." + field;
+
+		return outer;
+	}
+
+	/**
+	 * Moves the projection, and the path if it is tracked, back to the object whose field has been copied.
+	 * 
+	 * @param outer the projection of the object
+	 */
+	void ascend(Projection outer) {
+
+		projection = outer;
+
+		if (tracking) {
+			int dot = path.lastIndexOf('.');
+			path = dot < 0 ? null : path.substring(0, dot);
+		}
+	}
+
+	/**
+	 * Returns the path of the field being copied, if element exclusions are scoped to paths.
+	 * 
+	 * @return the path, or <code>null</code> if no field is being copied or paths are not tracked
+	 */
+	String path() {
+		return path;
+	}
+
+	/**
+	 * Returns the marker of truncations.
+	 * 
+	 * @return the marker
+	 */
+	Object marker() {
+		return budget.marker;
+	}
+
+	// helpers
+
+	private Object exceeded(String message, boolean exhausting) throws BudgetExceededException {
+
+		if (budget.marker == null)
+			throw new BudgetExceededException(message);
+
+		if (exhausting)
+			exhausted = true;
+
+		return budget.marker;
+	}
+}
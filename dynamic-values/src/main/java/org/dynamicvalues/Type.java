@@ -1,18 +1,37 @@
 package org.dynamicvalues;
 
-import static java.lang.System.*;
-import static java.lang.reflect.Modifier.*;
-
 import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.dynamicvalues.Externals.ValueList;
 import org.dynamicvalues.Externals.ValueMap;
@@ -28,42 +47,160 @@ enum Type {
 	valuemap {
 
 		@Override
-		Object toDynamic(Object o, Map<Integer, Object> state, Directives directives) throws Exception {
+		Object toDynamic(Object o, State state, Directives directives) throws Exception {
 
-			Object value = state.get(identityHashCode(o));
+			Object value = state.get(o);
 			if (value != null)
 				return value;
 
 			Map<Object, Object> map = new LinkedHashMap<Object, Object>();
 
-			state.put(identityHashCode(o), map);
+			state.put(o, map);
+
+			for (Map.Entry<Object, Object> el : ValueMap.class.cast(o).elements.entrySet()) {
+
+				if (state.stops(map.size())) {
+					map.put(state.marker(), state.marker());
+					break;
+				}
 
-			for (Map.Entry<Object, Object> el : ValueMap.class.cast(o).elements.entrySet())
 				map.put(el.getKey(), Dynamic.valueOf(el.getValue(), state, directives));
+			}
 
 			return map;
 		}
+
+		@Override
+		long toArena(Object o, State state, Directives directives, Arena arena) throws Exception {
+
+			Object value = state.get(o);
+			if (value != null)
+				return (Long) value;
+
+			Map<Object, Object> elements = ValueMap.class.cast(o).elements;
+
+			long node = arena.open(Arena.MAP);
+
+			state.put(o, node);
+
+			Arena.Table table = new Arena.Table(2 * elements.size());
+
+			for (Map.Entry<Object, Object> el : elements.entrySet()) {
+
+				if (state.stops(table.size / 2)) {
+					table.add(arena.atomic(state.marker()));
+					table.add(arena.atomic(state.marker()));
+					break;
+				}
+
+				table.add(Dynamic.arenaValueOf(el.getKey(), state, directives, arena));
+				table.add(Dynamic.arenaValueOf(el.getValue(), state, directives, arena));
+			}
+
+			arena.close(node, table);
+
+			return node;
+		}
+
+		@Override
+		Object toClone(Object o, State state, Directives directives) throws Exception {
+
+			Object value = state.get(o);
+			if (value != null)
+				return value;
+
+			Map<Object, Object> elements = ValueMap.class.cast(o).elements;
+
+			Map<Object, Object> map = new LinkedHashMap<Object, Object>(capacityOf(elements.size()));
+
+			value = new ValueMap(map);
+
+			state.put(o, value);
+
+			for (Map.Entry<Object, Object> el : elements.entrySet())
+				map.put(Dynamic.cloneOf(el.getKey(), state, directives), Dynamic.cloneOf(el.getValue(), state, directives));
+
+			return value;
+		}
 	},
 
 	valuelist {
 
 		@Override
-		Object toDynamic(Object o, Map<Integer, Object> state, Directives directives) throws Exception {
+		Object toDynamic(Object o, State state, Directives directives) throws Exception {
 
-			Object value = state.get(identityHashCode(o));
+			Object value = state.get(o);
 			
 			if (value != null)
 				return value;
 
 			List<Object> list = new ArrayList<Object>();
 
-			state.put(identityHashCode(o), list);
+			state.put(o, list);
+
+			for (Object el : ValueList.class.cast(o).elements) {
+
+				if (state.stops(list.size())) {
+					list.add(state.marker());
+					break;
+				}
 
-			for (Object el : ValueList.class.cast(o).elements)
 				list.add(Dynamic.valueOf(el, state, directives));
+			}
 
 			return list;
 		}
+
+		@Override
+		long toArena(Object o, State state, Directives directives, Arena arena) throws Exception {
+
+			Object value = state.get(o);
+			if (value != null)
+				return (Long) value;
+
+			List<Object> elements = ValueList.class.cast(o).elements;
+
+			long node = arena.open(Arena.LIST);
+
+			state.put(o, node);
+
+			Arena.Table table = new Arena.Table(elements.size());
+
+			for (Object el : elements) {
+
+				if (state.stops(table.size)) {
+					table.add(arena.atomic(state.marker()));
+					break;
+				}
+
+				table.add(Dynamic.arenaValueOf(el, state, directives, arena));
+			}
+
+			arena.close(node, table);
+
+			return node;
+		}
+
+		@Override
+		Object toClone(Object o, State state, Directives directives) throws Exception {
+
+			Object value = state.get(o);
+			if (value != null)
+				return value;
+
+			List<Object> elements = ValueList.class.cast(o).elements;
+
+			List<Object> list = new ArrayList<Object>(elements.size());
+
+			value = new ValueList(list);
+
+			state.put(o, value);
+
+			for (Object element : elements)
+				list.add(Dynamic.cloneOf(element, state, directives));
+
+			return value;
+		}
 	},
 
 	voidtype,
@@ -71,137 +208,495 @@ enum Type {
 	atomic,
 
 	collection {
-		Object toExternal(Object o, Map<Integer, Object> state, Directives directives) throws Exception {
+		Object toExternal(Object o, State state, Directives directives) throws Exception {
 
-			Object value = state.get(identityHashCode(o));
+			Object value = state.get(o);
 			if (value != null)
 				return value;
 
-			List<Object> list = new ArrayList<Object>();
+			List<Object> list = new ArrayList<Object>(copySizeOf(sizeOf(o), state, directives));
 
 			value = new ValueList(list);
 			
-			state.put(identityHashCode(o), value);
+			state.put(o, value);
 
-			for (Object element : Iterable.class.cast(o))
-				list.add(Dynamic.externalValueOf(element, state, directives));
+			if (indexed(o)) {
+
+				List<?> elements = (List<?>) o;
+
+				for (int i = 0; i < elements.size(); i++) {
+
+					Object element = elements.get(i);
+
+					if (excluded(element, state, directives))
+						continue;
+
+					if (state.stops(list.size())) {
+						list.add(state.marker());
+						break;
+					}
+
+					list.add(Dynamic.externalValueOf(element, state, directives));
+				}
+
+				return value;
+			}
+
+			if (!emptyCollection(o))
+				for (Object element : Iterable.class.cast(o)) {
+
+					if (excluded(element, state, directives))
+						continue;
+
+					if (state.stops(list.size())) {
+						list.add(state.marker());
+						break;
+					}
+
+					list.add(Dynamic.externalValueOf(element, state, directives));
+				}
 
 			return value;
 		}
 
 		@Override
-		Object toDynamic(Object o, Map<Integer, Object> state,  Directives directives) throws Exception {
+		Object toDynamic(Object o, State state,  Directives directives) throws Exception {
 
-			Object value = state.get(identityHashCode(o));
+			Object value = state.get(o);
 			
 			if (value != null)
 				return value;
 
-			List<Object> list = new ArrayList<Object>();
+			List<Object> list = new ArrayList<Object>(copySizeOf(sizeOf(o), state, directives));
 
-			state.put(identityHashCode(o), list);
+			state.put(o, list);
 
-			for (Object element : Iterable.class.cast(o))
-				list.add(Dynamic.valueOf(element, state, directives));
+			if (indexed(o)) {
+
+				List<?> elements = (List<?>) o;
+
+				for (int i = 0; i < elements.size(); i++) {
+
+					Object element = elements.get(i);
+
+					if (excluded(element, state, directives))
+						continue;
+
+					if (state.stops(list.size())) {
+						list.add(state.marker());
+						break;
+					}
+
+					list.add(Dynamic.valueOf(element, state, directives));
+				}
+
+				return list;
+			}
+
+			if (!emptyCollection(o))
+				for (Object element : Iterable.class.cast(o)) {
+
+					if (excluded(element, state, directives))
+						continue;
+
+					if (state.stops(list.size())) {
+						list.add(state.marker());
+						break;
+					}
+
+					list.add(Dynamic.valueOf(element, state, directives));
+				}
 
 			return list;
 		}
+
+		@Override
+		long toArena(Object o, State state, Directives directives, Arena arena) throws Exception {
+
+			Object value = state.get(o);
+			if (value != null)
+				return (Long) value;
+
+			long node = arena.open(Arena.LIST);
+
+			state.put(o, node);
+
+			Arena.Table table = new Arena.Table(copySizeOf(sizeOf(o), state, directives));
+
+			if (indexed(o)) {
+
+				List<?> elements = (List<?>) o;
+
+				for (int i = 0; i < elements.size(); i++) {
+
+					Object element = elements.get(i);
+
+					if (excluded(element, state, directives))
+						continue;
+
+					if (state.stops(table.size)) {
+						table.add(arena.atomic(state.marker()));
+						break;
+					}
+
+					table.add(Dynamic.arenaValueOf(element, state, directives, arena));
+				}
+			}
+			else if (!emptyCollection(o))
+				for (Object element : Iterable.class.cast(o)) {
+
+					if (excluded(element, state, directives))
+						continue;
+
+					if (state.stops(table.size)) {
+						table.add(arena.atomic(state.marker()));
+						break;
+					}
+
+					table.add(Dynamic.arenaValueOf(element, state, directives, arena));
+				}
+
+			arena.close(node, table);
+
+			return node;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		Object toClone(Object o, State state, Directives directives) throws Exception {
+
+			Object value = state.get(o);
+			if (value != null)
+				return value;
+
+			// elements are constants
+			if (o instanceof EnumSet) {
+				value = EnumSet.class.cast(o).clone();
+				state.put(o, value);
+				return value;
+			}
+
+			Collection<Object> clone = o instanceof Collection ? (Collection<Object>) newInstance(o) : null;
+
+			// other iterables, and collections that cannot be rebuilt from their elements, are cloned as objects
+			if (clone == null)
+				return object.toClone(o, state, directives);
+
+			state.put(o, clone);
+
+			if (indexed(o)) {
+
+				List<?> elements = (List<?>) o;
+
+				for (int i = 0; i < elements.size(); i++)
+					clone.add(Dynamic.cloneOf(elements.get(i), state, directives));
+			}
+			else
+				for (Object element : Collection.class.cast(o))
+					clone.add(Dynamic.cloneOf(element, state, directives));
+
+			return clone;
+		}
+
+		// lists with random access are read by index, without iterators
+		private boolean indexed(Object o) {
+			return o instanceof List && o instanceof RandomAccess;
+		}
+
+		// empty collections are not iterated at all
+		private boolean emptyCollection(Object o) {
+			return o instanceof Collection && Collection.class.cast(o).isEmpty();
+		}
 	},
 
 	array {
-		Object toExternal(Object o, Map<Integer, Object> state, Directives directives) throws Exception {
+		Object toExternal(Object o, State state, Directives directives) throws Exception {
 
-			Object value = state.get(identityHashCode(o));
+			Object value = state.get(o);
 			if (value != null)
 				return value;
 
-			List<Object> list = new ArrayList<Object>();
+			List<Object> list = new ArrayList<Object>(copySizeOf(Array.getLength(o), state, directives));
 
 			value = new ValueList(list);
 
-			state.put(identityHashCode(o), value);
+			state.put(o, value);
+
+			for (int i = 0; i < Array.getLength(o); i++) {
+
+				Object element = Array.get(o, i);
+
+				if (excluded(element, state, directives))
+					continue;
+
+				if (state.stops(list.size())) {
+					list.add(state.marker());
+					break;
+				}
 
-			for (int i = 0; i < Array.getLength(o); i++)
-				list.add(Dynamic.externalValueOf(Array.get(o, i), state, directives));
+				list.add(Dynamic.externalValueOf(element, state, directives));
+			}
 
 			return value;
 		}
 
 		@Override
-		Object toDynamic(Object o, Map<Integer, Object> state,  Directives directives) throws Exception {
+		Object toDynamic(Object o, State state,  Directives directives) throws Exception {
 
-			Object value = state.get(identityHashCode(o));
+			Object value = state.get(o);
 
 			if (value != null)
 				return value;
 
-			List<Object> list = new ArrayList<Object>();
+			List<Object> list = new ArrayList<Object>(copySizeOf(Array.getLength(o), state, directives));
+
+			state.put(o, list);
+
+			for (int i = 0; i < Array.getLength(o); i++) {
+
+				Object element = Array.get(o, i);
+
+				if (excluded(element, state, directives))
+					continue;
 
-			state.put(identityHashCode(o), list);
+				if (state.stops(list.size())) {
+					list.add(state.marker());
+					break;
+				}
 
-			for (int i = 0; i < Array.getLength(o); i++)
-				list.add(Dynamic.valueOf(Array.get(o, i), state, directives));
+				list.add(Dynamic.valueOf(element, state, directives));
+			}
 
 			return list;
 		}
+
+		@Override
+		long toArena(Object o, State state, Directives directives, Arena arena) throws Exception {
+
+			Object value = state.get(o);
+			if (value != null)
+				return (Long) value;
+
+			long node = arena.open(Arena.LIST);
+
+			state.put(o, node);
+
+			Arena.Table table = new Arena.Table(copySizeOf(Array.getLength(o), state, directives));
+
+			for (int i = 0; i < Array.getLength(o); i++) {
+
+				Object element = Array.get(o, i);
+
+				if (excluded(element, state, directives))
+					continue;
+
+				if (state.stops(table.size)) {
+					table.add(arena.atomic(state.marker()));
+					break;
+				}
+
+				table.add(Dynamic.arenaValueOf(element, state, directives, arena));
+			}
+
+			arena.close(node, table);
+
+			return node;
+		}
+
+		@Override
+		Object toClone(Object o, State state, Directives directives) throws Exception {
+
+			Object value = state.get(o);
+			if (value != null)
+				return value;
+
+			int length = Array.getLength(o);
+
+			Class<?> component = o.getClass().getComponentType();
+
+			value = Array.newInstance(component, length);
+
+			state.put(o, value);
+
+			if (component.isPrimitive())
+				System.arraycopy(o, 0, value, 0, length);
+			else {
+
+				Object[] elements = (Object[]) o, clone = (Object[]) value;
+
+				for (int i = 0; i < length; i++)
+					clone[i] = Dynamic.cloneOf(elements[i], state, directives);
+			}
+
+			return value;
+		}
 	},
 
 	map {
 		@Override
-		Object toExternal(Object o, Map<Integer, Object> state,  Directives directives) throws Exception {
+		Object toExternal(Object o, State state,  Directives directives) throws Exception {
 
-			Object value = state.get(identityHashCode(o));
+			Object value = state.get(o);
 
 			if (value != null)
 				return value;
 
-			Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+			Map<Object, Object> map = new LinkedHashMap<Object, Object>(capacityOf(copySizeOf(((Map<?, ?>) o).size(), state, directives)));
 
 			value = new ValueMap(map);
 
-			state.put(identityHashCode(o), value);
+			state.put(o, value);
 
-			for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet())
-				map.put(Dynamic.externalValueOf(e.getKey(), state, directives),
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+
+				if (excluded(e.getValue(), state, directives))
+					continue;
+
+				if (state.stops(map.size())) {
+					map.put(state.marker(), state.marker());
+					break;
+				}
+
+				map.put(direct(e.getKey(), state, directives) ? e.getKey() : Dynamic.externalValueOf(e.getKey(), state, directives),
 						Dynamic.externalValueOf(e.getValue(), state, directives));
+			}
+
+			if (directives.isCanonical())
+				canonicalise(map);
 
 			return value;
 		}
 
 		@Override
-		Object toDynamic(Object o, Map<Integer, Object> state,  Directives directives) throws Exception {
+		Object toDynamic(Object o, State state,  Directives directives) throws Exception {
 
-			Object value = state.get(identityHashCode(o));
+			Object value = state.get(o);
 
 			if (value != null)
 				return value;
 
-			Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+			Map<Object, Object> map = new LinkedHashMap<Object, Object>(capacityOf(copySizeOf(((Map<?, ?>) o).size(), state, directives)));
 
-			state.put(identityHashCode(o), map);
+			state.put(o, map);
 
-			for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet())
-				map.put(Dynamic.valueOf(e.getKey(), state, directives),
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+
+				if (excluded(e.getValue(), state, directives))
+					continue;
+
+				if (state.stops(map.size())) {
+					map.put(state.marker(), state.marker());
+					break;
+				}
+
+				map.put(direct(e.getKey(), state, directives) ? e.getKey() : Dynamic.valueOf(e.getKey(), state, directives),
 						Dynamic.valueOf(e.getValue(), state, directives));
+			}
+
+			if (directives.isCanonical())
+				canonicalise(map);
 
 			return map;
 		}
+
+		@Override
+		long toArena(Object o, State state, Directives directives, Arena arena) throws Exception {
+
+			Object value = state.get(o);
+			if (value != null)
+				return (Long) value;
+
+			long node = arena.open(Arena.MAP);
+
+			state.put(o, node);
+
+			Arena.Table table = new Arena.Table(2 * copySizeOf(((Map<?, ?>) o).size(), state, directives));
+
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+
+				if (excluded(e.getValue(), state, directives))
+					continue;
+
+				if (state.stops(table.size / 2)) {
+					table.add(arena.atomic(state.marker()));
+					table.add(arena.atomic(state.marker()));
+					break;
+				}
+
+				table.add(direct(e.getKey(), state, directives) ? arena.atomic(e.getKey()) : Dynamic.arenaValueOf(e.getKey(), state, directives, arena));
+				table.add(Dynamic.arenaValueOf(e.getValue(), state, directives, arena));
+			}
+
+			arena.close(node, table);
+
+			return node;
+		}
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Object toClone(Object o, State state, Directives directives) throws Exception {
+
+			Object value = state.get(o);
+			if (value != null)
+				return value;
+
+			// keys are constants, values are replaced below
+			Map<Object, Object> clone = o instanceof EnumMap ? new EnumMap((EnumMap) o) : (Map<Object, Object>) newInstance(o);
+
+			// maps that cannot be rebuilt from their entries are cloned as objects
+			if (clone == null)
+				return object.toClone(o, state, directives);
+
+			state.put(o, clone);
+
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet())
+				clone.put(Dynamic.cloneOf(e.getKey(), state, directives), Dynamic.cloneOf(e.getValue(), state, directives));
+
+			return clone;
+		}
+
+		// reorders entries in place, as the map may already be shared
+		private void canonicalise(Map<Object, Object> map) {
+
+			List<Map.Entry<Object, Object>> entries = new ArrayList<Map.Entry<Object, Object>>(map.size());
+
+			for (Map.Entry<Object, Object> e : map.entrySet())
+				entries.add(new AbstractMap.SimpleImmutableEntry<Object, Object>(e));
+
+			Collections.sort(entries, new Comparator<Map.Entry<Object, Object>>() {
+
+				@Override
+				public int compare(Map.Entry<Object, Object> e1, Map.Entry<Object, Object> e2) {
+					return Fingerprint.canonicalOrder.compare(e1.getKey(), e2.getKey());
+				}
+			});
+
+			map.clear();
+
+			for (Map.Entry<Object, Object> e : entries)
+				map.put(e.getKey(), e.getValue());
+		}
 	},
 
 	object {
 		
-		Object toExternal(Object o, Map<Integer, Object> state,  Directives directives) throws Exception {
+		Object toExternal(Object o, State state,  Directives directives) throws Exception {
 
-			Object value = state.get(System.identityHashCode(o));
+			Object value = state.get(o);
 			
 			if (value != null)
 				return value;
 
-			Map<Object, Object> map = new HashMap<Object, Object>();
+			boolean cacheable = cacheable(o, state, directives);
+			
+			if (cacheable && (value = fromCache(o, state, directives, true)) != null)
+				return value;
+			
+			Map<Object, Object> map = newMap(directives);
 
 			ValueMap vmap = new ValueMap(map);
 			
-			state.put(System.identityHashCode(o), vmap);
+			state.put(o, vmap);
 
 			for (Map.Entry<String,Object> field : gatherFields(o, state, directives).entrySet()) {
 				
@@ -209,31 +704,52 @@ enum Type {
 				if (field.getKey().startsWith("this$"))
 					continue;
 				
-				Object fieldValue = Dynamic.externalValueOf(field.getValue(), state, directives);
+				Projection outer = state.descend(field.getKey());
 				
-				if (fieldValue != null && !empty(fieldValue))
-					map.put(field.getKey(), fieldValue);
+				try {
+					Object fieldValue = Dynamic.externalValueOf(field.getValue(), state, directives);
+				
+					if (fieldValue != null && !empty(fieldValue))
+						map.put(field.getKey(), fieldValue);
+				}
+				finally {
+					state.ascend(outer);
+				}
 			}
 			
 			vmap.elements = withoutEmpties(vmap.elements);
 			
+			if (cacheable) {
+				vmap.freeze();
+				toCache(o, state, directives, true, vmap);
+			}
+			
 			return vmap;
 		}
 
-		Object toDynamic(Object o, Map<Integer, Object> state, Directives directives) throws Exception {
+		Object toDynamic(Object o, State state, Directives directives) throws Exception {
 
 			// have/are we already produced/producing a value for this?
-			Object value = state.get(identityHashCode(o));
+			Object value = state.get(o);
 
 			// then return it
 			if (value != null)
 				return value;
 
+			// or reuse one produced by a previous copy, if we can
+			boolean cacheable = cacheable(o, state, directives);
+			
+			if (cacheable && (value = fromCache(o, state, directives, false)) != null)
+				return value;
+
 			// otherwise compute fresh one
-			Map<Object, Object> map = new HashMap<Object, Object>();
+			Map<Object, Object> map = newMap(directives);
+
+			// cached copies are unmodifiable, including as their own back-references
+			Map<Object, Object> copy = cacheable ? Collections.unmodifiableMap(map) : map;
 
 			// and store it _before_ next recursive invocation
-			state.put(System.identityHashCode(o), map);
+			state.put(o, copy);
 			
 			for (Map.Entry<String,Object> field : gatherFields(o, state, directives).entrySet()) {
 				
@@ -241,24 +757,157 @@ enum Type {
 				if (field.getKey().startsWith("this$"))
 					continue;
 				
+				Projection outer = state.descend(field.getKey());
+				
 				try {
 					Object fieldValue = Dynamic.valueOf(field.getValue(), state, directives);
 				
 					if (fieldValue != null)
 						map.put(field.getKey(), fieldValue);
 				}
+				catch(BudgetExceededException e) {
+					throw e;
+				}
 				catch(Exception e) {
 					throw new Exception("cannot turn field "+field.getKey()+" with value "+field.getValue()+" into a dynamic value",e);
 				}
+				finally {
+					state.ascend(outer);
+				}
 			}
 
-			return withoutEmpties(map);
+			withoutEmpties(map);
+			
+			if (cacheable)
+				toCache(o, state, directives, false, copy);
+			
+			return copy;
+		}
+
+		@Override
+		long toArena(Object o, State state, Directives directives, Arena arena) throws Exception {
+
+			Object value = state.get(o);
+			if (value != null)
+				return (Long) value;
+
+			long node = arena.open(Arena.MAP);
+
+			state.put(o, node);
+
+			Map<String, Object> fields = gatherFields(o, state, directives);
+
+			Arena.Table table = new Arena.Table(2 * fields.size());
+
+			for (Map.Entry<String, Object> field : fields.entrySet()) {
+
+				// skip reference to owner object, if any
+				if (field.getKey().startsWith("this$"))
+					continue;
+
+				Projection outer = state.descend(field.getKey());
+
+				try {
+					long fieldValue = Dynamic.arenaValueOf(field.getValue(), state, directives, arena);
+
+					// unlike in other copies, empties are known when the field is stored
+					if (!arena.isEmpty(fieldValue)) {
+						table.add(arena.name(field.getKey()));
+						table.add(fieldValue);
+					}
+				} catch (BudgetExceededException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new Exception("cannot turn field " + field.getKey() + " with value " + field.getValue()
+							+ " into a dynamic value", e);
+				} finally {
+					state.ascend(outer);
+				}
+			}
+
+			arena.close(node, table);
+
+			return node;
+		}
+
+		@Override
+		Object toClone(Object o, State state, Directives directives) throws Exception {
+
+			Object value = state.get(o);
+
+			if (value != null)
+				return value;
+
+			Class<?> clazz = o.getClass();
+
+			// constants, and instances declared immutable
+			if (o instanceof Enum || o instanceof Class || directives.isImmutable(clazz))
+				return o;
+
+			Plan plan = Plan.of(clazz);
+
+			value = plan.newInstance();
+
+			state.put(o, value);
+
+			field: for (Field field : plan.fields()) {
+
+				for (Exclusion directive : directives.fieldExcludes())
+					if (directive.exclude(o, field)) {
+						reset(value, field);
+						continue field;
+					}
+
+				Object fieldValue = field.get(o);
+
+				if (fieldValue == null)
+					continue;
+
+				for (ValueExclusion directive : directives.valueExcludes())
+					if (directive.exclude(o, field, fieldValue)) {
+						reset(value, field);
+						continue field;
+					}
+
+				field.set(value, field.getType().isPrimitive() ? fieldValue : Dynamic.cloneOf(fieldValue, state, directives));
+			}
+
+			return value;
 		}
 
 		
 		
 		//helpers
 		
+		// copies that depend on where objects are found, or on what is left of a budget, are not reusable elsewhere
+		private boolean cacheable(Object o, State state, Directives directives) {
+			return directives.cache() != null && state.projection() == null && !state.budgeted()
+					&& !directives.elementExcludes().scopedToPaths() && directives.isImmutable(o.getClass());
+		}
+		
+		private Object fromCache(Object o, State state, Directives directives, boolean external) {
+			
+			Object value = directives.cache().get(o, external);
+			
+			if (value != null)
+				state.put(o, value);
+			
+			return value;
+		}
+		
+		private void toCache(Object o, State state, Directives directives, boolean external, Object value) {
+			
+			//later references in this copy share the cached value
+			state.put(o, value);
+			
+			directives.cache().put(o, external, value);
+		}
+		
+		private Map<Object,Object> newMap(Directives directives) {
+			//fields are gathered in canonical order when required
+			return directives.isCanonical()? new LinkedHashMap<Object, Object>() : new HashMap<Object, Object>();
+		}
+		
 		private Map<Object,Object> withoutEmpties(Map<Object,Object> map) {
 			//eliminate empty fields, but only as a final pass when we've closed potential cycles
 			//(or we may think it's empty just because we've not finished processing the remaining field after
@@ -274,7 +923,6 @@ enum Type {
 		
 		private boolean empty(Object object) {
 			
-			System.out.println(object.getClass());
 			if (object instanceof Map)
 				return Map.class.cast(object).isEmpty();
 				
@@ -284,78 +932,222 @@ enum Type {
 			return false;
 				
 		}
+	};
+
+	Object toExternal(Object o, State state, Directives directives) throws Exception {
+
+		return o; // by default, the object is in external form
+	}
+
+	// from static to dynamic
+	Object toDynamic(Object o, State state, Directives directives) throws Exception {
+		return o; // by default, the object is a value
+	}
+
+	// from static to off-heap dynamic
+	long toArena(Object o, State state, Directives directives, Arena arena) throws Exception {
+		return arena.atomic(o); // by default, the object is a value
+	}
+
+	// from static to static, sharing values
+	Object toClone(Object o, State state, Directives directives) throws Exception {
+		return o; // by default, the object is a value
+	}
+	
+	
+
+	// the fields of an object that its copy retains, with their values
+	static Map<String,Object> gatherFields(Object o, State state, Directives directives) throws Exception {
 		
-		private Map<String,Object> gatherFields(Object o, Map<Integer, Object> state, Directives directives) throws Exception {
+		Map<String,Object> values = directives.isCanonical()? new TreeMap<String,Object>() : new LinkedHashMap<String,Object>();
+		
+		Class<?> clazz = o.getClass();
+		
+		Copier<Object> copier = Plan.of(clazz).copier;
+		
+		//generated copiers read fields without reflection, but can only follow default directives
+		if (copier != null && directives.usesCopiers() && state.projection() == null) {
+			copier.fields(o, values);
+			values.values().removeAll(Collections.singleton(null));
+			return values;
+		}
+		
+		List<Field> fields = valueFieldsOf(o, clazz, state, directives);
+		field: for (Field field : fields) {
 			
-			Map<String,Object> values = new LinkedHashMap<String,Object>();
+			//the only read of the field
+			Object fieldValue = field.get(o);
 			
-			Class<?> clazz = o.getClass();
+			if (fieldValue==null)
+				continue;
 			
-			List<Field> fields = valueFieldsOf(o, clazz, directives);
-			for (Field field : fields) {
-				
-				Object fieldValue = field.get(o);
-				
-				if (fieldValue==null)
-					continue;
-				
-				//adapted value?
-				for (Mapping mapping : directives.mappings()) {
-					Object adapted = mapping.map(o,field,fieldValue);
-					if (adapted!=null) {
-						fieldValue=adapted;
-						break;
-					}
-				}
+			for (ValueExclusion directive : directives.valueExcludes())
+				if (directive.exclude(o, field, fieldValue))
+					continue field;
 			
-				values.put(field.getName(),fieldValue);
+			//adapted value?
+			for (Mapping mapping : directives.mappings()) {
+				Object adapted = mapping.map(o,field,fieldValue);
+				if (adapted!=null) {
+					fieldValue=adapted;
+					break;
+				}
 			}
-			
-			return values;
+		
+			values.put(field.getName(),fieldValue);
 		}
 		
-		private List<Field> valueFieldsOf(Object o, Class<?> clazz, Directives directives) throws Exception {
+		return values;
+	}
+	
+	private static List<Field> valueFieldsOf(Object o, Class<?> clazz, State state, Directives directives) throws Exception {
 
-			List<Field> fields = new ArrayList<Field>();
+		List<Field> fields = new ArrayList<Field>();
 
-			Class<?> superclass = clazz.getSuperclass();
+		// projected copies never look at fields outside the projection
+		Projection projection = state.projection();
 
-			if (superclass != null)
-				fields.addAll(valueFieldsOf(o, superclass, directives));
-			
-			field: for (Field field : clazz.getDeclaredFields())
-					
-					if (!isStatic(field.getModifiers())) {
-							
-							field.setAccessible(true);
-						
-							for (Exclusion directive : directives.excludes())
-								if (directive.exclude(o, field))
-									continue field;
-							
-							fields.add(field);
-						}
-							
-				
-			return fields;
+		field: for (Field field : projection == null ? Plan.of(clazz).fields() : projection.fieldsOf(clazz)) {
+
+			for (Exclusion directive : directives.fieldExcludes())
+				if (directive.exclude(o, field))
+					continue field;
+
+			fields.add(field);
 		}
-	};
 
-	Object toExternal(Object o, Map<Integer, Object> state, Directives directives) throws Exception {
+		return fields;
+	}
+
+	@SuppressWarnings("all")
+	private static final Set<Class<?>> atomics = new HashSet<Class<?>>(Arrays.asList(String.class, Boolean.class, Character.class,
+			Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class, Void.class));
+
+	// the size of copies that cannot be presized
+	static final int DEFAULT_SIZE = 10;
 
-		return o; // by default, the object is in external form
+	// the size of collections, to presize their copies
+	static int sizeOf(Object o) {
+		return o instanceof Collection ? Collection.class.cast(o).size() : DEFAULT_SIZE;
 	}
 
-	// from static to dynamic
-	Object toDynamic(Object o, Map<Integer, Object> state, Directives directives) throws Exception {
-		return o; // by default, the object is a value
+	// the size of the copy of a collection, array, or map of a given size, which element exclusions make unpredictable
+	static int copySizeOf(int size, State state, Directives directives) {
+		return directives.elementExcludes().isEmpty() ? state.elementsOf(size) : DEFAULT_SIZE;
 	}
-	
-	
 
-	@SuppressWarnings("all")
-	private static final List<Class<?>> atomics = Arrays.asList(String.class, Boolean.class, Character.class,
-			Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class, Void.class);
+	// the capacity of hash maps that hold a given number of entries without rehashing
+	static int capacityOf(int size) {
+		return size < 3 ? size + 1 : (int) (size / .75f) + 1;
+	}
+
+	// collections and maps whose state is captured by their elements, and by their comparators if they are sorted
+	private static final Set<Class<?>> rebuildable = new HashSet<Class<?>>(Arrays.<Class<?>> asList(ArrayList.class,
+			LinkedList.class, ArrayDeque.class, HashSet.class, LinkedHashSet.class, TreeSet.class,
+			ConcurrentSkipListSet.class, CopyOnWriteArrayList.class, CopyOnWriteArraySet.class, HashMap.class,
+			LinkedHashMap.class, TreeMap.class, ConcurrentHashMap.class, ConcurrentSkipListMap.class));
+
+	// public constructors of collections and maps, or NONE
+	private static final ConcurrentMap<Class<?>, Constructor<?>> constructors = new ConcurrentHashMap<Class<?>, Constructor<?>>();
+
+	private static final Constructor<?> NONE = Object.class.getConstructors()[0];
+
+	// linked maps do not expose their order, or null if it cannot be read
+	private static final Field accessOrder;
+
+	static {
+
+		Field field = null;
+
+		try {
+			field = LinkedHashMap.class.getDeclaredField("accessOrder");
+			field.setAccessible(true);
+		} catch (Exception e) {
+			field = null; // access-ordered maps cannot be told apart, and are cloned as objects
+		}
+
+		accessOrder = field;
+	}
+
+	// an empty instance of the class of a collection or map, or null if it cannot be rebuilt from its elements
+	static Object newInstance(Object o) throws Exception {
+
+		Class<?> clazz = o.getClass();
+
+		if (clazz == LinkedHashMap.class) {
+
+			if (accessOrder == null)
+				return null;
+
+			// entries are added in their current order, which access-ordered clones keep until they are accessed
+			if (accessOrder.getBoolean(o))
+				return new LinkedHashMap<Object, Object>(16, .75f, true);
+		}
+
+		Constructor<?> constructor = constructors.get(clazz);
+
+		if (constructor == null) {
+			constructor = constructorOf(clazz);
+			constructors.putIfAbsent(clazz, constructor);
+		}
+
+		if (constructor == NONE)
+			return null;
+
+		// sorted collections keep their order
+		if (constructor.getParameterTypes().length == 1)
+			return constructor.newInstance(o instanceof SortedMap ? ((SortedMap<?, ?>) o).comparator()
+					: ((SortedSet<?>) o).comparator());
+
+		return constructor.newInstance();
+	}
+
+	private static Constructor<?> constructorOf(Class<?> clazz) {
+
+		// subclasses may add state, and other classes may keep state that their elements do not capture
+		if (!rebuildable.contains(clazz))
+			return NONE;
+
+		try {
+
+			if (SortedMap.class.isAssignableFrom(clazz) || SortedSet.class.isAssignableFrom(clazz))
+				return clazz.getConstructor(Comparator.class);
+
+			return clazz.getConstructor();
+
+		} catch (NoSuchMethodException e) {
+			return NONE;
+		}
+	}
+
+	// the default value of a field
+	static void reset(Object o, Field field) throws Exception {
+
+		Class<?> type = field.getType();
+
+		if (!type.isPrimitive())
+			field.set(o, null);
+		else if (type == boolean.class)
+			field.setBoolean(o, false);
+		else if (type == char.class)
+			field.setChar(o, (char) 0);
+		else if (type == byte.class)
+			field.setByte(o, (byte) 0);
+		else if (type == short.class)
+			field.setShort(o, (short) 0);
+		else
+			field.setInt(o, 0); // widens to the other numeric types
+	}
+
+	// elements that directives exclude are not copied at all
+	static boolean excluded(Object element, State state, Directives directives) throws Exception {
+		return !directives.elementExcludes().isEmpty() && directives.elementExcludes().exclude(element, state.path());
+	}
+
+	// atomic values that copy as themselves, without dispatch
+	static boolean direct(Object o, State state, Directives directives) {
+		return o != null && atomics.contains(o.getClass()) && !state.budgeted() && directives.converters().isEmpty();
+	}
 
 	public static Type of(Object o) {
 
@@ -0,0 +1,36 @@
+package org.dynamicvalues;
+
+import java.lang.reflect.Field;
+
+/**
+ * An {@link Exclusion} that depends on the values of fields.
+ * <p>
+ * Value copies read each field once, and pass its value to value exclusions rather than having them read it again.
+ * Fields with <code>null</code> values are never copied, and are not passed to value exclusions.
+ * 
+ * @author Fabio Simeoni
+ *
+ */
+public abstract class ValueExclusion implements Exclusion {
+
+	/**
+	 * Returns <code>true</code> to exclude a given field of a given object from the value copy of the object, given
+	 * the value of the field.
+	 * 
+	 * @param object the object
+	 * @param field the field
+	 * @param fieldValue the value of the field
+	 * @return <code>true</code> to exclude a given field of a given object from the value copy of the object
+	 * @throws Exception if the exclusion cannot be applied
+	 */
+	public abstract boolean exclude(Object object, Field field, Object fieldValue) throws Exception;
+
+	/**
+	 * Reads the value of the field and applies {@link #exclude(Object, Field, Object)}, for use outside value copies.
+	 */
+	@Override
+	public final boolean exclude(Object object, Field field) throws Exception {
+		field.setAccessible(true);
+		return exclude(object, field, field.get(object));
+	}
+}
@@ -0,0 +1,181 @@
+package org.dynamicvalues;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+import org.dynamicvalues.Dynamic.Batch;
+
+/**
+ * The value copies of a sequence of objects, each produced only when it is iterated over, so that copying is not
+ * bound by the size of the sequence.
+ * <p>
+ * Streams can be split for parallel consumption ({@link #trySplit()}), much like JDK 8 <code>Spliterator</code>s:
+ * lists with random access are split in halves, while other sequences yield batches of increasing size from their
+ * start. Streams are not thread-safe, but streams split from the same sequence can be consumed in different threads.
+ * Each stream recycles its own copy state, hence copies preserve sharing ({@link Directives#preservingSharing()}) only
+ * among the objects of the same stream.
+ *
+ * <pre>
+ * ValueStream&lt;Map&lt;String, Object&gt;&gt; stream = Dynamic.streamOf(cursor, by().excluding(...));
+ *
+ * ValueStream&lt;Map&lt;String, Object&gt;&gt; prefix = stream.trySplit();
+ *
+ * ...consume prefix in one thread, and stream in another...
+ * </pre>
+ *
+ * Iteration fails with an {@link IllegalStateException} if some copy cannot be produced.
+ *
+ * @author Fabio Simeoni
+ *
+ * @param <T> the type of the copies
+ */
+public final class ValueStream<T> implements Iterator<T> {
+
+	// the growth of batches split from sequences without random access
+	static final int BATCH = 1024;
+	static final int MAX_BATCH = 1 << 25;
+
+	private final Directives directives;
+
+	// the objects, as a range if they can be split in halves
+	private final Iterator<?> objects;
+	private final Range range;
+
+	// of objects, or -1 if unknown
+	private long size;
+	private int batch;
+
+	private final Batch<T> copies;
+
+	ValueStream(Iterable<?> objects, Directives directives) {
+
+		this.directives = directives;
+
+		if (objects instanceof List && objects instanceof RandomAccess) {
+			List<?> list = (List<?>) objects;
+			this.range = new Range(list, 0, list.size());
+			this.objects = range;
+		} else {
+			this.range = null;
+			this.objects = objects.iterator();
+			this.size = objects instanceof Collection ? ((Collection<?>) objects).size() : -1;
+		}
+
+		this.copies = new Batch<T>(this.objects, directives, false);
+	}
+
+	/**
+	 * Returns a stream over the first objects of this stream, which this stream will no longer copy.
+	 *
+	 * @return the stream, or <code>null</code> if this stream cannot be split
+	 */
+	public ValueStream<T> trySplit() {
+
+		if (range != null) {
+
+			int middle = (range.index + range.end) >>> 1;
+
+			if (middle == range.index)
+				return null;
+
+			ValueStream<T> prefix = new ValueStream<T>(range.list.subList(range.index, middle), directives);
+
+			range.index = middle;
+
+			return prefix;
+		}
+
+		if (size == 0 || size == 1 || !objects.hasNext())
+			return null;
+
+		int n = Math.min(batch + BATCH, MAX_BATCH);
+
+		if (size > 0)
+			n = (int) Math.min(n, size);
+
+		List<Object> taken = new ArrayList<Object>(n);
+
+		while (taken.size() < n && objects.hasNext())
+			taken.add(objects.next());
+
+		batch = taken.size();
+
+		if (size > 0)
+			size -= batch;
+
+		return new ValueStream<T>(taken, directives);
+	}
+
+	/**
+	 * Returns the number of objects left to copy in this stream.
+	 *
+	 * @return the number of objects, or {@link Long#MAX_VALUE} if it is not known
+	 */
+	public long estimateSize() {
+
+		if (range != null)
+			return range.end - range.index;
+
+		return size < 0 ? Long.MAX_VALUE : size;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return copies.hasNext();
+	}
+
+	@Override
+	public T next() {
+
+		T next = copies.next();
+
+		if (size > 0)
+			size--;
+
+		return next;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	// helpers
+
+	// the objects of a list between two indices, read by index
+	private static class Range implements Iterator<Object> {
+
+		final List<?> list;
+		int index;
+		final int end;
+
+		Range(List<?> list, int index, int end) {
+			this.list = list;
+			this.index = index;
+			this.end = end;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index < end;
+		}
+
+		@Override
+		public Object next() {
+
+			if (index >= end)
+				throw new NoSuchElementException();
+
+			return list.get(index++);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,413 @@
+package org.dynamicvalues;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import org.dynamicvalues.Externals.ValueList;
+import org.dynamicvalues.Externals.ValueMap;
+
+/**
+ * Read-only views of objects as dynamic values, which resolve the values of fields, elements, and entries only when
+ * they are accessed.
+ * <p>
+ * Views follow the directives of value copies for the values they resolve, i.e. their exclusions, mappings, and
+ * converters, but not their projections or budgets, as views read only what is accessed anyway. Unlike copies,
+ * views reflect later changes to the objects, and resolve values afresh at each access. Lists that exclude some of
+ * their elements are the exception, as they index the elements they keep when they are created.
+ *
+ * @author Fabio Simeoni
+ *
+ */
+final class View {
+
+	/**
+	 * Returns the view of an object under given directives.
+	 *
+	 * @param o the object
+	 * @param directives the directives
+	 * @return a map for objects and maps, a list for collections and arrays, and the object itself otherwise
+	 * @throws Exception if the object cannot be converted
+	 */
+	static Object of(Object o, Directives directives) throws Exception {
+		return of(o, directives, null);
+	}
+
+	// helpers
+
+	// the path of the field that holds the object, if element exclusions need it
+	private static Object of(Object o, Directives directives, String path) throws Exception {
+
+		o = directives.converters().convert(o);
+
+		switch (Type.of(o)) {
+
+		case valuemap:
+			return new MapView(((ValueMap) o).elements, directives, path);
+		case map:
+			return new MapView((Map<?, ?>) o, directives, path);
+		case valuelist:
+			return new ListView(((ValueList) o).elements, directives, path);
+		case collection:
+		case array:
+			return new ListView(o, directives, path);
+		case object:
+			return new ObjectView(o, directives, path);
+		default:
+			return o;
+		}
+	}
+
+	// unchecked, for the interfaces of views
+	private static Object viewOf(Object o, Directives directives, String path) {
+
+		try {
+			return of(o, directives, path);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("cannot view " + o, e);
+		}
+	}
+
+	// as in copies, unchecked
+	private static boolean excluded(Object element, Directives directives, String path) {
+
+		try {
+			return !directives.elementExcludes().isEmpty() && directives.elementExcludes().exclude(element, path);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("cannot apply element exclusions to " + element, e);
+		}
+	}
+
+	// as in copies, which drop the empty lists and maps of fields
+	private static boolean empty(Object o) {
+
+		if (o instanceof Collection)
+			return ((Collection<?>) o).isEmpty();
+
+		if (o instanceof Map)
+			return ((Map<?, ?>) o).isEmpty();
+
+		return o.getClass().isArray() && Array.getLength(o) == 0;
+	}
+
+	private static final Comparator<Field> byName = new Comparator<Field>() {
+
+		@Override
+		public int compare(Field f1, Field f2) {
+			return f1.getName().compareTo(f2.getName());
+		}
+	};
+
+	private static class ObjectView extends AbstractMap<String, Object> {
+
+		private final Object o;
+		private final Plan plan;
+		private final Directives directives;
+		private final String path;
+
+		ObjectView(Object o, Directives directives, String path) {
+			this.o = o;
+			this.plan = Plan.of(o.getClass());
+			this.directives = directives;
+			this.path = path;
+		}
+
+		@Override
+		public Object get(Object key) {
+
+			Field field = plan.named().get(key);
+
+			return field == null ? null : valueOf(field);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return !entrySet().iterator().hasNext();
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+
+			return new AbstractSet<Map.Entry<String, Object>>() {
+
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+
+					final Iterator<Field> fields = fieldsOf(plan).iterator();
+
+					return new Iterator<Map.Entry<String, Object>>() {
+
+						Map.Entry<String, Object> next;
+
+						@Override
+						public boolean hasNext() {
+
+							while (next == null && fields.hasNext()) {
+
+								Field field = fields.next();
+
+								Object value = valueOf(field);
+
+								if (value != null)
+									next = new SimpleImmutableEntry<String, Object>(field.getName(), value);
+							}
+
+							return next != null;
+						}
+
+						@Override
+						public Map.Entry<String, Object> next() {
+
+							if (!hasNext())
+								throw new NoSuchElementException();
+
+							Map.Entry<String, Object> entry = next;
+
+							next = null;
+
+							return entry;
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+
+					int size = 0;
+
+					for (Iterator<?> it = iterator(); it.hasNext(); it.next())
+						size++;
+
+					return size;
+				}
+			};
+		}
+
+		// the fields that are not hidden, in the order of copies
+		private List<Field> fieldsOf(Plan plan) {
+
+			List<Field> fields = new ArrayList<Field>(plan.named().size());
+
+			for (Field field : plan.fields())
+				if (plan.named().get(field.getName()) == field && !field.getName().startsWith("this$"))
+					fields.add(field);
+
+			if (directives.isCanonical())
+				Collections.sort(fields, byName);
+
+			return fields;
+		}
+
+		// as in copies, but for a single field
+		private Object valueOf(Field field) {
+
+			try {
+
+				for (Exclusion exclusion : directives.fieldExcludes())
+					if (exclusion.exclude(o, field))
+						return null;
+
+				Object value = field.get(o);
+
+				if (value == null)
+					return null;
+
+				for (ValueExclusion exclusion : directives.valueExcludes())
+					if (exclusion.exclude(o, field, value))
+						return null;
+
+				for (Mapping mapping : directives.mappings()) {
+					Object adapted = mapping.map(o, field, value);
+					if (adapted != null) {
+						value = adapted;
+						break;
+					}
+				}
+
+				// paths are tracked only for the exclusions that are scoped to them, as in copies
+				String nested = !directives.elementExcludes().scopedToPaths() ? null : path == null ? field.getName()
+						: path + "." + field.getName();
+
+				value = of(value, directives, nested);
+
+				// objects are not looked into, as their copies are not dropped when empty
+				return value == null || !(value instanceof ObjectView) && empty(value) ? null : value;
+
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IllegalStateException("cannot view field " + field.getName() + " of " + o.getClass(), e);
+			}
+		}
+	}
+
+	private static class MapView extends AbstractMap<Object, Object> {
+
+		private final Map<?, ?> map;
+		private final Directives directives;
+		private final String path;
+
+		MapView(Map<?, ?> map, Directives directives, String path) {
+			this.map = map;
+			this.directives = directives;
+			this.path = path;
+		}
+
+		@Override
+		public Object get(Object key) {
+
+			Object value = map.get(key);
+
+			return value == null || excluded(value, directives, path) ? null : viewOf(value, directives, path);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return map.containsKey(key) && !excluded(map.get(key), directives, path);
+		}
+
+		@Override
+		public int size() {
+			return entrySet().size();
+		}
+
+		@Override
+		public Set<Map.Entry<Object, Object>> entrySet() {
+
+			return new AbstractSet<Map.Entry<Object, Object>>() {
+
+				@Override
+				public Iterator<Map.Entry<Object, Object>> iterator() {
+
+					final Iterator<? extends Map.Entry<?, ?>> entries = map.entrySet().iterator();
+
+					return new Iterator<Map.Entry<Object, Object>>() {
+
+						Map.Entry<?, ?> next;
+
+						@Override
+						public boolean hasNext() {
+
+							while (next == null && entries.hasNext()) {
+
+								Map.Entry<?, ?> e = entries.next();
+
+								if (!excluded(e.getValue(), directives, path))
+									next = e;
+							}
+
+							return next != null;
+						}
+
+						@Override
+						public Map.Entry<Object, Object> next() {
+
+							if (!hasNext())
+								throw new NoSuchElementException();
+
+							Map.Entry<?, ?> e = next;
+
+							next = null;
+
+							return new SimpleImmutableEntry<Object, Object>(e.getKey(), viewOf(e.getValue(), directives,
+									path));
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+
+					if (directives.elementExcludes().isEmpty())
+						return map.size();
+
+					int size = 0;
+
+					for (Iterator<?> it = iterator(); it.hasNext(); it.next())
+						size++;
+
+					return size;
+				}
+			};
+		}
+	}
+
+	private static class ListView extends AbstractList<Object> implements RandomAccess {
+
+		// a list with random access, or an array
+		private final Object elements;
+		private final Directives directives;
+		private final String path;
+
+		ListView(Object elements, Directives directives, String path) {
+
+			boolean excluding = !directives.elementExcludes().isEmpty();
+
+			// other collections, and those that exclude elements, are indexed once, without viewing their elements
+			if (excluding || !elements.getClass().isArray() && !(elements instanceof List && elements instanceof RandomAccess)) {
+
+				List<Object> indexed = new ArrayList<Object>(elements.getClass().isArray() ? Array.getLength(elements)
+						: Type.sizeOf(elements));
+
+				if (elements.getClass().isArray()) {
+					for (int i = 0; i < Array.getLength(elements); i++)
+						if (!excluded(Array.get(elements, i), directives, path))
+							indexed.add(Array.get(elements, i));
+				} else
+					for (Object element : (Iterable<?>) elements)
+						if (!excluding || !excluded(element, directives, path))
+							indexed.add(element);
+
+				elements = indexed;
+			}
+
+			this.elements = elements;
+			this.directives = directives;
+			this.path = path;
+		}
+
+		@Override
+		public Object get(int index) {
+
+			Object element = elements instanceof List ? ((List<?>) elements).get(index) : Array.get(elements, index);
+
+			return viewOf(element, directives, path);
+		}
+
+		@Override
+		public int size() {
+			return elements instanceof List ? ((List<?>) elements).size() : Array.getLength(elements);
+		}
+	}
+}
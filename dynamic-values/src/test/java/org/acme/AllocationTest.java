@@ -0,0 +1,210 @@
+package org.acme;
+
+import static org.dynamicvalues.Budget.*;
+import static org.dynamicvalues.Directives.*;
+import static org.dynamicvalues.Dynamic.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.acme.Fixture.Obj;
+import org.dynamicvalues.Directives;
+import org.dynamicvalues.Footprint;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Allocation budgets for the hot paths of copies, so that regressions fail the build.
+ * <p>
+ * Allocations are read from the per-thread counters of HotSpot, averaged over many warm calls. Budgets are given
+ * relative to the {@link Footprint}s of the copies where possible, with a fixed allowance for the state of each copy.
+ * Tests are skipped on JVMs that do not count allocations.
+ */
+@SuppressWarnings("all")
+public class AllocationTest {
+
+	// calls per measurement, after as many to warm up
+	static final int CALLS = 2000;
+
+	// the cost of merging directives and creating the state of a copy, in bytes
+	static final int OVERHEAD = 2048;
+
+	com.sun.management.ThreadMXBean threads;
+
+	@Before
+	public void counting() {
+
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+
+		threads = (com.sun.management.ThreadMXBean) bean;
+
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+
+		threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	@Test
+	public void atomicValuesAllocateNothing() throws Exception {
+
+		final Directives directives = by().excluding(type(Obj.class));
+		final Double boxed = 3.5d;
+
+		assertEquals(0, allocatedBy(new Callable<Object>() {
+
+			public Object call() throws Exception {
+				return valueOf("atomic");
+			}
+		}));
+
+		assertEquals(0, allocatedBy(new Callable<Object>() {
+
+			public Object call() throws Exception {
+				return valueOf(42L, directives);
+			}
+		}));
+
+		assertEquals(0, allocatedBy(new Callable<Object>() {
+
+			public Object call() throws Exception {
+				return externalValueOf(boxed, directives);
+			}
+		}));
+	}
+
+	@Test
+	public void objectCopiesAllocateMostlyTheirOutput() throws Exception {
+
+		final Obj obj = new Obj();
+
+		// footprints include the atomic values that copies share with objects, so bound the output from above
+		long output = Footprint.of(valueOf(obj)).bytes();
+
+		assertBudget(2 * output + OVERHEAD, allocatedBy(new Callable<Object>() {
+
+			public Object call() throws Exception {
+				return valueOf(obj);
+			}
+		}));
+
+		assertBudget(2 * output + OVERHEAD, allocatedBy(new Callable<Object>() {
+
+			public Object call() throws Exception {
+				return externalValueOf(obj);
+			}
+		}));
+	}
+
+	@Test
+	public void listCopiesAllocateAReferencePerElement() throws Exception {
+
+		final List<Object> small = numbers(1000);
+		final List<Object> large = numbers(2000);
+
+		long perElement = (allocatedBy(copying(large)) - allocatedBy(copying(small))) / 1000;
+
+		// the slot of the element in the copy, and no more
+		assertBudget(8, perElement);
+	}
+
+	@Test
+	public void truncatedCopiesAllocateByTheBudget() throws Exception {
+
+		final List<Object> large = numbers(100000);
+		final Directives directives = by().within(limits().elements(10).truncating());
+
+		// presized to the source, the copy alone would take 400K
+		assertBudget(OVERHEAD, allocatedBy(new Callable<Object>() {
+
+			public Object call() throws Exception {
+				return valueOf(large, directives);
+			}
+		}));
+	}
+
+	@Test
+	public void mapCopiesWithAtomicKeysAllocateAnEntryPerElement() throws Exception {
+
+		final Map<Object, Object> small = new HashMap<Object, Object>();
+		final Map<Object, Object> large = new HashMap<Object, Object>();
+
+		for (Object n : numbers(1000))
+			small.put(n, n);
+
+		for (Object n : numbers(2000))
+			large.put(n, n);
+
+		long perElement = (allocatedBy(copying(large)) - allocatedBy(copying(small))) / 1000;
+
+		// the entry and the bucket of the element in the copy, and no more
+		assertBudget(48, perElement);
+	}
+
+	@Test
+	public void objectListsAllocateByTheObject() throws Exception {
+
+		final List<Obj> small = new ArrayList<Obj>();
+		final List<Obj> large = new ArrayList<Obj>();
+
+		for (int i = 0; i < 100; i++)
+			small.add(new Obj());
+
+		for (int i = 0; i < 200; i++)
+			large.add(new Obj());
+
+		long output = Footprint.of(valueOf(new Obj())).bytes();
+
+		long perObject = (allocatedBy(copying(large)) - allocatedBy(copying(small))) / 100;
+
+		assertBudget(2 * output, perObject);
+	}
+
+	// helpers
+
+	private long allocatedBy(Callable<?> task) throws Exception {
+
+		long thread = Thread.currentThread().getId();
+
+		for (int i = 0; i < CALLS; i++)
+			task.call();
+
+		long before = threads.getThreadAllocatedBytes(thread);
+
+		for (int i = 0; i < CALLS; i++)
+			task.call();
+
+		return (threads.getThreadAllocatedBytes(thread) - before) / CALLS;
+	}
+
+	private static Callable<Object> copying(final Object o) {
+
+		return new Callable<Object>() {
+
+			public Object call() throws Exception {
+				return valueOf(o);
+			}
+		};
+	}
+
+	private static List<Object> numbers(int size) {
+
+		List<Object> numbers = new ArrayList<Object>(size);
+
+		for (int i = 0; i < size; i++)
+			numbers.add(i);
+
+		return numbers;
+	}
+
+	private static void assertBudget(long budget, long allocated) {
+		assertTrue("allocates " + allocated + " bytes, over a budget of " + budget, allocated <= budget);
+	}
+}
@@ -1,15 +1,30 @@
 package org.acme;
 
+import static org.dynamicvalues.Budget.*;
 import static org.dynamicvalues.Directives.*;
 import static org.dynamicvalues.Dynamic.*;
 import static org.junit.Assert.*;
 
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.xml.namespace.QName;
 
+import org.dynamicvalues.Budget;
+import org.dynamicvalues.BudgetExceededException;
+import org.dynamicvalues.CopyCache;
 import org.dynamicvalues.Directives;
+import org.dynamicvalues.ElementExclusion;
 import org.dynamicvalues.Exclude;
+import org.dynamicvalues.Fingerprint;
+import org.dynamicvalues.Footprint;
+import org.dynamicvalues.Immutable;
+import org.dynamicvalues.ValueExclusion;
 import org.dynamicvalues.Externals.ValueMap;
 import org.junit.Test;
 
@@ -140,4 +155,449 @@ public class DirectiveTest {
 	}
 	
 
+	@Test
+	public void canonical() throws Exception {
+
+		class Obj {
+			
+			int c = 1;
+			int a = 2;
+			int b = 3;
+			
+			Map<Object,Object> map = new HashMap<Object, Object>();
+			
+			{
+				for (int i = 20; i > 0; i--)
+					map.put("k"+i, i);
+			}
+		}
+		
+		Map<String,Object> value = valueOf(new Obj(), by().canonical());
+		
+		assertEquals(Arrays.asList("a","b","c","map"), new ArrayList<String>(value.keySet()));
+		
+		List keys = new ArrayList<Object>(((Map<?,?>) value.get("map")).keySet());
+		List sorted = new ArrayList<Object>(keys);
+		Collections.sort(sorted);
+		
+		assertEquals(sorted,keys);
+		
+		ValueMap external = externalValueOf(new Obj(), by().canonical());
+		assertEquals(Arrays.asList("a","b","c","map"), new ArrayList<Object>(external.elements.keySet()));
+	}
+
+	@Immutable
+	static class Currency {
+		
+		String code = "EUR";
+	}
+	
+	@Test
+	public void cacheImmutables() throws Exception {
+
+		class Obj {
+			
+			Currency c = new Currency();
+			QName n = new QName("test");
+		}
+		
+		CopyCache cache = new CopyCache(10);
+		
+		Obj o1 = new Obj();
+		Obj o2 = new Obj();
+		o2.c = o1.c;
+		
+		Map<?,?> value1 = valueOf(o1,by().caching(cache).immutable(QName.class));
+		Map<?,?> value2 = valueOf(o2,by().caching(cache).immutable(QName.class));
+		
+		assertSame(value1.get("c"),value2.get("c"));
+		assertNotSame(value1.get("n"),value2.get("n"));
+		assertEquals(value1.get("n"),value2.get("n"));
+		
+		assertEquals(1,cache.hits());
+		assertEquals(3,cache.misses());
+		assertEquals(3,cache.size());
+		
+		ValueMap external1 = externalValueOf(o1,by().caching(cache));
+		ValueMap external2 = externalValueOf(o2,by().caching(cache));
+		
+		assertSame(external1.elements.get("c"),external2.elements.get("c"));
+		
+		try {
+			((Map) value1.get("c")).clear();
+			fail();
+		}
+		catch(UnsupportedOperationException e) {}
+	}
+	
+	@Immutable
+	static class Unit {
+		
+		Unit base = this;
+		List<String> symbols = new ArrayList<String>(Arrays.asList("m"));
+	}
+	
+	@Test
+	public void cachedCopiesAreShared() throws Exception {
+
+		CopyCache cache = new CopyCache(10);
+		Unit unit = new Unit();
+		
+		Map<Object,Object> value1 = valueOf(unit, by().caching(cache));
+		Map<Object,Object> value2 = valueOf(unit, by().caching(cache));
+		
+		assertSame(value1, value2);
+		assertSame(value1, value1.get("base"));
+		
+		try {
+			((Map) value1.get("base")).clear();
+			fail();
+		}
+		catch(UnsupportedOperationException e) {}
+		
+		// only the maps are unmodifiable, so the lists they contain change for every sharer
+		((List) value1.get("symbols")).add("km");
+		
+		assertEquals(Arrays.asList("m","km"), value2.get("symbols"));
+		
+		ValueMap external1 = externalValueOf(unit, by().caching(cache));
+		ValueMap external2 = externalValueOf(unit, by().caching(cache));
+		
+		assertSame(external1, external2);
+		assertSame(external1, external1.elements.get("base"));
+	}
+	
+	@Immutable
+	static class Rates {
+		
+		List<Integer> values = Arrays.asList(0, 1);
+	}
+	
+	@Test
+	public void cacheIgnoresCopiesScopedToPaths() throws Exception {
+
+		class First {
+			Rates a;
+		}
+		
+		class Second {
+			Rates b;
+		}
+		
+		Rates rates = new Rates();
+		
+		First first = new First();
+		first.a = rates;
+		Second second = new Second();
+		second.b = rates;
+		
+		Directives directives = by().caching(new CopyCache(10)).excludingElements("a.values", new ElementExclusion<Object>() {
+			@Override
+			public boolean exclude(Object element) throws Exception {
+				return element.equals(0);
+			}
+		});
+		
+		Map<String,Map<String,Object>> value1 = valueOf(first, directives);
+		Map<String,Map<String,Object>> value2 = valueOf(second, directives);
+		
+		assertEquals(Arrays.asList(1), value1.get("a").get("values"));
+		assertEquals(Arrays.asList(0,1), value2.get("b").get("values"));
+	}
+	
+	@Test
+	public void cacheIgnoresBudgetedCopies() throws Exception {
+
+		CopyCache cache = new CopyCache(10);
+		Currency currency = new Currency();
+		
+		Map<?,?> truncated = valueOf(currency, by().caching(cache).within(limits().strings(1).truncating("~")));
+		Map<?,?> whole = valueOf(currency, by().caching(cache));
+		
+		assertEquals("E~", truncated.get("code"));
+		assertEquals("EUR", whole.get("code"));
+		assertEquals(0, cache.hits());
+	}
+	
+	@Test
+	public void cacheEvicts() throws Exception {
+
+		CopyCache cache = new CopyCache(2);
+		
+		for (int i = 0; i < 5; i++)
+			valueOf(new Currency(),by().caching(cache));
+		
+		assertEquals(2,cache.size());
+		assertEquals(3,cache.evictions());
+	}
+
+	@Test
+	public void interning() throws Exception {
+
+		class Address {
+			String city = "Rome";
+			List<String> lines = Arrays.asList("via","roma");
+		}
+		
+		class Person {
+			Address home = new Address();
+			Address work = new Address();
+			Person self = this;
+		}
+		
+		List<Map<?,?>> people = (List) valueOf(Arrays.asList(new Person(), new Person()), by().interning());
+		
+		assertEquals(Fingerprint.of(valueOf(Arrays.asList(new Person(), new Person()))), Fingerprint.of(people));
+		
+		Map<?,?> p1 = people.get(0);
+		Map<?,?> p2 = people.get(1);
+		
+		//cyclic, not interned
+		assertNotSame(p1,p2);
+		assertSame(p1,p1.get("self"));
+		
+		assertSame(p1.get("home"),p1.get("work"));
+		assertSame(p1.get("home"),p2.get("home"));
+		
+		try {
+			((Map) p1.get("home")).clear();
+			fail();
+		}
+		catch(UnsupportedOperationException e) {}
+		
+		List<Map<?,?>> batch = valueOfAll(Arrays.asList(new Address(), new Address()), by().interning());
+		assertSame(batch.get(0),batch.get(1));
+	}
+
+	
+	@Test
+	public void budgets() throws Exception {
+
+		List<Object> nested = new ArrayList<Object>();
+		nested.add(Arrays.asList(Arrays.asList(Arrays.asList(1))));
+		
+		valueOf(nested, by().within(limits().depth(4)));
+		
+		try {
+			valueOf(nested, by().within(limits().depth(3)));
+			fail();
+		}
+		catch(BudgetExceededException e) {}
+		
+		try {
+			valueOf(Arrays.asList(1,2,3), by().within(limits().nodes(3)));
+			fail();
+		}
+		catch(BudgetExceededException e) {}
+		
+		List<Object> capped = valueOf(Arrays.asList(1,2,3), by().within(limits().elements(2).truncating()));
+		assertEquals(Arrays.asList(1,2,Budget.TRUNCATED),capped);
+		
+		List<Object> shallow = valueOf(nested, by().within(limits().depth(2).truncating()));
+		assertEquals(Arrays.asList(Arrays.asList(Budget.TRUNCATED)),shallow);
+		
+		class Person {
+			String name = "abcdefgh";
+		}
+		
+		Map<String,Object> person = valueOf(new Person(), by().within(limits().strings(3).truncating()));
+		assertEquals("abc"+Budget.TRUNCATED,person.get("name"));
+		
+		//per root in batches
+		List<Object> batch = valueOfAll(Arrays.asList(Arrays.asList(1,2),Arrays.asList(3,4)), by().within(limits().nodes(3)));
+		assertEquals(Arrays.asList(Arrays.asList(1,2),Arrays.asList(3,4)),batch);
+	}
+	
+	@Test
+	public void projections() throws Exception {
+
+		class Line {
+			String sku = "A1";
+			int quantity = 2;
+			Object broken = new Object() {
+				@SuppressWarnings("unused")
+				Object self = this;
+			};
+		}
+		
+		class Order {
+			List<Line> lines = Arrays.asList(new Line(), new Line());
+			Line[] returns = { new Line() };
+			String note = "fragile";
+		}
+		
+		class Customer {
+			String name = "joe";
+			List<Order> orders = Arrays.asList(new Order());
+			Map<String,Order> drafts = Collections.singletonMap("d", new Order());
+		}
+		
+		Map<String,Object> value = valueOf(new Customer(), by().projecting("orders[*].lines[*].sku","drafts[*].note","name"));
+		
+		Map<String,Object> line = Collections.<String,Object>singletonMap("sku","A1");
+		Map<String,Object> order = Collections.<String,Object>singletonMap("lines",Arrays.asList(line,line));
+		
+		Map<String,Object> expected = new HashMap<String, Object>();
+		expected.put("name","joe");
+		expected.put("orders",Arrays.asList(order));
+		expected.put("drafts",Collections.singletonMap("d",Collections.singletonMap("note","fragile")));
+		
+		assertEquals(expected,value);
+		
+		ValueMap external = externalValueOf(new Customer(),by().projecting("name"));
+		assertEquals(Collections.singletonMap("name","joe"),external.elements);
+		
+		try {
+			by().projecting("orders..sku");
+			fail();
+		}
+		catch(IllegalArgumentException e) {}
+	}
+	
+	static enum Status { ACTIVE, RETIRED }
+	
+	@Test
+	public void converters() throws Exception {
+
+		class Obj {
+			Status status = Status.ACTIVE;
+			List<QName> names = Arrays.asList(new QName("a"), new QName("ns","b"));
+			Map<QName,Object> byName = Collections.<QName,Object>singletonMap(new QName("c"), 1);
+			StringBuilder builder = new StringBuilder("sb");
+		}
+		
+		Directives directives = by().converting(Enum.class, asName())
+									.converting(QName.class, asString())
+									.converting(CharSequence.class, asString());
+		
+		Map<String,Object> value = valueOf(new Obj(), directives);
+		
+		assertEquals("ACTIVE", value.get("status"));
+		assertEquals(Arrays.asList("a","{ns}b"), value.get("names"));
+		assertEquals(Collections.singletonMap("c",1), value.get("byName"));
+		assertEquals("sb", value.get("builder"));
+		
+		//roots too
+		assertEquals("RETIRED", valueOf(Status.RETIRED, directives));
+		
+		ValueMap external = externalValueOf(new Obj(), directives);
+		assertEquals("ACTIVE", external.elements.get("status"));
+	}
+	
+	@Test
+	public void valueExclusions() throws Exception {
+
+		class Obj {
+			String a = "";
+			String b = "b";
+			Integer c = 3;
+		}
+		
+		final List<Object> seen = new ArrayList<Object>();
+		
+		ValueExclusion large = new ValueExclusion() {
+			
+			@Override
+			public boolean exclude(Object object, Field field, Object fieldValue) throws Exception {
+				seen.add(fieldValue);
+				return fieldValue instanceof Integer && (Integer) fieldValue > 2;
+			}
+		};
+		
+		Map<String,Object> value = valueOf(new Obj(), by().excluding(emptyStrings(), large));
+		
+		assertEquals(Collections.singletonMap("b","b"), value);
+		//values excluded earlier are not seen
+		assertTrue(seen.containsAll(Arrays.<Object>asList("b",3)));
+		assertFalse(seen.contains(""));
+		
+		value = valueOf(new Obj(), by().excluding(not(valueLike("b"))));
+		assertEquals(Collections.singletonMap("b","b"), value);
+		
+		value = valueOf(new Obj(), by().excluding(all(name("c"),large)));
+		assertEquals(2, value.size());
+		
+		//outside copies
+		assertTrue(large.exclude(new Obj(), Obj.class.getDeclaredField("c")));
+	}
+	
+	@Test
+	public void elementExclusions() throws Exception {
+		
+		class Line {
+			int quantity;
+			Line(int quantity) {
+				this.quantity=quantity;
+			}
+		}
+		
+		class Order {
+			List<Line> lines = Arrays.asList(new Line(0), new Line(2));
+			Line[] returns = { new Line(0) };
+			List<Integer> codes = Arrays.asList(0, 1);
+		}
+		
+		List<Order> orders = new ArrayList<Order>(Arrays.asList(new Order(), new Order()));
+		
+		ElementExclusion<Line> empty = new ElementExclusion<Line>() {
+			@Override
+			public boolean exclude(Line line) throws Exception {
+				return line.quantity == 0;
+			}
+		};
+		
+		ElementExclusion<Object> zero = new ElementExclusion<Object>() {
+			@Override
+			public boolean exclude(Object element) throws Exception {
+				return Integer.valueOf(0).equals(element);
+			}
+		};
+		
+		Map<String,Object> line = Collections.<String,Object>singletonMap("quantity",2);
+		
+		//by type, anywhere
+		List<Map<String,Object>> value = valueOf(orders, by().excludingElements(Line.class, empty));
+		assertEquals(Arrays.asList(line), value.get(0).get("lines"));
+		assertFalse(value.get(0).containsKey("returns")); //emptied
+		assertEquals(Arrays.asList(0,1), value.get(0).get("codes"));
+		
+		//by path
+		value = valueOf(orders, by().excludingElements("codes", zero));
+		assertEquals(Arrays.asList(1), value.get(1).get("codes"));
+		assertEquals(2, ((List<?>) value.get(1).get("lines")).size());
+		
+		class Customer {
+			List<Order> orders = Arrays.asList(new Order());
+		}
+		
+		Map<String,Object> customer = valueOf(new Customer(), by().excludingElements("orders[*].codes", zero));
+		assertEquals(value.get(1), ((List<?>) customer.get("orders")).get(0));
+		
+		//everywhere, on maps too
+		Map<String,Object> counts = new HashMap<String, Object>();
+		counts.put("a",0);
+		counts.put("b",1);
+		assertEquals(Collections.singletonMap("b",1), valueOf(counts, by().excludingElements(zero)));
+		
+		//excluded elements are never read
+		orders.add(null);
+		assertEquals(2, ((List<?>) valueOf(orders, by().excludingElements(new ElementExclusion<Object>() {
+			@Override
+			public boolean exclude(Object element) throws Exception {
+				return element == null;
+			}
+		}))).size());
+		
+		//in external and arena copies, and in estimates
+		Directives directives = by().excludingElements(Line.class, empty);
+		List<Map<String,Object>> external = unwrap(externalValueOf(orders, directives));
+		assertEquals(Arrays.asList(line), external.get(0).get("lines"));
+		assertEquals(Footprint.of(valueOf(orders, directives)).nodes(), footprintOf(orders, directives).nodes());
+		
+		try {
+			by().excludingElements("orders..lines", zero);
+			fail();
+		}
+		catch(IllegalArgumentException e) {}
+	}
 }
@@ -1,13 +1,44 @@
 package org.acme;
 
 import static org.acme.Fixture.*;
+import static org.dynamicvalues.Directives.*;
 import static org.dynamicvalues.Dynamic.*;
 import static org.junit.Assert.*;
 
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.acme.Fixture.Obj;
+import org.apache.commons.jexl2.JexlEngine;
+import org.apache.commons.jexl2.MapContext;
+import org.dynamicvalues.Arena;
+import org.dynamicvalues.Columns;
+import org.dynamicvalues.Converter;
+import org.dynamicvalues.Directives;
+import org.dynamicvalues.Dynamic;
+import org.dynamicvalues.DynamicIO;
+import org.dynamicvalues.ElementExclusion;
+import org.dynamicvalues.Flattener;
+import org.dynamicvalues.Footprint;
+import org.dynamicvalues.ValueStream;
+import org.dynamicvalues.Externals.ValueMap;
+import org.dynamicvalues.Fingerprint;
+import org.dynamicvalues.Fingerprints;
 import org.junit.Test;
 
 
@@ -138,4 +169,771 @@ public class DynamicTest {
 		
 		
 	}
+	
+	@Test
+	public void arenaValues() throws Exception {
+		
+		Arena arena = new Arena(64);
+		
+		for (Object o : atomics)
+			assertEquals(o, valueOf(o,by(),arena));
+		
+		for (Object o : collections)
+			assertEquals(valueOf(o), valueOf(o,by(),arena));
+		
+		assertEquals(valueOf(new Obj()), valueOf(new Obj(),by(),arena));
+		
+		assertTrue(arena.size()>0);
+	}
+	
+	@Test
+	public void arenaSharingAndCycles() throws Exception {
+		
+		class A {
+			A a = this;
+			int[] o1 = {1,2,3};
+			int[] o2 = o1;
+		}
+		
+		Map<?,?> map = valueOf(new A(),by(),new Arena());
+		
+		assertEquals(map,map.get("a"));
+		assertEquals(map.get("o1"),map.get("o2"));
+		assertEquals(valueOf(new int[]{1,2,3}),map.get("o1"));
+		
+	}
+	
+	@Test
+	public void batchValues() throws Exception {
+		
+		List<Object> values = valueOfAll(collections,by());
+		
+		assertEquals(collections, values);
+		
+		Iterator<Object> it = valuesOf(collections, by());
+		
+		for (Object o : collections)
+			assertEquals(o, it.next());
+		
+		assertFalse(it.hasNext());
+		
+		List<Object> externals = externalValueOfAll(collections,by());
+		
+		for (int i = 0; i < collections.size(); i++)
+			assertEquals(externalValueOf(collections.get(i)), externals.get(i));
+	}
+	
+	@Test
+	public void batchSharing() throws Exception {
+		
+		class A {
+			Object o = list;
+		}
+		
+		List<Object> objects = Arrays.<Object>asList(new A(), new A());
+		
+		List<Map<?,?>> values = valueOfAll(objects,by());
+		
+		assertNotSame(values.get(0).get("o"),values.get(1).get("o"));
+		
+		values = valueOfAll(objects,by().preservingSharing());
+		
+		assertSame(values.get(0).get("o"),values.get(1).get("o"));
+	}
+	
+	@Test
+	public void fingerprints() throws Exception {
+		
+		for (Object o : collections) {
+			assertEquals(Fingerprint.of(valueOf(o)), Fingerprint.of(o));
+			assertEquals(Fingerprint.of(o), Fingerprint.of(externalValueOf(o)));
+		}
+		
+		assertEquals(Fingerprint.of(list), Fingerprint.of(new LinkedList<Object>(list)));
+		assertEquals(Fingerprint.of(map()), Fingerprint.of(new LinkedHashMap<String,Object>(map())));
+		
+		assertFalse(Fingerprint.of(list).equals(Fingerprint.of(listOfLists)));
+		assertFalse(Fingerprint.of(1).equals(Fingerprint.of(1L)));
+		assertFalse(Fingerprint.of(Arrays.asList(1,2)).equals(Fingerprint.of(Arrays.asList(2,1))));
+	}
+	
+	@Test
+	public void cyclicFingerprints() throws Exception {
+		
+		class A {
+			A a = this;
+			int v=10;
+		}
+		
+		Map<?,?> map = valueOf(new A());
+		
+		assertEquals(Fingerprint.of(map), Fingerprint.of(valueOf(new A())));
+		assertEquals(Fingerprint.of(map), Fingerprint.of(valueOf(new A(),by(),new Arena())));
+		
+		Fingerprints fingerprints = new Fingerprints();
+		
+		assertEquals(Fingerprint.of(map),fingerprints.of(map));
+		assertEquals(1,fingerprints.size());
+		assertSame(fingerprints.of(map),fingerprints.of(map));
+	}
+	
+	static class Point {
+		int x;
+		Integer y;
+		long id;
+		double weight = 1.5;
+		boolean flag;
+		String label;
+		Point parent;
+		Object any;
+	}
+	
+	static class Item {
+		String name;
+		Point at = new Point();
+		List<String> tags = Arrays.asList("t");
+	}
+	
+	@Test
+	public void columnarValues() throws Exception {
+		
+		List<Item> items = new LinkedList<Item>();
+		
+		for (int i = 0; i < 40; i++) {
+			Item item = new Item();
+			item.name = i % 2 == 0 ? "even" : "odd";
+			item.at.x = i;
+			item.at.y = i % 3 == 0 ? null : i;
+			item.at.id = i * 10L;
+			item.at.flag = i % 5 == 0;
+			item.at.any = i < 20 ? (Object) i : "s"+i; //degrades
+			item.at.parent = i == 1 ? new Point() : null;
+			items.add(item);
+		}
+		
+		Columns columns = columnsOf(items);
+		
+		assertEquals(Item.class, columns.type());
+		assertEquals(40, columns.size());
+		
+		for (int i = 0; i < 40; i++)
+			assertEquals(valueOf(items.get(i)), columns.row(i));
+		
+		Columns.Strings names = (Columns.Strings) columns.column("name");
+		assertEquals(Arrays.asList("even","odd"), names.dictionary());
+		
+		Columns at = ((Columns.Objects) columns.column("at")).columns();
+		assertEquals(39, ((Columns.Ints) at.column("x")).values()[39]);
+		assertTrue(at.column("y").isNull(3));
+		assertTrue(at.column("any") instanceof Columns.Values);
+		assertTrue(at.column("weight") instanceof Columns.Doubles);
+		assertTrue(at.column("flag") instanceof Columns.Booleans);
+		assertTrue(at.column("label").isNull(0));
+		
+		//recurring classes are not nested
+		assertTrue(at.column("parent") instanceof Columns.Values);
+		
+		try {
+			columnsOf(Arrays.asList(new Item(), new Point()));
+			fail();
+		}
+		catch(IllegalArgumentException e) {}
+	}
+	
+	@Test
+	public void columnarValuesAreConvertedOnce() throws Exception {
+		
+		Directives incrementing = by().converting(Integer.class, new Converter<Integer>() {
+			
+			@Override
+			public Object convert(Integer object) {
+				return object + 1;
+			}
+		});
+		
+		//a column of values from the start, and one that degrades to values
+		List<Point> values = new ArrayList<Point>();
+		List<Point> degrading = new ArrayList<Point>();
+		
+		for (int i = 0; i < 4; i++) {
+			
+			Point point = new Point();
+			point.any = i == 0 ? Arrays.asList(i) : (Object) i;
+			values.add(point);
+			
+			point = new Point();
+			point.any = i == 2 ? Arrays.asList(i) : (Object) i;
+			degrading.add(point);
+		}
+		
+		Columns columns = columnsOf(values, incrementing);
+		Columns degraded = columnsOf(degrading, incrementing);
+		
+		assertTrue(degraded.column("any") instanceof Columns.Values);
+		
+		for (int i = 0; i < 4; i++) {
+			assertEquals(valueOf(values.get(i), incrementing), columns.row(i));
+			assertEquals(valueOf(degrading.get(i), incrementing), degraded.row(i));
+		}
+		
+		assertEquals(2, degraded.column("any").get(1));
+	}
+	
+	@Test
+	public void columnarValuesFollowDirectives() throws Exception {
+		
+		List<Item> items = Arrays.asList(new Item(), new Item());
+		items.get(0).tags = Arrays.asList("t", "u");
+		
+		Columns projected = columnsOf(items, by().projecting("tags", "at.y", "at.x"));
+		
+		assertEquals(Arrays.asList("at","tags"), projected.names());
+		assertEquals(Arrays.asList("x","y"), ((Columns.Objects) projected.column("at")).columns().names());
+		
+		Columns canonical = columnsOf(items, by().canonical());
+		
+		assertEquals(Arrays.asList("any","flag","id","label","parent","weight","x","y"), ((Columns.Objects) canonical.column("at")).columns().names());
+		
+		Columns excluding = columnsOf(items, by().excludingElements("tags", new ElementExclusion<Object>() {
+			@Override
+			public boolean exclude(Object element) throws Exception {
+				return element.equals("t");
+			}
+		}));
+		
+		assertEquals(Arrays.asList("u"), excluding.row(0).get("tags"));
+	}
+	
+	static class Line {
+		String sku;
+		int qty;
+		Line(String sku, int qty) {
+			this.sku=sku;
+			this.qty=qty;
+		}
+	}
+	
+	static class Order {
+		String id = "o1, \"urgent\"";
+		List<String> tags = Arrays.asList("a","b");
+		List<Line> lines = Arrays.asList(new Line("x",1), new Line("y",2));
+	}
+	
+	@Test
+	public void flatValues() throws Exception {
+		
+		StringWriter csv = new StringWriter();
+		
+		Flattener flattener = Flattener.csv(csv);
+		assertEquals(2, flattener.writeAll(Arrays.asList(new Order(), new Order())));
+		flattener.close();
+		
+		String row = "\"o1, \"\"urgent\"\"\",1|2,x|y,a|b\r\n";
+		assertEquals("id,lines.qty,lines.sku,tags\r\n"+row+row, csv.toString());
+		
+		StringWriter tsv = new StringWriter();
+		
+		flattener = Flattener.tsv(tsv).exploding().columns("id","lines.sku","tags").withoutHeader();
+		assertEquals(4, flattener.write(new Order()));
+		
+		assertEquals("o1, \"urgent\"\tx\ta\n", tsv.toString().split("(?<=\n)")[0]);
+		assertEquals("o1, \"urgent\"\ty\tb\n", tsv.toString().split("(?<=\n)")[3]);
+	}
+	
+	@Test
+	public void joinedCellsEscapeDelimiters() throws Exception {
+		
+		Order order = new Order();
+		order.id = "o2";
+		order.tags = Arrays.asList("a|b", "c\\d", "e");
+		
+		StringWriter csv = new StringWriter();
+		
+		Flattener flattener = Flattener.csv(csv).columns("id","tags").withoutHeader();
+		flattener.write(order);
+		
+		assertEquals("o2,a\\|b|c\\\\d|e\r\n", csv.toString());
+		
+		csv = new StringWriter();
+		
+		flattener = Flattener.csv(csv).joining(";").columns("id","tags").withoutHeader();
+		flattener.write(order);
+		
+		assertEquals("o2,a|b;c\\\\d;e\r\n", csv.toString());
+	}
+	
+	static class Shipment {
+		String id = "s1";
+		List<Order> orders = Arrays.asList(new Order(), new Order());
+		Shipment self = this;
+	}
+	
+	@Test
+	public void flatValuesOfNestedLists() throws Exception {
+		
+		StringWriter csv = new StringWriter();
+		
+		//two tags by two lines, for each order
+		Flattener flattener = Flattener.csv(csv).exploding();
+		assertEquals(8, flattener.write(new Shipment()));
+		
+		String[] lines = csv.toString().split("\r\n");
+		
+		//cycles are cut
+		assertEquals("id,orders.id,orders.lines.qty,orders.lines.sku,orders.tags", lines[0]);
+		assertEquals("s1,\"o1, \"\"urgent\"\"\",1,x,a", lines[1]);
+		assertEquals("s1,\"o1, \"\"urgent\"\"\",2,y,b", lines[8]);
+	}
+	
+	static enum Size { S, M, L }
+	
+	@Test
+	public void jdkCollections() throws Exception {
+		
+		assertEquals(Collections.emptyList(), valueOf(Collections.emptyList()));
+		assertEquals(Collections.emptyList(), valueOf(Collections.emptySet()));
+		assertEquals(Collections.emptyMap(), valueOf(Collections.emptyMap()));
+		
+		assertEquals(Arrays.asList("a"), valueOf(Collections.singleton("a")));
+		assertEquals(Arrays.asList("a"), valueOf(Collections.unmodifiableList(Collections.singletonList("a"))));
+		assertEquals(Arrays.asList(1,2), valueOf(new TreeSet<Integer>(Arrays.asList(2,1))));
+		
+		//random access, with cycles
+		List<Object> list = new ArrayList<Object>(Arrays.<Object>asList("a",1));
+		list.add(list);
+		
+		List<Object> copy = valueOf(list);
+		assertEquals(3,copy.size());
+		assertSame(copy,copy.get(2));
+		
+		Map<Object,Object> map = new LinkedHashMap<Object, Object>();
+		map.put(1, "one");
+		map.put("two", Collections.singletonMap(2L, true));
+		
+		assertEquals(map, valueOf(Collections.unmodifiableMap(map)));
+		
+		//atomic keys are still converted
+		Map<Object,Object> converted = valueOf(map, by().converting(Integer.class, asString()));
+		assertEquals("one", converted.get("1"));
+		
+		EnumMap<Size,Integer> sizes = new EnumMap<Size, Integer>(Size.class);
+		sizes.put(Size.M, 2);
+		sizes.put(Size.S, 1);
+		
+		Map<Object,Object> expected = new LinkedHashMap<Object, Object>();
+		expected.put("S",1);
+		expected.put("M",2);
+		
+		assertEquals(expected, valueOf(sizes, by().converting(Enum.class, asName())));
+		assertEquals(Arrays.asList("S","L"), valueOf(EnumSet.of(Size.L,Size.S), by().converting(Enum.class, asName())));
+	}
+	
+	@Test
+	public void footprints() throws Exception {
+		
+		List<Item> items = new ArrayList<Item>();
+		
+		for (int i = 0; i < 10; i++)
+			items.add(new Item());
+		
+		items.add(items.get(0)); //shared
+		
+		Footprint estimate = footprintOf(items);
+		Footprint actual = Footprint.of(valueOf(items));
+		
+		//list, and 10 items with a point of 4 fields and a list of 1 tag (the shared item counts once)
+		assertEquals(1 + 10 * (1 + 2 + 1 + 4 * 2 + 2), estimate.nodes());
+		assertEquals(actual.nodes(), estimate.nodes());
+		assertEquals(actual.bytes(), estimate.bytes());
+		
+		assertTrue(footprintOf(items, by().projecting("name")).bytes() < estimate.bytes());
+		assertEquals(estimate.nodes(), Footprint.of(externalValueOf(items)).nodes());
+		
+		try {
+			Footprint.of(new Item());
+			fail();
+		}
+		catch(IllegalArgumentException e) {}
+	}
+	
+	@Test
+	public void streamedValues() throws Exception {
+		
+		//unbounded
+		Iterable<Integer> naturals = new Iterable<Integer>() {
+			
+			@Override
+			public Iterator<Integer> iterator() {
+				return new Iterator<Integer>() {
+					
+					int next = 0;
+					
+					public boolean hasNext() {
+						return true;
+					}
+					
+					public Integer next() {
+						return next++;
+					}
+					
+					public void remove() {}
+				};
+			}
+		};
+		
+		ValueStream<Integer> stream = streamOf(naturals);
+		
+		assertEquals(Long.MAX_VALUE, stream.estimateSize());
+		assertEquals((Integer) 0, stream.next());
+		
+		ValueStream<Integer> batch = stream.trySplit();
+		assertEquals(1024, batch.estimateSize());
+		assertEquals((Integer) 1, batch.next());
+		assertEquals((Integer) 1025, stream.next());
+		
+		//split in halves, and consumed in parallel
+		List<Item> items = new ArrayList<Item>();
+		for (int i = 0; i < 10; i++) {
+			Item item = new Item();
+			item.name = "item"+i;
+			items.add(item);
+		}
+		
+		ValueStream<Map<String,Object>> second = streamOf(items);
+		final ValueStream<Map<String,Object>> first = second.trySplit();
+		
+		assertEquals(5, first.estimateSize());
+		assertEquals(5, second.estimateSize());
+		
+		final List<Map<String,Object>> copies = new ArrayList<Map<String,Object>>();
+		
+		Thread thread = new Thread() {
+			public void run() {
+				while (first.hasNext())
+					copies.add(first.next());
+			}
+		};
+		
+		thread.start();
+		thread.join();
+		
+		while (second.hasNext())
+			copies.add(second.next());
+		
+		assertEquals(valueOfAll(items, by()), copies);
+	}
+	
+	static class Link {
+		String name;
+		Link next;
+		
+		Link(String name) {
+			this.name=name;
+		}
+	}
+	
+	@Test
+	public void cyclicEquality() throws Exception {
+		
+		Link a = new Link("a");
+		a.next = new Link("b");
+		a.next.next = a;
+		
+		Link other = new Link("a");
+		other.next = new Link("b");
+		other.next.next = other;
+		
+		ValueMap external = externalValueOf(a);
+		
+		assertEquals(external, externalValueOf(other));
+		assertEquals(external.hashCode(), externalValueOf(other).hashCode());
+		
+		assertTrue(equal(valueOf(a), valueOf(other)));
+		assertTrue(equal(valueOf(a), external));
+		assertEquals(hashOf(valueOf(a)), hashOf(external));
+		
+		other.next.name = "c";
+		assertFalse(external.equals(externalValueOf(other)));
+		
+		//same elements, cycles closing at different depths
+		Link loop = new Link("n");
+		loop.next = loop;
+		
+		Link twice = new Link("n");
+		twice.next = new Link("n");
+		twice.next.next = twice;
+		
+		assertFalse(equal(valueOf(loop), valueOf(twice)));
+		
+		//frozen values make stable keys
+		Set<ValueMap> keys = new HashSet<ValueMap>();
+		keys.add(external.freeze());
+		assertTrue(keys.contains(externalValueOf(a)));
+		
+		try {
+			external.elements.clear();
+			fail();
+		}
+		catch(UnsupportedOperationException e) {}
+	}
+	
+	@Test
+	public void viewedValues() throws Exception {
+		
+		Obj obj = new Obj();
+		
+		Map<String,Object> view = viewOf(obj);
+		
+		assertEquals(valueOf(obj), view);
+		assertFalse(view.containsKey("unmapped"));
+		
+		JexlEngine jexl = new JexlEngine();
+		
+		MapContext copied = new MapContext(Dynamic.<Map<String,Object>>valueOf(obj));
+		MapContext viewed = new MapContext(view);
+		
+		for (String expression : Arrays.asList("a1[1]", "map.two[0][1]", "a2[1][0] + a1[0]"))
+			assertEquals(jexl.createExpression(expression).evaluate(copied), jexl.createExpression(expression).evaluate(viewed));
+		
+		//only accessed values are resolved
+		Item item = new Item();
+		item.name = "i";
+		
+		Map<String,Object> itemView = viewOf(item, by().converting(Point.class, new Converter<Point>() {
+			
+			@Override
+			public Object convert(Point object) {
+				throw new UnsupportedOperationException();
+			}
+		}));
+		
+		assertEquals("i", jexl.createExpression("name").evaluate(new MapContext(itemView)));
+		
+		try {
+			itemView.get("at");
+			fail();
+		}
+		catch(UnsupportedOperationException e) {}
+	}
+	
+	static class Readings {
+		List<Integer> values = Arrays.asList(0, 1, 2);
+		int[] raw = {0, 1};
+		Map<String,Integer> named = new HashMap<String,Integer>(Collections.singletonMap("zero", 0));
+		Readings previous;
+	}
+	
+	@Test
+	public void viewedValuesExcludeElements() throws Exception {
+		
+		Readings readings = new Readings();
+		readings.previous = new Readings();
+		
+		ElementExclusion<Object> zeros = new ElementExclusion<Object>() {
+			@Override
+			public boolean exclude(Object element) throws Exception {
+				return Integer.valueOf(0).equals(element);
+			}
+		};
+		
+		Directives everywhere = by().excludingElements(zeros);
+		
+		Map<String,Object> view = viewOf(readings, everywhere);
+		
+		assertEquals(Arrays.asList(1, 2), view.get("values"));
+		assertEquals(Arrays.asList(1), view.get("raw"));
+		assertFalse(view.containsKey("named")); //empty, as in copies
+		assertEquals(valueOf(readings, everywhere), view);
+		
+		Directives scoped = by().excludingElements("previous.values", zeros);
+		
+		view = viewOf(readings, scoped);
+		
+		assertEquals(Arrays.asList(0, 1, 2), view.get("values"));
+		assertEquals(Arrays.asList(1, 2), ((Map) view.get("previous")).get("values"));
+		assertEquals(valueOf(readings, scoped), view);
+	}
+	
+	@Test
+	public void clonedValues() throws Exception {
+		
+		Obj obj = new Obj();
+		obj.i = 5;
+		
+		Obj clone = cloneOf(obj);
+		
+		assertEquals(Obj.class, clone.getClass());
+		assertEquals(valueOf(obj), valueOf(clone));
+		assertEquals(5, clone.i);
+		assertNull(clone.unmapped); //excluded
+		
+		assertNotSame(obj.m, clone.m);
+		assertNotSame(obj.a1, clone.a1);
+		assertTrue(Arrays.equals(obj.a1, clone.a1));
+		assertNotSame(obj.l, clone.l);
+		assertEquals(obj.l, clone.l);
+		
+		//cycles and sharing
+		Link link = new Link("a");
+		link.next = new Link("b");
+		link.next.next = link;
+		
+		Link linkClone = cloneOf(link);
+		assertNotSame(link, linkClone);
+		assertSame(linkClone, linkClone.next.next);
+		
+		List<Item> items = new ArrayList<Item>(Arrays.asList(new Item(), new Item()));
+		items.add(items.get(0));
+		
+		List<Item> itemsClone = cloneOf(items);
+		assertEquals(ArrayList.class, itemsClone.getClass());
+		assertSame(itemsClone.get(0), itemsClone.get(2));
+		assertNotSame(items.get(0).at, itemsClone.get(0).at);
+		
+		//immutables are shared
+		assertSame(items.get(0).at, cloneOf(items, by().immutable(Point.class)).get(0).at);
+		
+		//ordered and enum-keyed collections
+		TreeSet<String> reversed = new TreeSet<String>(Collections.reverseOrder());
+		reversed.addAll(Arrays.asList("a","b"));
+		assertEquals(Arrays.asList("b","a"), new ArrayList<String>(cloneOf(reversed)));
+		
+		EnumMap<Size,Link> sizes = new EnumMap<Size, Link>(Size.class);
+		sizes.put(Size.M, link);
+		
+		EnumMap<Size,Link> sizesClone = cloneOf(sizes);
+		assertNotSame(link, sizesClone.get(Size.M));
+		assertEquals("a", sizesClone.get(Size.M).name);
+	}
+	
+	public static class Tagged extends ArrayList<String> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		String tag;
+	}
+	
+	@Test
+	public void clonedCollectionsKeepTheirState() throws Exception {
+		
+		PriorityQueue<String> queue = new PriorityQueue<String>(3, Collections.reverseOrder());
+		queue.addAll(Arrays.asList("a","c","b"));
+		
+		PriorityQueue<String> queueClone = cloneOf(queue);
+		assertNotSame(queue, queueClone);
+		assertEquals("c", queueClone.poll());
+		assertEquals("b", queueClone.poll());
+		queueClone.add("z");
+		assertEquals("z", queueClone.poll());
+		assertEquals(3, queue.size());
+		
+		Map<String,Integer> accessed = new LinkedHashMap<String, Integer>(16, .75f, true);
+		accessed.put("a", 1);
+		accessed.put("b", 2);
+		accessed.put("c", 3);
+		accessed.get("a");
+		
+		Map<String,Integer> accessedClone = cloneOf(accessed);
+		assertEquals(Arrays.asList("b","c","a"), new ArrayList<String>(accessedClone.keySet()));
+		accessedClone.get("b");
+		assertEquals(Arrays.asList("c","a","b"), new ArrayList<String>(accessedClone.keySet()));
+		
+		Tagged tagged = new Tagged();
+		tagged.tag = "tag";
+		tagged.add("a");
+		
+		Tagged taggedClone = cloneOf(tagged);
+		assertNotSame(tagged, taggedClone);
+		assertEquals("tag", taggedClone.tag);
+		assertEquals(Arrays.asList("a"), taggedClone);
+		taggedClone.add("b");
+		assertEquals(1, tagged.size());
+	}
+	
+	@Test
+	public void spilledValues() throws Exception {
+		
+		List<Object> items = new ArrayList<Object>();
+		
+		for (int i = 0; i < 100; i++) {
+			Item item = new Item();
+			item.name = "item"+i;
+			item.at.x = i;
+			items.add(item);
+		}
+		
+		items.add(items.get(0)); //shared
+		
+		Link link = new Link("a");
+		link.next = new Link("b");
+		link.next.next = link;
+		items.add(link); //cyclic
+		
+		List<Object> copy = valueOf(items);
+		List<Object> spilled = valueOf(items, by().spilling(1024));
+		
+		assertTrue(Dynamic.equal(copy, spilled));
+		assertEquals(copy.get(1), spilled.get(1));
+		
+		//only handles stay in memory
+		assertTrue(Footprint.of(spilled).bytes() < Footprint.of(copy).bytes() / 2);
+		
+		//spilled values are read-only
+		try {
+			((Map<String,Object>) spilled.get(1)).put("name","other");
+			fail();
+		}
+		catch(UnsupportedOperationException e) {}
+		
+		//below the threshold, nothing spills
+		assertEquals(Footprint.of(copy).bytes(), Footprint.of(valueOf(items, by().spilling(1 << 20))).bytes());
+	}
+	
+	@Test
+	public void unwrappedValues() throws Exception {
+		
+		Obj obj = new Obj();
+		
+		StringWriter xml = new StringWriter();
+		DynamicIO.newInstance().createMarshaller().marshal(externalValueOf(obj), xml);
+		
+		Object external = DynamicIO.newInstance().createUnmarshaller().unmarshal(new StringReader(xml.toString()));
+		Map<Object,Object> elements = ((ValueMap) external).elements;
+		
+		Map<String,Object> value = unwrap(external);
+		
+		assertEquals(valueOf(obj), value);
+		assertSame(elements, value); //reused in place
+		
+		//sharing and cycles
+		Link link = new Link("a");
+		link.next = new Link("b");
+		link.next.next = link;
+		
+		List<Object> links = unwrap(externalValueOf(Arrays.asList(link, link)));
+		Map<String,Object> unwrapped = (Map) links.get(0);
+		assertSame(unwrapped, links.get(1));
+		assertSame(unwrapped, ((Map) unwrapped.get("next")).get("next"));
+		assertTrue(Dynamic.equal(valueOf(link), unwrapped));
+		
+		//frozen values are copied
+		ValueMap frozen = new ValueMap(new HashMap<Object,Object>(Collections.<Object,Object>singletonMap("k", externalValueOf(list)))).freeze();
+		Map<Object,Object> thawed = unwrap(frozen);
+		assertEquals(valueOf(Collections.singletonMap("k", list)), thawed);
+		assertNotSame(frozen.elements, thawed);
+		
+		assertEquals(5, unwrap(5));
+	}
+	
+	@Test
+	public void unwrappedRoundTrips() throws Exception {
+		
+		for (Object o : arrays)
+			assertEquals(valueOf(o), unwrap(unmarshalledOf(o)));
+		
+		for (Object o : collections)
+			assertEquals(o, unwrap(unmarshalledOf(o)));
+		
+		assertEquals(valueOf(new Obj()), unwrap(unmarshalledOf(new Obj())));
+	}
 }
@@ -85,6 +85,10 @@ public class Fixture {
 	}
 	
 	static Object xmlRoundTripOf(Object o) throws Exception {
+		return valueOf(unmarshalledOf(o));
+	}
+	
+	static Object unmarshalledOf(Object o) throws Exception {
 
 		JAXBContext ctx = newInstance();
 		
@@ -97,8 +101,6 @@ public class Fixture {
 		System.out.println(writer.toString());
 
 		StringReader reader = new StringReader(writer.toString());
-		Object read = ctx.createUnmarshaller().unmarshal(reader);
-
-		return valueOf(read);
+		return ctx.createUnmarshaller().unmarshal(reader);
 	}
 }
@@ -0,0 +1,240 @@
+package org.acme;
+
+import static org.dynamicvalues.Dynamic.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.acme.Fixture.Obj;
+import org.dynamicvalues.Journal;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("all")
+public class JournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void valuesCanBeReadBack() throws Exception {
+
+		Journal journal = Journal.open(folder.newFolder());
+
+		Map<String, Object> value = valueOf(new Obj());
+
+		long id = journal.append(value);
+
+		assertEquals(value, journal.read(id));
+		assertEquals(1, journal.size());
+
+		journal.close();
+	}
+
+	@Test
+	public void sharingAndCyclesArePreserved() throws Exception {
+
+		class A {
+			A a = this;
+			Object o1 = new Object() {
+				int v = 10;
+			};
+			Object o2 = o1;
+		}
+
+		Journal journal = Journal.open(folder.newFolder());
+
+		Map<?, ?> map = journal.read(journal.append(valueOf(new A())));
+
+		assertSame(map, map.get("a"));
+		assertSame(map.get("o1"), map.get("o2"));
+
+		journal.close();
+	}
+
+	@Test
+	public void valuesSurviveReopening() throws Exception {
+
+		File dir = folder.newFolder();
+
+		Journal journal = Journal.open(dir, 256);
+
+		List<Long> ids = new ArrayList<Long>();
+
+		for (int i = 0; i < 100; i++)
+			ids.add(journal.append(valueOf(new Obj())));
+
+		journal.remove(ids.get(0));
+
+		journal.close();
+
+		journal = Journal.open(dir, 256);
+
+		assertEquals(99, journal.size());
+		assertFalse(journal.contains(ids.get(0)));
+		assertEquals(valueOf(new Obj()), journal.read(ids.get(99)));
+
+		long next = journal.append("another");
+
+		assertFalse(ids.contains(next));
+
+		journal.close();
+	}
+
+	@Test
+	public void tornRecordsAreDroppedOnReopening() throws Exception {
+
+		File dir = folder.newFolder();
+
+		Journal journal = Journal.open(dir);
+
+		long first = journal.append(valueOf(new Obj()));
+		long second = journal.append(valueOf(new Obj()));
+
+		journal.close();
+
+		File segment = dir.listFiles()[0];
+
+		// the second record loses its tail, as if the process stopped while writing it
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		journal = Journal.open(dir);
+
+		assertEquals(1, journal.size());
+		assertFalse(journal.contains(second));
+		assertEquals(valueOf(new Obj()), journal.read(first));
+
+		long third = journal.append("another");
+
+		journal.close();
+
+		// now only a few bytes of a record header
+		raf = new RandomAccessFile(segment, "rw");
+		raf.seek(raf.length());
+		raf.write(new byte[] { 0, 0, 0, 0, 7 });
+		raf.close();
+
+		journal = Journal.open(dir);
+
+		assertEquals(2, journal.size());
+		assertEquals("another", journal.read(third));
+
+		journal.close();
+	}
+
+	@Test
+	public void compactionReclaimsRemovedValues() throws Exception {
+
+		File dir = folder.newFolder();
+
+		Journal journal = Journal.open(dir, 256);
+
+		List<Long> ids = new ArrayList<Long>();
+
+		for (int i = 0; i < 100; i++)
+			ids.add(journal.append(valueOf(new Obj())));
+
+		for (int i = 0; i < 100; i += 2)
+			journal.remove(ids.get(i));
+
+		int files = dir.list().length;
+
+		assertTrue(journal.compactInBackground().get() > 0);
+
+		assertTrue(dir.list().length <= files);
+		assertEquals(50, journal.size());
+
+		for (int i = 1; i < 100; i += 2)
+			assertEquals(valueOf(new Obj()), journal.read(ids.get(i)));
+
+		journal.close();
+
+		journal = Journal.open(dir, 256);
+
+		assertEquals(50, journal.size());
+
+		for (int i = 0; i < 100; i += 2)
+			assertFalse(journal.contains(ids.get(i)));
+
+		journal.close();
+	}
+
+	@Test
+	public void compactedJournalsAppendToTheirTailOnReopening() throws Exception {
+
+		File dir = folder.newFolder();
+
+		Journal journal = Journal.open(dir, 512);
+
+		List<Long> ids = new ArrayList<Long>();
+
+		for (int i = 0; i < 100; i++)
+			ids.add(journal.append("value" + i));
+
+		for (int i = 0; i < 50; i += 2)
+			journal.remove(ids.get(i));
+
+		String[] names = dir.list();
+		Arrays.sort(names);
+
+		String tail = names[names.length - 1];
+
+		assertTrue(journal.compact() > 0);
+
+		journal.close();
+
+		Map<String, Long> lengths = new HashMap<String, Long>();
+
+		for (File file : dir.listFiles())
+			lengths.put(file.getName(), file.length());
+
+		journal = Journal.open(dir, 512);
+
+		long next = journal.append("another");
+
+		// appends go to the former tail, or to a new segment after it, but never to compacted segments
+		for (File file : dir.listFiles())
+			if (!file.getName().equals(tail) && lengths.containsKey(file.getName()))
+				assertEquals(file.getName(), lengths.get(file.getName()), Long.valueOf(file.length()));
+
+		assertEquals("another", journal.read(next));
+		assertEquals("value99", journal.read(ids.get(99)));
+
+		journal.close();
+
+		journal = Journal.open(dir, 512);
+
+		assertEquals(76, journal.size());
+		assertEquals("another", journal.read(next));
+		assertEquals("value1", journal.read(ids.get(1)));
+		assertFalse(journal.contains(ids.get(0)));
+
+		journal.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void oversizedSegmentsAreRejected() throws Exception {
+		Journal.open(folder.newFolder(), Integer.MAX_VALUE + 1L);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void onlyDynamicValuesCanBeAppended() throws Exception {
+
+		Journal journal = Journal.open(folder.newFolder());
+
+		try {
+			journal.append(new Obj());
+		} finally {
+			journal.close();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package org.acme;
+
+import static org.dynamicvalues.Directives.*;
+import static org.dynamicvalues.Dynamic.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.Unmarshaller;
+
+import org.acme.Fixture.Obj;
+import org.dynamicvalues.DynamicIO;
+import org.dynamicvalues.Pipeline;
+import org.dynamicvalues.Pipeline.Sink;
+import org.junit.Test;
+
+@SuppressWarnings("all")
+public class PipelineTest {
+
+	@Test
+	public void objectsAreDeliveredInOrder() throws Exception {
+
+		final List<Object> objects = new ArrayList<Object>();
+		final List<byte[]> serialisations = new ArrayList<byte[]>();
+
+		Sink sink = new Sink() {
+
+			@Override
+			public void write(Object object, byte[] serialisation) throws Exception {
+				objects.add(object);
+				serialisations.add(serialisation);
+			}
+		};
+
+		Pipeline pipeline = Pipeline.to(sink).workers(4).batching(3).bounded(10);
+
+		List<Object> submitted = new ArrayList<Object>();
+
+		for (int i = 0; i < 100; i++) {
+			Obj o = new Obj();
+			o.i = i;
+			submitted.add(o);
+			pipeline.submit(o);
+		}
+
+		pipeline.close();
+
+		assertEquals(submitted, objects);
+
+		Unmarshaller unmarshaller = DynamicIO.newInstance().createUnmarshaller();
+
+		for (int i = 0; i < 100; i++) {
+			Map<?, ?> value = valueOf(unmarshaller.unmarshal(new ByteArrayInputStream(serialisations.get(i))));
+			assertEquals(i, value.get("i"));
+		}
+	}
+
+	@Test
+	public void capacityBelowBatchSizeDoesNotBlock() throws Exception {
+
+		final List<Object> objects = new ArrayList<Object>();
+
+		Sink sink = new Sink() {
+
+			@Override
+			public void write(Object object, byte[] serialisation) throws Exception {
+				objects.add(object);
+			}
+		};
+
+		Pipeline pipeline = Pipeline.to(sink).batching(16).bounded(10);
+
+		for (int i = 0; i < 50; i++)
+			pipeline.submit(new Obj());
+
+		pipeline.close();
+
+		assertEquals(50, objects.size());
+	}
+
+	@Test
+	public void failuresAreReported() throws Exception {
+
+		Sink sink = new Sink() {
+
+			@Override
+			public void write(Object object, byte[] serialisation) throws Exception {
+				throw new IllegalStateException("sink failure");
+			}
+		};
+
+		Pipeline pipeline = Pipeline.to(sink).with(by()).batching(1);
+
+		pipeline.submit(new Obj());
+
+		try {
+			pipeline.flush();
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("sink failure", e.getMessage());
+		}
+	}
+}
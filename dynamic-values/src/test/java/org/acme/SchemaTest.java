@@ -0,0 +1,114 @@
+package org.acme;
+
+import static java.util.Arrays.*;
+import static org.dynamicvalues.Directives.*;
+import static org.dynamicvalues.Dynamic.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dynamicvalues.Arena;
+import org.dynamicvalues.Schema;
+import org.junit.Test;
+
+@SuppressWarnings("all")
+public class SchemaTest {
+
+	static class Line {
+		String sku = "A1";
+		int quantity = 2;
+	}
+
+	static class Order {
+		String id = "o1";
+		String note;
+		List<Line> lines = asList(new Line(), new Line());
+	}
+
+	@Test
+	public void schemasDescribeCopies() throws Exception {
+
+		Schema schema = new Schema();
+
+		Order withNote = new Order();
+		withNote.note = "fragile";
+
+		for (Object value : valueOfAll(asList(new Order(), withNote, new Order()), by().canonical().inferring(schema)))
+			assertNotNull(value);
+
+		assertEquals(3, schema.count());
+		assertEquals(3, schema.maps());
+		assertEquals("{id: String, lines: [{quantity: Integer, sku: String}], note?: String}", schema.toString());
+
+		Schema lines = schema.fields().get("lines");
+		assertEquals(2, lines.minSize());
+		assertEquals(6, lines.elements().count());
+		assertTrue(schema.fields().get("note").isOptional());
+		assertFalse(schema.fields().get("id").isOptional());
+	}
+
+	@Test
+	public void schemasReportDrift() throws Exception {
+
+		Schema schema = new Schema();
+
+		Map<String, Object> value = new HashMap<String, Object>();
+		value.put("a", 1);
+
+		assertTrue(schema.observe(value));
+		assertFalse(schema.observe(value));
+
+		value.put("a", "one");
+		assertTrue(schema.observe(value));
+
+		value.put("a", null);
+		assertTrue(schema.observe(value));
+		assertFalse(schema.observe(value));
+
+		assertEquals("{a: Integer|String|null}", schema.toString());
+
+		// cycles are tolerated
+		List<Object> list = new ArrayList<Object>();
+		list.add(list);
+		assertTrue(schema.observe(list));
+	}
+
+	@Test
+	public void cyclesInArenasAreTolerated() throws Exception {
+
+		class Part {
+			String name = "bolt";
+			Part self = this;
+		}
+
+		Schema schema = new Schema();
+
+		// arena maps are facades created on access, so the cycle must be recognised by address
+		assertTrue(schema.observe(valueOf(new Part(), by(), new Arena())));
+		assertEquals(1, schema.maps());
+		assertTrue(schema.fields().containsKey("self"));
+	}
+
+	@Test
+	public void manyKeysMakePositionsOpen() throws Exception {
+
+		Schema schema = new Schema(2);
+
+		Map<String, Object> value = new HashMap<String, Object>();
+		value.put("a", 1);
+		value.put("b", 2);
+
+		schema.observe(value);
+		assertFalse(schema.isOpen());
+
+		value.put("c", 3);
+
+		assertTrue(schema.observe(value));
+		assertTrue(schema.isOpen());
+		assertEquals(5, schema.keys().count());
+		assertEquals("{String: Integer...}", schema.toString());
+	}
+}
@@ -51,6 +51,20 @@ public class UseCases {
 		System.out.println(jexl.createExpression("map.two[0][1]").evaluate(context));
 	}
 	
+	@Test
+	public void viewsCanBeConsumedWithJexl() throws Exception {
+
+		
+		//no copy, fields are read as expressions access them
+		Map<String,Object> value = viewOf(new Obj());
+		
+	
+		MapContext context = new MapContext(value);
+		
+		System.out.println(jexl.createExpression("a1.1").evaluate(context));
+		System.out.println(jexl.createExpression("map.two[0][1]").evaluate(context));
+	}
+	
 	
 
 }